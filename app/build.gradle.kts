@@ -54,6 +54,12 @@ android {
         compose = true
         buildConfig = true
     }
+    testOptions {
+        // android.util.Log calls in the utils return defaults on the JVM instead of throwing
+        unitTests.isReturnDefaultValues = true
+        // Benchmarks in the unit tests only run with -Pbenchmark=true
+        unitTests.all { it.systemProperty("benchmark", findProperty("benchmark") ?: "false") }
+    }
 
 
 }
@@ -20,7 +20,13 @@ import com.google.android.material.color.MaterialColors
 import io.kitsuri.m1rage.globals.AppContext
 import io.kitsuri.m1rage.model.observeBooleanAsState
 import io.kitsuri.m1rage.model.observeStringAsState
+import io.kitsuri.m1rage.patcher.PatchBatch
+import io.kitsuri.m1rage.patcher.PatchOutputCache
+import io.kitsuri.m1rage.patcher.PatchResources
+import io.kitsuri.m1rage.patcher.Patcher
+import io.kitsuri.m1rage.utils.ApkRebuilder
 import io.kitsuri.m1rage.utils.CleanupManager
+import io.kitsuri.m1rage.utils.DigestExecutor
 import io.kitsuri.m1rage.ui.components.MainScaffold
 import io.kitsuri.m1rage.ui.pages.RepairModeScreen
 import io.kitsuri.m1rage.ui.theme.M1rageTheme
@@ -174,6 +180,47 @@ class MainActivity : ComponentActivity() {
 
 
 
+        settingsManager.addSlider(
+            key = Patcher.COMPRESSION_THREADS_KEY,
+            title = "Compression threads",
+            defaultValue = ApkRebuilder.DEFAULT_PARALLELISM.toFloat(),
+            minValue = 1f,
+            maxValue = Runtime.getRuntime().availableProcessors().toFloat(),
+            description = "Threads used to compress entries of the patched APK",
+            customIconResId = ir.alirezaivaz.tablericons.R.drawable.ic_cpu
+        )
+
+        settingsManager.addSlider(
+            key = PatchResources.SIGNING_THREADS_KEY,
+            title = "Signing threads",
+            defaultValue = DigestExecutor.APKSIG_DEFAULT_THREADS.toFloat(),
+            minValue = DigestExecutor.APKSIG_DEFAULT_THREADS.toFloat(),
+            maxValue = Runtime.getRuntime().availableProcessors().toFloat(),
+            description = "Threads used to hash the patched APK for its v2/v3 signature, 0 keeps apksig's default",
+            customIconResId = ir.alirezaivaz.tablericons.R.drawable.ic_cpu
+        )
+
+        settingsManager.addSlider(
+            key = PatchBatch.CONCURRENCY_KEY,
+            title = "Batch concurrency",
+            defaultValue = PatchBatch.DEFAULT_CONCURRENCY.toFloat(),
+            minValue = 1f,
+            maxValue = 4f,
+            description = "Apps patched at the same time in batch mode",
+            customIconResId = ir.alirezaivaz.tablericons.R.drawable.ic_stack_2
+        )
+
+        settingsManager.addSlider(
+            key = PatchOutputCache.SIZE_KEY,
+            title = "Output cache size",
+            defaultValue = PatchOutputCache.DEFAULT_SIZE_MB.toFloat(),
+            minValue = 0f,
+            maxValue = 8192f,
+            suffix = "MB",
+            description = "Patched outputs kept to skip re-patching the same APK, 0 disables the cache",
+            customIconResId = ir.alirezaivaz.tablericons.R.drawable.ic_database
+        )
+
         settingsManager.addInfo(
             key = "current_save_path",
             title = "Save location: Downloads/Mirage"
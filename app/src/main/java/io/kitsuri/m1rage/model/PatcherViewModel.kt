@@ -12,14 +12,18 @@ import androidx.documentfile.provider.DocumentFile
 import androidx.lifecycle.ViewModel
 import androidx.lifecycle.viewModelScope
 import io.kitsuri.m1rage.R
+import io.kitsuri.m1rage.patcher.BatchItem
+import io.kitsuri.m1rage.patcher.BatchResult
+import io.kitsuri.m1rage.patcher.PatchBatch
+import io.kitsuri.m1rage.patcher.PatchMetrics
+import io.kitsuri.m1rage.patcher.PatchWorkspace
 import io.kitsuri.m1rage.patcher.Patcher
+import io.kitsuri.m1rage.utils.APKSigner
 import io.kitsuri.m1rage.utils.CleanupManager
-import io.kitsuri.m1rage.utils.ManifestEditor
 import io.kitsuri.m1rage.utils.ManifestParser
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
-import net.lingala.zip4j.ZipFile
 import java.io.File
 
 enum class PatcherState {
@@ -49,8 +53,15 @@ data class PatchConfig(
     val mode: PatchMode = PatchMode.DEX,
     val selectedActivity: String? = null,
     val debuggable: Boolean = false,
-    val overrideVersionCode: Boolean = false
-)
+    val overrideVersionCode: Boolean = false,
+    val pageAlignedLibs: Boolean = false,
+    val libPageSize: Int = PAGE_SIZE_4K
+) {
+    companion object {
+        const val PAGE_SIZE_4K = 4096
+        const val PAGE_SIZE_16K = 16384
+    }
+}
 
 class PatcherViewModel : ViewModel() {
 
@@ -62,12 +73,21 @@ class PatcherViewModel : ViewModel() {
 
     var patchConfig by mutableStateOf(PatchConfig())
 
-    var extractedDir by mutableStateOf<File?>(null)
+    var workspace by mutableStateOf<PatchWorkspace?>(null)
         private set
 
     var outputApkFile by mutableStateOf<File?>(null)
         private set
 
+    var patchMetrics by mutableStateOf<PatchMetrics?>(null)
+        private set
+
+    var batchResults by mutableStateOf<List<BatchResult>>(emptyList())
+        private set
+
+    // Outputs of the last batch, deleted on reset like the workspace of a single patch
+    private var batchDir: File? = null
+
     var savedToDownloads by mutableStateOf(false)
         private set
 
@@ -87,6 +107,7 @@ class PatcherViewModel : ViewModel() {
             )
             is ViewAction.ConfigureComplete -> patcherState = PatcherState.CONFIGURATION
             is ViewAction.StartPatch -> startPatching(action.context)
+            is ViewAction.StartBatch -> startBatch(action.context, action.items)
             is ViewAction.SaveToDownloads -> savePatchedApk(action.context)
             ViewAction.Reset -> reset()
         }
@@ -133,50 +154,22 @@ class PatcherViewModel : ViewModel() {
                     addLog(Log.INFO, getString(context, R.string.vm_found_apks, splitApkPaths.size))
                     decompileProgress = 0.1f
 
-                    val timestamp = System.currentTimeMillis()
-                    val uniqueId = java.util.UUID.randomUUID().toString().take(8)
-                    val workDir = File(context.getExternalFilesDir(null), "apk_workspace/${timestamp}_${uniqueId}")
-                    workDir.mkdirs()
-
-                    val splitsDir = File(workDir, "splits").apply { mkdirs() }
-                    addLog(Log.INFO, getString(context, R.string.vm_copying_splits))
-
-                    val baseApkPath = splitApkPaths[0]
-                    val extractDir = File(workDir, "extracted_base").apply { mkdirs() }
-                    addLog(Log.INFO, getString(context, R.string.vm_extracting_base))
-                    ZipFile(File(baseApkPath)).extractAll(extractDir.absolutePath)
-                    decompileProgress = 0.3f
-
-                    splitApkPaths.drop(1).forEach { path ->
-                        val splitFile = File(path)
-                        if (splitFile.exists()) {
-                            val target = File(splitsDir, splitFile.name)
-                            splitFile.copyTo(target, overwrite = true)
-                            addLog(Log.DEBUG, getString(context, R.string.vm_copied_split, splitFile.name))
-                        }
-                    }
+                    val splitFiles = splitApkPaths.drop(1).map { File(it) }.filter { it.exists() }
+                    val patchWorkspace = Patcher.openWorkspace(context, File(splitApkPaths[0]), splitFiles)
                     decompileProgress = 0.4f
 
-                    val manifestFile = File(extractDir, "AndroidManifest.xml")
-                    if (!manifestFile.exists()) {
+                    if (!patchWorkspace.hasEntry(PatchWorkspace.MANIFEST)) {
                         throw Exception(getString(context, R.string.vm_manifest_not_found_error))
                     }
 
                     addLog(Log.INFO, getString(context, R.string.vm_parsing_manifest))
-                    val launcherActivity = ManifestParser.findLauncherActivity(manifestFile)
-                    val activities = listOfNotNull(launcherActivity)
+                    val manifestFile = patchWorkspace.manifestFile
+                    val summary = ManifestParser.summary(manifestFile)
+                    // Launcher first, it is the default target
+                    val activities = summary?.let { listOfNotNull(it.launcherActivity) + it.activities }.orEmpty().distinct()
                     decompileProgress = 0.5f
 
-                    addLog(Log.INFO, getString(context, R.string.vm_injecting_loader_dex))
-                    Patcher.injectLoaderDex(context, extractDir)
-                    decompileProgress = 0.7f
-
-                    addLog(Log.INFO, getString(context, R.string.vm_injecting_provider))
-                    ManifestEditor.addProvider(context, manifestFile, packageName)
-                    decompileProgress = 0.8f
-
-                    addLog(Log.INFO, getString(context, R.string.vm_adding_native_libs))
-                    Patcher.injectNativeLibs(context, extractDir)
+                    Patcher.prepareLoader(context, patchWorkspace)
                     decompileProgress = 0.9f
 
                     addLog(Log.INFO, getString(context, R.string.vm_found_activities, activities.size))
@@ -185,7 +178,7 @@ class PatcherViewModel : ViewModel() {
 
                     withContext(Dispatchers.Main) {
                         selectedApp = AppInfo(appName, packageName, isSplitApk = true, splitCount = splitApkPaths.size)
-                        extractedDir = extractDir
+                        workspace = patchWorkspace
                         availableActivities = activities
                         patchConfig = patchConfig.copy(selectedActivity = activities.firstOrNull())
                         patcherState = PatcherState.CONFIGURATION
@@ -212,59 +205,19 @@ class PatcherViewModel : ViewModel() {
                     addLog(Log.INFO, getString(context, R.string.vm_starting_decompile))
                     decompileProgress = 0.1f
 
-                    val pm = context.packageManager
-                    val appName: String
-                    val packageName: String
-                    val actualApkPath: String
-                    var isSplit = false
-                    var splitCount = 0
-
-                    if (apkUri != null) {
-                        isSplit = isSplitApksBundle(context, apkUri)
+                    val isSplit = apkUri != null && isSplitApksBundle(context, apkUri)
+                    val sourceUri = if (apkUri != null) {
                         if (isSplit) {
                             addLog(Log.INFO, getString(context, R.string.vm_detected_split_bundle))
                         } else {
                             addLog(Log.INFO, getString(context, R.string.vm_reading_apk_storage))
                         }
-
-                        val tempApkPath = "${context.cacheDir}/temp_${System.currentTimeMillis()}.${if (isSplit) "apks" else "apk"}"
-                        context.contentResolver.openInputStream(apkUri)?.use { input ->
-                            File(tempApkPath).outputStream().use { output -> input.copyTo(output) }
-                        }
-                        decompileProgress = 0.2f
-
-                        if (isSplit) {
-                            val bundleFile = File(tempApkPath)
-                            val bundleExtractDir = File(context.cacheDir, "temp_bundle_${System.currentTimeMillis()}").apply { mkdirs() }
-                            ZipFile(bundleFile).extractAll(bundleExtractDir.absolutePath)
-
-                            val apkFiles = bundleExtractDir.walkTopDown().filter { it.extension == "apk" }.toList()
-                            splitCount = apkFiles.size
-                            addLog(Log.INFO, getString(context, R.string.vm_found_in_bundle, splitCount))
-
-                            val baseApk = apkFiles.firstOrNull { it.nameWithoutExtension.contains("base", ignoreCase = true) } ?: apkFiles.first()
-                            val info = pm.getPackageArchiveInfo(baseApk.absolutePath, 0)
-                            appName = info?.applicationInfo?.loadLabel(pm)?.toString() ?: "Unknown"
-                            packageName = info?.packageName ?: "unknown"
-
-                            bundleExtractDir.deleteRecursively()
-                        } else {
-                            val info = pm.getPackageArchiveInfo(tempApkPath, 0)
-                            appName = info?.applicationInfo?.loadLabel(pm)?.toString() ?: "Unknown"
-                            packageName = info?.packageName ?: "unknown"
-                        }
-
-                        actualApkPath = tempApkPath
-                        addLog(Log.INFO, getString(context, R.string.vm_package_info, packageName))
+                        apkUri
                     } else {
                         addLog(Log.INFO, getString(context, R.string.vm_reading_installed_app))
-                        val info = pm.getPackageArchiveInfo(apkPath!!, 0)
-                        appName = info?.applicationInfo?.loadLabel(pm)?.toString() ?: "Unknown"
-                        packageName = info?.packageName ?: "unknown"
-                        actualApkPath = apkPath
-                        addLog(Log.INFO, getString(context, R.string.vm_package_info, packageName))
-                        decompileProgress = 0.2f
+                        Uri.fromFile(File(apkPath!!))
                     }
+                    decompileProgress = 0.2f
 
                     if (isSplit) {
                         addLog(Log.INFO, getString(context, R.string.vm_extracting_split_bundle))
@@ -273,17 +226,19 @@ class PatcherViewModel : ViewModel() {
                     }
                     decompileProgress = 0.3f
 
-                    addLog(Log.INFO, getString(context, R.string.vm_decompiling_dex))
-                    decompileProgress = 0.5f
-
-                    val extractDir = Patcher.patchApk(context, Uri.parse("file://$actualApkPath"))
+                    val patchWorkspace = Patcher.patchApk(context, sourceUri)
                     decompileProgress = 0.8f
 
-                    if (extractDir != null) {
+                    if (patchWorkspace != null) {
+                        val (appName, packageName) = Patcher.readPackageInfo(context, patchWorkspace)
+                        addLog(Log.INFO, getString(context, R.string.vm_package_info, packageName))
+                        val splitCount = if (isSplit) patchWorkspace.splits.size + 1 else 0
+
                         addLog(Log.INFO, getString(context, R.string.vm_parsing_manifest))
-                        val manifestFile = File(extractDir, "AndroidManifest.xml")
-                        val launcherActivity = ManifestParser.findLauncherActivity(manifestFile)
-                        val activities = listOfNotNull(launcherActivity)
+                        val manifestFile = patchWorkspace.manifestFile
+                        val summary = ManifestParser.summary(manifestFile)
+                        // Launcher first, it is the default target
+                        val activities = summary?.let { listOfNotNull(it.launcherActivity) + it.activities }.orEmpty().distinct()
                         decompileProgress = 0.9f
 
                         addLog(Log.INFO, getString(context, R.string.vm_found_activities, activities.size))
@@ -292,7 +247,7 @@ class PatcherViewModel : ViewModel() {
 
                         withContext(Dispatchers.Main) {
                             selectedApp = AppInfo(appName, packageName, apkUri, apkPath, isSplit, splitCount)
-                            extractedDir = extractDir
+                            workspace = patchWorkspace
                             availableActivities = activities
                             patchConfig = patchConfig.copy(selectedActivity = activities.firstOrNull())
                             patcherState = PatcherState.CONFIGURATION
@@ -305,8 +260,8 @@ class PatcherViewModel : ViewModel() {
                     e.printStackTrace()
                     withContext(Dispatchers.Main) {
                         patcherState = PatcherState.ERROR
-                        extractedDir?.parentFile?.let { CleanupManager.deleteWorkspace(it) }
-                        extractedDir = null
+                        workspace?.let { CleanupManager.deleteWorkspace(it.dir) }
+                        workspace = null
                     }
                 }
             }
@@ -339,26 +294,15 @@ class PatcherViewModel : ViewModel() {
                         addLog(Log.INFO, getString(context, R.string.vm_target_activity, it))
                     }
 
-                    val manifestFile = File(extractedDir!!, "AndroidManifest.xml")
-
-                    if (patchConfig.debuggable) {
-                        addLog(Log.INFO, getString(context, R.string.vm_applying_debuggable))
-                        ManifestEditor.setDebuggable(context, manifestFile, true)
-                    }
-
-                    if (patchConfig.overrideVersionCode) {
-                        addLog(Log.INFO, getString(context, R.string.vm_overriding_version_code))
-                        ManifestEditor.setVersionCode(context, manifestFile, 1)
-                    }
-
                     if (selectedApp?.isSplitApk == true) {
                         addLog(Log.INFO, getString(context, R.string.vm_split_will_be_patched))
                     }
 
                     addLog(Log.INFO, getString(context, R.string.vm_preparing_patched))
 
-                    val signedApk = Patcher.rebuildApk(context, extractedDir!!)
+                    val signedApk = Patcher.rebuildApk(context, workspace!!, patchConfig)
                         ?: throw Exception("Failed to rebuild APK")
+                    val metrics = workspace!!.metrics.snapshot()
 
                     addLog(Log.INFO, getString(context, R.string.vm_rebuild_success))
                     addLog(Log.INFO, getString(context, R.string.vm_output_path, signedApk.absolutePath))
@@ -372,19 +316,61 @@ class PatcherViewModel : ViewModel() {
 
                     withContext(Dispatchers.Main) {
                         outputApkFile = signedApk
+                        patchMetrics = metrics
                         patcherState = PatcherState.FINISHED
-                        extractedDir?.parentFile?.let { CleanupManager.deleteWorkspace(it) }
-                        extractedDir = null
+                        workspace?.let { CleanupManager.deleteWorkspace(it.dir) }
+                        workspace = null
                     }
                 } catch (e: Exception) {
                     addLog(Log.ERROR, getString(context, R.string.vm_patch_failed, e.message ?: "Unknown error"))
                     e.printStackTrace()
                     withContext(Dispatchers.Main) {
                         patcherState = PatcherState.ERROR
-                        extractedDir?.parentFile?.let { CleanupManager.deleteWorkspace(it) }
-                        extractedDir = null
+                        workspace?.let { CleanupManager.deleteWorkspace(it.dir) }
+                        workspace = null
+                    }
+                }
+            }
+        }
+    }
+
+    private fun startBatch(context: Context, items: List<BatchItem>) {
+        // The selected activity belongs to the last decompiled app, batch jobs use each launcher
+        val config = patchConfig.copy(selectedActivity = null)
+        viewModelScope.launch {
+            reset()
+            patchConfig = config
+            patcherState = PatcherState.PATCHING
+            Patcher.setViewModel(this@PatcherViewModel)
+
+            withContext(Dispatchers.IO) {
+                val concurrency = SettingsManager(context).getFloatValue(
+                    PatchBatch.CONCURRENCY_KEY,
+                    PatchBatch.DEFAULT_CONCURRENCY.toFloat()
+                ).toInt()
+                addLog(Log.INFO, getString(context, R.string.vm_batch_starting, items.size, concurrency))
+
+                val start = System.currentTimeMillis()
+                val batch = PatchBatch(context, concurrency, config)
+                batchDir = batch.dir
+                val results = batch.run(items) { result ->
+                    if (result.isSuccess) {
+                        addLog(Log.INFO, getString(context, R.string.vm_batch_item_done, result.item.label, result.timeMs))
+                    } else {
+                        addLog(Log.ERROR, getString(context, R.string.vm_batch_item_failed, result.item.label, result.error ?: "Unknown error"))
                     }
                 }
+
+                val succeeded = results.count { it.isSuccess }
+                addLog(Log.INFO, getString(context, R.string.vm_batch_summary, succeeded, results.size - succeeded, System.currentTimeMillis() - start))
+                results.filter { !it.isSuccess }.forEach {
+                    addLog(Log.WARN, getString(context, R.string.vm_batch_item_failed, it.item.label, it.error ?: "Unknown error"))
+                }
+
+                withContext(Dispatchers.Main) {
+                    batchResults = results
+                    patcherState = if (succeeded > 0) PatcherState.FINISHED else PatcherState.ERROR
+                }
             }
         }
     }
@@ -392,9 +378,13 @@ class PatcherViewModel : ViewModel() {
     private fun reset() {
         patcherState = PatcherState.EMPTY
         selectedApp = null
-        extractedDir?.parentFile?.let { CleanupManager.deleteWorkspace(it) }
-        extractedDir = null
+        workspace?.let { CleanupManager.deleteWorkspace(it.dir) }
+        workspace = null
         outputApkFile = null
+        patchMetrics = null
+        batchResults = emptyList()
+        batchDir?.let { CleanupManager.deleteWorkspace(it) }
+        batchDir = null
         savedToDownloads = false
         logs.clear()
         patchConfig = PatchConfig()
@@ -405,33 +395,35 @@ class PatcherViewModel : ViewModel() {
         viewModelScope.launch {
             withContext(Dispatchers.IO) {
                 try {
-                    val sourceFile = outputApkFile ?: return@withContext
-                    val appName = selectedApp?.name?.replace(" ", "_") ?: "patched"
-                    val fileName = "${appName}_modded.${sourceFile.extension}"
-
-                    val settings = SettingsManager(context)
-                    val resolver = context.contentResolver
-                    val uriString = settings.getStringValue("save_directory_uri", "")
-
-                    if (uriString.isNotEmpty()) {
-                        try {
-                            val treeUri = Uri.parse(uriString)
-                            if (resolver.persistedUriPermissions.any { it.uri == treeUri && it.isWritePermission }) {
-                                copyToUri(context, sourceFile, treeUri, fileName)
-                                withContext(Dispatchers.Main) {
-                                    addLog(Log.INFO, getString(context, R.string.vm_saved_to_folder, fileName))
-                                    savedToDownloads = true
-                                }
-                                return@withContext
-                            }
-                        } catch (_: Exception) {}
+                    val outputs = if (batchResults.isNotEmpty()) {
+                        batchResults.mapNotNull { result -> result.output?.let { result.item.label to it } }
+                    } else {
+                        val sourceFile = outputApkFile ?: return@withContext
+                        listOf((selectedApp?.name ?: "patched") to sourceFile)
                     }
 
-                    val fallbackDir = File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS), "Mirage").apply { mkdirs() }
-                    sourceFile.copyTo(File(fallbackDir, fileName), overwrite = true)
+                    outputs.forEach { (name, sourceFile) ->
+                        val fileName = "${name.replace(" ", "_")}_modded.${sourceFile.extension}"
+                        // The v4 signature must sit next to the APK for an incremental install
+                        val v4File = APKSigner.getV4SignatureFile(sourceFile)
+                        val files = mutableListOf(sourceFile to fileName)
+                        if (v4File.isFile) {
+                            files += v4File to APKSigner.getV4SignatureFile(File(fileName)).name
+                        }
+
+                        files.forEach { (file, savedName) ->
+                            val message = if (saveOutput(context, file, savedName)) {
+                                R.string.vm_saved_to_folder
+                            } else {
+                                R.string.vm_saved_to_downloads
+                            }
+                            withContext(Dispatchers.Main) {
+                                addLog(Log.INFO, getString(context, message, savedName))
+                            }
+                        }
+                    }
 
                     withContext(Dispatchers.Main) {
-                        addLog(Log.INFO, getString(context, R.string.vm_saved_to_downloads, fileName))
                         savedToDownloads = true
                     }
                 } catch (e: Exception) {
@@ -443,9 +435,34 @@ class PatcherViewModel : ViewModel() {
         }
     }
 
+    /**
+     * Copies an output to the picked save folder, or to Downloads/Mirage when no folder is
+     * set or writable. Returns true if it went to the picked folder.
+     */
+    private fun saveOutput(context: Context, sourceFile: File, fileName: String): Boolean {
+        val settings = SettingsManager(context)
+        val resolver = context.contentResolver
+        val uriString = settings.getStringValue("save_directory_uri", "")
+
+        if (uriString.isNotEmpty()) {
+            try {
+                val treeUri = Uri.parse(uriString)
+                if (resolver.persistedUriPermissions.any { it.uri == treeUri && it.isWritePermission }) {
+                    copyToUri(context, sourceFile, treeUri, fileName)
+                    return true
+                }
+            } catch (_: Exception) {}
+        }
+
+        val fallbackDir = File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS), "Mirage").apply { mkdirs() }
+        sourceFile.copyTo(File(fallbackDir, fileName), overwrite = true)
+        return false
+    }
+
     fun copyToUri(context: Context, source: File, treeUri: Uri, fileName: String) {
         val docTree = DocumentFile.fromTreeUri(context, treeUri) ?: return
-        val outFile = docTree.findFile(fileName) ?: docTree.createFile("application/vnd.android.package-archive", fileName) ?: return
+        val mimeType = if (source.extension == "idsig") "application/octet-stream" else "application/vnd.android.package-archive"
+        val outFile = docTree.findFile(fileName) ?: docTree.createFile(mimeType, fileName) ?: return
         context.contentResolver.openOutputStream(outFile.uri)?.use { out ->
             source.inputStream().use { input -> input.copyTo(out) }
         }
@@ -461,6 +478,7 @@ class PatcherViewModel : ViewModel() {
         ) : ViewAction()
         object ConfigureComplete : ViewAction()
         data class StartPatch(val context: Context) : ViewAction()
+        data class StartBatch(val context: Context, val items: List<BatchItem>) : ViewAction()
         data class SaveToDownloads(val context: Context) : ViewAction()
         object Reset : ViewAction()
     }
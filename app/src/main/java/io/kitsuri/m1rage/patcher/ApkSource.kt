@@ -0,0 +1,47 @@
+package io.kitsuri.m1rage.patcher
+
+import io.kitsuri.m1rage.utils.ApkRebuilder
+import io.kitsuri.m1rage.utils.ManifestParser
+import io.kitsuri.m1rage.utils.ManifestSummary
+import java.io.File
+import java.io.IOException
+
+/**
+ * An APK a workspace is built from: either a file of its own, or a stored [member] of the
+ * bundle [file], which is read in place without extracting it.
+ */
+class ApkSource(val file: File, val member: String? = null) {
+
+    /**
+     * File name of the APK, the last path segment of [member] for a bundle member.
+     */
+    val name: String
+        get() = member?.substringAfterLast('/') ?: file.name
+
+    val nameWithoutExtension: String
+        get() = name.substringBeforeLast('.')
+
+    /**
+     * Opens a rebuilder over the APK. Throws [IOException] if it is not a readable APK.
+     */
+    fun open(): ApkRebuilder =
+        if (member == null) {
+            ApkRebuilder(file)
+        } else {
+            ApkRebuilder(file).openNested(member) ?: throw IOException("$member not found in ${file.name}")
+        }
+
+    /**
+     * Summary of the APK's manifest, or null if it cannot be read.
+     */
+    fun summary(): ManifestSummary? {
+        if (member == null) return ManifestParser.apkSummary(file)
+        return try {
+            open().readEntry(PatchWorkspace.MANIFEST)?.let { ManifestSummary.read(it) }
+        } catch (e: IOException) {
+            null
+        }
+    }
+
+    override fun toString(): String = if (member == null) file.name else "${file.name}!/$member"
+}
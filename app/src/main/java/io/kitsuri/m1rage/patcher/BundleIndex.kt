@@ -0,0 +1,113 @@
+package io.kitsuri.m1rage.patcher
+
+import io.kitsuri.m1rage.utils.ApkRebuilder
+import io.kitsuri.m1rage.utils.ManifestSummary
+import java.io.File
+import java.io.IOException
+import java.util.zip.ZipEntry
+
+/**
+ * Index of a split bundle (`.apks` / `.xapk`) read from its central directory. The member
+ * APKs are listed without extracting anything. Stored members are read in place through
+ * their own central directory; compressed ones have no random access and are extracted to
+ * [extractDir] once, on first use, and that file serves every later read.
+ *
+ * @param bundle Bundle archive, only read
+ * @param extractDir Directory compressed members are extracted to
+ */
+class BundleIndex(val bundle: File, private val extractDir: File) {
+
+    private val archive = ApkRebuilder(bundle)
+
+    /**
+     * Entry names of the member APKs, in central directory order.
+     */
+    val apkNames: List<String> = archive.entryNames.filter {
+        it.endsWith(".apk", ignoreCase = true) && !it.endsWith("/")
+    }
+
+    /**
+     * The base APK: the member whose manifest declares no `split`. Only if no manifest says
+     * so, a member named exactly `base.apk`, otherwise null. Throws [IOException] if a member
+     * is not a readable APK.
+     */
+    val baseName: String? by lazy {
+        apkNames.firstOrNull { name -> manifestOf(name)?.let { it.split == null } == true }
+            ?: apkNames.firstOrNull { it.substringAfterLast('/') == BASE_APK }
+    }
+
+    val splitNames: List<String>
+        get() = apkNames.filter { it != baseName }
+
+    /**
+     * Manifest summary of the base APK, read from the bundle without extracting it.
+     */
+    val baseManifest: ManifestSummary? by lazy {
+        baseName?.let { manifestOf(it) }
+    }
+
+    val packageName: String?
+        get() = baseManifest?.packageName
+
+    /**
+     * The `android:label` of the base application when it is a literal. Resource references
+     * need the base `resources.arsc` and are left to the package manager, which only reads
+     * APK files.
+     */
+    val label: String?
+        get() = baseManifest?.applicationLabel
+
+    private val sources = HashMap<String, ApkSource>()
+    private val manifests = HashMap<String, ManifestSummary?>()
+
+    /**
+     * Members extracted so far, with their files.
+     */
+    val extracted: Map<String, File>
+        get() = synchronized(sources) {
+            sources.filterValues { it.member == null }.mapValues { it.value.file }
+        }
+
+    fun uncompressedSize(name: String): Long = archive.getUncompressedSize(name)
+
+    /**
+     * The member APK [name] as a workspace source: the member itself if it is stored, else
+     * the file it was extracted to.
+     */
+    fun source(name: String): ApkSource = synchronized(sources) {
+        sources.getOrPut(name) {
+            if (archive.getMethod(name) == ZipEntry.STORED) {
+                ApkSource(bundle, name)
+            } else {
+                val target = File(extractDir, name)
+                if (!target.canonicalPath.startsWith(extractDir.canonicalPath + File.separator)) {
+                    throw IllegalArgumentException("Invalid entry name: $name")
+                }
+                target.parentFile?.mkdirs()
+                archive.extract(name, target)
+                ApkSource(target)
+            }
+        }
+    }
+
+    /**
+     * Summarizes the AndroidManifest.xml of a member APK, read through the member's own
+     * central directory. Returns null if the member has no manifest.
+     *
+     * @throws IOException if the member is not a readable APK
+     */
+    private fun manifestOf(name: String): ManifestSummary? = synchronized(manifests) {
+        manifests.getOrPut(name) {
+            try {
+                // Deflated manifests are inflated into the heap, stored ones stay mapped
+                source(name).open().readEntry(PatchWorkspace.MANIFEST)?.let { ManifestSummary.read(it) }
+            } catch (e: IOException) {
+                throw IOException("Failed to read the manifest of $name: ${e.message}", e)
+            }
+        }
+    }
+
+    companion object {
+        private const val BASE_APK = "base.apk"
+    }
+}
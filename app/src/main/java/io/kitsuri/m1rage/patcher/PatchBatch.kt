@@ -0,0 +1,122 @@
+package io.kitsuri.m1rage.patcher
+
+import android.content.Context
+import android.net.Uri
+import io.kitsuri.m1rage.model.PatchConfig
+import io.kitsuri.m1rage.utils.CleanupManager
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import java.io.File
+
+/**
+ * One app of a batch: either the APK paths of an installed package (base first) or a
+ * picked APK / split bundle file.
+ */
+data class BatchItem(
+    val label: String,
+    val apkPaths: List<String> = emptyList(),
+    val uri: Uri? = null
+)
+
+data class BatchResult(
+    val item: BatchItem,
+    val output: File?,
+    val error: String?,
+    val timeMs: Long
+) {
+    val isSuccess: Boolean
+        get() = output != null
+}
+
+/**
+ * Patches many apps in one run, at most [concurrency] at a time, every one with [config].
+ * All jobs share one [PatchResources], so the signing key and the loader assets are loaded
+ * once per batch.
+ */
+class PatchBatch(
+    private val context: Context,
+    private val concurrency: Int,
+    private val config: PatchConfig
+) {
+
+    private val resources = PatchResources(context)
+
+    /**
+     * Directory the outputs of the batch are written to, under the workspace root. The
+     * caller deletes it with [CleanupManager.deleteWorkspace] once the outputs are no longer
+     * needed.
+     */
+    val dir = File(context.getExternalFilesDir(null), "apk_workspace/batch_${System.currentTimeMillis()}")
+
+    /**
+     * Runs every item and returns the results in item order. [onResult] is called as soon
+     * as each job ends, from the job's thread.
+     */
+    suspend fun run(
+        items: List<BatchItem>,
+        onResult: (BatchResult) -> Unit = {}
+    ): List<BatchResult> = coroutineScope {
+        val semaphore = Semaphore(concurrency.coerceAtLeast(1))
+
+        items.mapIndexed { index, item ->
+            async(Dispatchers.IO) {
+                semaphore.withPermit {
+                    val outputDir = File(dir, "${index}_${item.label.replace(UNSAFE_NAME_CHARS, "_")}")
+                    patch(item, outputDir).also(onResult)
+                }
+            }
+        }.awaitAll()
+    }
+
+    private suspend fun patch(item: BatchItem, outputDir: File): BatchResult {
+        val start = System.nanoTime()
+        var workspace: PatchWorkspace? = null
+        return try {
+            workspace = openWorkspace(item)
+            val output = Patcher.rebuildApk(context, workspace, config, outputDir)
+                ?: throw Exception("Failed to rebuild ${item.label}")
+            BatchResult(item, output, null, elapsedMs(start))
+        } catch (e: Exception) {
+            BatchResult(item, null, e.message ?: "Unknown error", elapsedMs(start))
+        } finally {
+            workspace?.let { CleanupManager.deleteWorkspace(it.dir) }
+        }
+    }
+
+    private suspend fun openWorkspace(item: BatchItem): PatchWorkspace {
+        if (item.uri != null) {
+            return Patcher.patchApk(context, item.uri, resources)
+                ?: throw Exception("Failed to prepare ${item.label}")
+        }
+
+        val apks = item.apkPaths.map { File(it) }.filter { it.exists() }
+        if (apks.isEmpty()) {
+            throw Exception("No APK found for ${item.label}")
+        }
+
+        val workspace = Patcher.openWorkspace(context, apks.first(), apks.drop(1), resources)
+        try {
+            if (!workspace.hasEntry(PatchWorkspace.MANIFEST)) {
+                throw Exception("AndroidManifest.xml not found in ${item.label}")
+            }
+            Patcher.prepareLoader(context, workspace)
+        } catch (e: Exception) {
+            CleanupManager.deleteWorkspace(workspace.dir)
+            throw e
+        }
+        return workspace
+    }
+
+    private fun elapsedMs(start: Long) = (System.nanoTime() - start) / 1_000_000
+
+    companion object {
+        const val CONCURRENCY_KEY = "batch_concurrency"
+        const val DEFAULT_CONCURRENCY = 2
+
+        private val UNSAFE_NAME_CHARS = Regex("[^A-Za-z0-9._-]")
+    }
+}
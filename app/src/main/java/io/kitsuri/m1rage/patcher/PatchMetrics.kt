@@ -0,0 +1,232 @@
+package io.kitsuri.m1rage.patcher
+
+import io.kitsuri.m1rage.utils.ApkRebuilder
+import io.kitsuri.m1rage.utils.SignaturePlan
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
+import java.io.File
+import java.util.EnumMap
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+enum class PatchStage {
+    INGEST,
+    EXTRACT,
+    MANIFEST,
+    DEX,
+    LIB,
+    ZIP,
+    ALIGN,
+    SIGN,
+    BUNDLE
+}
+
+@Serializable
+data class StageMetrics(
+    val stage: PatchStage,
+    val wallTimeMs: Long = 0,
+    val bytesRead: Long = 0,
+    val bytesWritten: Long = 0,
+    val entryCount: Int = 0,
+    val heapHighWaterBytes: Long = 0
+)
+
+/**
+ * Signature schemes picked by [SignaturePlan] for the outputs of a job.
+ */
+@Serializable
+data class SigningMetrics(
+    val minSdkVersion: Int,
+    val schemes: List<String>
+)
+
+@Serializable
+data class PatchMetrics(
+    val startedAt: Long,
+    val totalTimeMs: Long,
+    val stages: List<StageMetrics>,
+    val signing: SigningMetrics? = null
+)
+
+/**
+ * Collects [StageMetrics] for one patch job. A stage that runs more than once, or in
+ * several concurrent jobs (e.g. one ZIP per split), is summed: its wall time is then the
+ * time spent in that stage across jobs, not the elapsed time. A stage opened inside
+ * another on the same thread (e.g. EXTRACT of the manifest within MANIFEST) is counted
+ * once, in the inner stage.
+ */
+class PatchMetricsRecorder {
+
+    private val startedAt = System.currentTimeMillis()
+    private val startNanos = System.nanoTime()
+    private val stages = EnumMap<PatchStage, StageMetrics>(PatchStage::class.java)
+    // Innermost running stage of each thread, the enclosing ones are reached through parent
+    private val current = ThreadLocal<StageCounter?>()
+
+    @Volatile
+    private var signing: SigningMetrics? = null
+
+    /**
+     * Byte and entry counters of a running stage. ZIP, ALIGN and SIGN happen in the same
+     * pass, so the time of [derive]d stages is taken out of the parent stage.
+     */
+    class StageCounter internal constructor(internal val parent: StageCounter?) {
+        internal val childNanos = AtomicLong()
+        internal val bytesRead = AtomicLong()
+        internal val bytesWritten = AtomicLong()
+        internal val entryCount = AtomicInteger()
+        internal val derived = mutableListOf<StageMetrics>()
+
+        fun read(bytes: Long) {
+            bytesRead.addAndGet(bytes)
+        }
+
+        fun written(bytes: Long) {
+            bytesWritten.addAndGet(bytes)
+        }
+
+        fun entries(count: Int) {
+            entryCount.addAndGet(count)
+        }
+
+        fun derive(stage: PatchStage, nanos: Long, bytesRead: Long, bytesWritten: Long, entryCount: Int) {
+            synchronized(derived) {
+                derived.add(StageMetrics(stage, nanos / 1_000_000, bytesRead, bytesWritten, entryCount))
+            }
+        }
+    }
+
+    fun <T> stage(stage: PatchStage, block: (StageCounter) -> T): T {
+        val counter = StageCounter(current.get())
+        current.set(counter)
+        val heap = HeapWatch()
+        HeapSampler.watch(heap)
+        val start = System.nanoTime()
+        try {
+            return block(counter)
+        } finally {
+            val elapsed = System.nanoTime() - start
+            current.set(counter.parent)
+            counter.parent?.childNanos?.addAndGet(elapsed)
+            HeapSampler.unwatch(heap)
+            val peak = heap.peak.get()
+
+            // Nested stages record their own time, only the remainder belongs to this one
+            val derived = synchronized(counter.derived) { counter.derived.toList() }
+            val ownMs = (elapsed - counter.childNanos.get()) / 1_000_000
+            val parentMs = (ownMs - derived.sumOf { it.wallTimeMs }).coerceAtLeast(0)
+            add(
+                StageMetrics(
+                    stage, parentMs, counter.bytesRead.get(), counter.bytesWritten.get(),
+                    counter.entryCount.get(), peak
+                )
+            )
+            derived.forEach { add(it.copy(heapHighWaterBytes = peak)) }
+        }
+    }
+
+    /**
+     * Records one [ApkRebuilder.writeTo] call as ZIP, with its alignment padding and signer
+     * time split out into ALIGN and SIGN.
+     */
+    fun zip(rebuilder: ApkRebuilder, write: () -> Unit) = stage(PatchStage.ZIP) { counter ->
+        write()
+        rebuilder.stats?.let { stats ->
+            counter.read(stats.bytesRead)
+            counter.written(stats.bytesWritten)
+            counter.entries(stats.entriesCopied + stats.entriesWritten)
+            counter.derive(PatchStage.ALIGN, 0, 0, stats.paddingBytes, stats.alignedEntries)
+            counter.derive(PatchStage.SIGN, stats.signNanos, 0, 0, 0)
+        }
+    }
+
+    fun signing(plan: SignaturePlan) {
+        signing = SigningMetrics(plan.minSdkVersion, plan.schemes)
+    }
+
+    fun snapshot(): PatchMetrics = synchronized(stages) {
+        PatchMetrics(
+            startedAt = startedAt,
+            totalTimeMs = (System.nanoTime() - startNanos) / 1_000_000,
+            stages = stages.values.toList(),
+            signing = signing
+        )
+    }
+
+    fun writeJson(file: File): PatchMetrics {
+        val metrics = snapshot()
+        file.writeText(json.encodeToString(metrics))
+        return metrics
+    }
+
+    private fun add(metrics: StageMetrics) = synchronized(stages) {
+        val previous = stages[metrics.stage]
+        stages[metrics.stage] = if (previous == null) metrics else previous.copy(
+            wallTimeMs = previous.wallTimeMs + metrics.wallTimeMs,
+            bytesRead = previous.bytesRead + metrics.bytesRead,
+            bytesWritten = previous.bytesWritten + metrics.bytesWritten,
+            entryCount = previous.entryCount + metrics.entryCount,
+            heapHighWaterBytes = maxOf(previous.heapHighWaterBytes, metrics.heapHighWaterBytes)
+        )
+    }
+
+    private class HeapWatch {
+        val peak = AtomicLong(usedHeap())
+
+        fun sample(used: Long) {
+            peak.accumulateAndGet(used) { a, b -> maxOf(a, b) }
+        }
+    }
+
+    /**
+     * Samples the used heap while at least one stage is running. A single daemon thread
+     * serves every recorder; the sampling task only runs while there is something to watch.
+     */
+    private object HeapSampler {
+        private const val INTERVAL_MS = 10L
+
+        private val watches = ConcurrentHashMap.newKeySet<HeapWatch>()
+        private val executor = Executors.newSingleThreadScheduledExecutor { runnable ->
+            Thread(runnable, "PatchMetricsHeapSampler").apply { isDaemon = true }
+        }
+        private var task: ScheduledFuture<*>? = null
+
+        @Synchronized
+        fun watch(watch: HeapWatch) {
+            watches.add(watch)
+            if (task == null) {
+                task = executor.scheduleAtFixedRate({
+                    val used = usedHeap()
+                    watches.forEach { it.sample(used) }
+                }, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS)
+            }
+        }
+
+        @Synchronized
+        fun unwatch(watch: HeapWatch) {
+            watch.sample(usedHeap())
+            watches.remove(watch)
+            if (watches.isEmpty()) {
+                task?.cancel(false)
+                task = null
+            }
+        }
+    }
+
+    companion object {
+        const val FILE_SUFFIX = ".metrics.json"
+
+        private val json = Json {
+            prettyPrint = true
+            encodeDefaults = true
+        }
+
+        private fun usedHeap(): Long =
+            Runtime.getRuntime().let { it.totalMemory() - it.freeMemory() }
+    }
+}
@@ -0,0 +1,199 @@
+package io.kitsuri.m1rage.patcher
+
+import android.content.Context
+import android.util.Log
+import io.kitsuri.m1rage.model.PatchConfig
+import io.kitsuri.m1rage.model.PatchMode
+import io.kitsuri.m1rage.model.SettingsManager
+import java.io.File
+import java.io.IOException
+import java.nio.file.Files
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Content-addressed cache of finished outputs. The key hashes every input the output is
+ * built from: the original APKs, the loader dex and native libs, the
+ * [io.kitsuri.m1rage.model.PatchConfig], the signing certificate and the signature schemes.
+ * It is known as soon as the APKs are readable, so a hit skips the whole patch.
+ *
+ * Files written next to the output, such as its v4 signature or the member APKs of a
+ * bundle, are stored as sidecars of the entry and restored with it. Entries are evicted
+ * least recently used first once the cache grows past [maxBytes]. A hit only refreshes the
+ * entry's modification time, which is the LRU order.
+ */
+class PatchOutputCache(private val dir: File, private val maxBytes: Long) {
+
+    /**
+     * Returns the cache key of the output [workspace] builds with [config]. Only reads the
+     * source APKs of the workspace, not its delta, so it can run before anything is patched.
+     */
+    fun key(workspace: PatchWorkspace, config: PatchConfig): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        digest.update("v$CACHE_VERSION\n")
+
+        // Copied inputs land at a new path every run and are hashed while they are copied
+        val sourceHash = workspace.sourceHash
+        digest.update("source\n")
+        digest.update(sourceHash ?: fileHash(workspace.sourceApk.file))
+        workspace.sourceApk.member?.let { digest.update("member $it\n") }
+        workspace.splits.sortedBy { it.name }.forEach {
+            // Members read in place from a bundle all hash the bundle, cached after the first
+            digest.update("split ${it.member ?: it.name}\n")
+            if (sourceHash == null) digest.update(fileHash(it.file))
+        }
+
+        val resources = workspace.resources
+        digest.update("loader\n")
+        digest.update(resources.loaderDexHash)
+        resources.nativeLibHashes.toSortedMap().forEach { (name, hash) ->
+            digest.update("lib $name\n")
+            digest.update(hash)
+        }
+
+        // Only MAPI patches an activity. It is resolved as injectActivityLoader does, so no
+        // selection and an explicit launcher or one of its aliases share the output.
+        val activity = if (config.mode == PatchMode.MAPI) {
+            val summary = workspace.sourceApk.summary()
+            config.selectedActivity?.let { summary?.targetActivity(it) ?: it } ?: summary?.launcherActivity
+        } else {
+            null
+        }
+        digest.update(
+            "config ${config.mode} ${config.debuggable} ${config.overrideVersionCode} $activity " +
+                    "${config.pageAlignedLibs} ${config.libPageSize}\n"
+        )
+
+        // A new signing key or scheme set must not be served an output signed with the old one
+        resources.signerConfig.certificates.forEach {
+            digest.update("cert\n")
+            digest.update(MessageDigest.getInstance("SHA-256").digest(it.encoded))
+        }
+        digest.update("schemes ${workspace.signaturePlan.schemes.joinToString("+")}\n")
+
+        return digest.digest().toHex()
+    }
+
+    /**
+     * Restores the output cached under [key] to [output], along with the sidecars named
+     * [sidecarNames] next to it. Returns false on a miss, including an entry whose sidecars
+     * were evicted.
+     */
+    fun restore(key: String, output: File, sidecarNames: List<String> = emptyList()): Boolean {
+        val cached = File(dir, "$key.${output.extension}")
+        val sidecars = sidecarNames.map { File(dir, "${cached.name}.$it") }
+        if (!cached.isFile || sidecars.any { !it.isFile }) return false
+
+        val now = System.currentTimeMillis()
+        linkOrCopy(cached, output)
+        cached.setLastModified(now)
+        sidecars.zip(sidecarNames).forEach { (sidecar, name) ->
+            linkOrCopy(sidecar, File(output.parentFile, name))
+            sidecar.setLastModified(now)
+        }
+        return true
+    }
+
+    /**
+     * Stores [output] and its [sidecars] under [key], then evicts old entries. Sidecars are
+     * files in the directory of [output] that belong to it, e.g. `modded_signed.apk.idsig`
+     * or the member APKs of a bundle, and are stored under their name. The entry
+     * just stored is never evicted, even if it alone is larger than the cache.
+     */
+    fun put(key: String, output: File, sidecars: List<File> = emptyList()) {
+        dir.mkdirs()
+        val cached = File(dir, "$key.${output.extension}")
+        val storedSidecars = sidecars.map { File(dir, "${cached.name}.${it.name}") }
+        // The output goes last, so an entry is only visible once its sidecars are complete
+        sidecars.zip(storedSidecars).forEach { (sidecar, target) -> store(sidecar, target) }
+        store(output, cached)
+        evict(keep = storedSidecars.toSet() + cached)
+    }
+
+    private fun store(source: File, target: File) {
+        // Unique, as concurrent jobs with the same key store the same entry
+        val temp = File.createTempFile("${target.name}.", ".tmp", dir)
+        try {
+            linkOrCopy(source, temp)
+            if (!temp.renameTo(target)) {
+                throw IOException("Failed to store ${target.name}")
+            }
+        } finally {
+            temp.delete()
+        }
+    }
+
+    private fun evict(keep: Set<File>) {
+        val entries = dir.listFiles { file -> file.isFile && !file.name.endsWith(".tmp") }
+            ?.sortedBy { it.lastModified() }
+            ?: return
+
+        var total = entries.sumOf { it.length() }
+        for (entry in entries) {
+            if (total <= maxBytes) break
+            if (entry in keep) continue
+            val size = entry.length()
+            if (entry.delete()) {
+                total -= size
+                Log.d(TAG, "Evicted ${entry.name}")
+            }
+        }
+    }
+
+    companion object {
+        private const val TAG = "PatchOutputCache"
+        private const val CACHE_DIR = "patch_cache"
+        // Bump when the output format changes (alignment, signing, entry layout, sidecars)
+        private const val CACHE_VERSION = 4
+
+        const val SIZE_KEY = "output_cache_mb"
+        const val DEFAULT_SIZE_MB = 2048
+
+        // Hashes of source APKs used in place, keyed by path, size and modification time
+        private val fileHashes = ConcurrentHashMap<String, ByteArray>()
+
+        /**
+         * Opens the cache with the size from the settings, or returns null if it is disabled.
+         */
+        fun open(context: Context): PatchOutputCache? {
+            val sizeMb = SettingsManager(context).getFloatValue(SIZE_KEY, DEFAULT_SIZE_MB.toFloat()).toLong()
+            if (sizeMb <= 0) return null
+            val root = context.getExternalFilesDir(null) ?: return null
+            return PatchOutputCache(File(root, CACHE_DIR), sizeMb * 1024 * 1024)
+        }
+
+        /**
+         * Places [source] at [target] with a hard link when the file system allows it,
+         * otherwise with a copy.
+         */
+        fun linkOrCopy(source: File, target: File) {
+            target.delete()
+            try {
+                Files.createLink(target.toPath(), source.toPath())
+            } catch (e: Exception) {
+                source.copyTo(target, overwrite = true)
+            }
+        }
+
+        private fun fileHash(file: File): ByteArray {
+            val id = "${file.absolutePath}:${file.length()}:${file.lastModified()}"
+            return fileHashes.getOrPut(id) { hashFile(file) }
+        }
+
+        private fun hashFile(file: File): ByteArray {
+            val digest = MessageDigest.getInstance("SHA-256")
+            file.inputStream().use { input ->
+                val buffer = ByteArray(1 shl 20)
+                var len: Int
+                while (input.read(buffer).also { len = it } != -1) {
+                    digest.update(buffer, 0, len)
+                }
+            }
+            return digest.digest()
+        }
+
+        private fun MessageDigest.update(text: String) = update(text.toByteArray())
+
+        private fun ByteArray.toHex() = joinToString("") { "%02x".format(it) }
+    }
+}
@@ -0,0 +1,82 @@
+package io.kitsuri.m1rage.patcher
+
+import android.content.Context
+import android.os.Build
+import com.android.apksig.ApkSignerEngine
+import com.android.apksig.DefaultApkSignerEngine
+import io.kitsuri.m1rage.model.SettingsManager
+import io.kitsuri.m1rage.utils.APKSigner
+import io.kitsuri.m1rage.utils.DigestExecutor
+import io.kitsuri.m1rage.utils.SignaturePlan
+import io.kitsuri.m1rage.utils.SigningSession
+import java.security.MessageDigest
+
+/**
+ * Immutable inputs every patch job needs: the signer config, the loader dex and the native
+ * libs from the app assets. Each one is loaded on first use and then shared, so a batch of
+ * jobs reads the assets once; the signing key is shared through [SigningSession].
+ */
+class PatchResources(context: Context) {
+
+    private val appContext = context.applicationContext
+
+    /**
+     * Signer config of the process [SigningSession], reloaded if the key files change.
+     */
+    val signerConfig: DefaultApkSignerEngine.SignerConfig
+        get() = SigningSession.get(appContext).engineSignerConfig
+
+    val loaderDex: ByteArray by lazy {
+        appContext.assets.open(LOADER_DEX).use { it.readBytes() }
+    }
+
+    /**
+     * Native libs keyed by entry name, e.g. `lib/arm64-v8a/libhxo.so`, for every ABI of this
+     * device that has libs in the assets.
+     */
+    val nativeLibs: Map<String, ByteArray> by lazy {
+        val libs = LinkedHashMap<String, ByteArray>()
+        for (abi in Build.SUPPORTED_ABIS) {
+            try {
+                val assetPath = "libs/$abi"
+                val names = appContext.assets.list(assetPath) ?: continue
+
+                for (lib in names.filter { it.endsWith(".so") }) {
+                    libs["lib/$abi/$lib"] = appContext.assets.open("$assetPath/$lib").use { it.readBytes() }
+                }
+            } catch (_: Exception) {}
+        }
+        libs
+    }
+
+    /**
+     * SHA-256 of [loaderDex], part of the output cache key.
+     */
+    val loaderDexHash: ByteArray by lazy { sha256(loaderDex) }
+
+    /**
+     * SHA-256 of every entry of [nativeLibs], part of the output cache key.
+     */
+    val nativeLibHashes: Map<String, ByteArray> by lazy { nativeLibs.mapValues { sha256(it.value) } }
+
+    /**
+     * Threads computing the v2/v3 chunk digests of each signed APK, from the settings.
+     * [DigestExecutor.APKSIG_DEFAULT_THREADS] until the user picks a count.
+     */
+    val digestThreads: Int
+        get() = SettingsManager(appContext).getFloatValue(
+            SIGNING_THREADS_KEY,
+            DigestExecutor.APKSIG_DEFAULT_THREADS.toFloat()
+        ).toInt()
+
+    fun createSignerEngine(plan: SignaturePlan): ApkSignerEngine =
+        APKSigner.createSignerEngine(signerConfig, plan, digestThreads)
+
+    companion object {
+        const val SIGNING_THREADS_KEY = "signing_threads"
+
+        private const val LOADER_DEX = "loader/hxo.dex"
+
+        private fun sha256(data: ByteArray): ByteArray = MessageDigest.getInstance("SHA-256").digest(data)
+    }
+}
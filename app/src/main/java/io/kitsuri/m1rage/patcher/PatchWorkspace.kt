@@ -0,0 +1,198 @@
+package io.kitsuri.m1rage.patcher
+
+import io.kitsuri.m1rage.model.PatchConfig
+import io.kitsuri.m1rage.utils.ApkRebuilder
+import io.kitsuri.m1rage.utils.SignaturePlan
+import java.io.File
+import java.util.zip.ZipEntry
+
+/**
+ * Patch workspace backed by the original APK plus a delta of added, replaced and removed
+ * entries. Only the delta is written to disk, everything else stays inside [sourceApk]
+ * until the output APK is built.
+ *
+ * @param dir Workspace directory, deleted once the patch job is over
+ * @param sourceApk Original (base) APK, never modified
+ * @param resources Signer config, loader dex and native libs shared with other jobs
+ * @param splits Split APKs that are re-signed alongside the base APK
+ * @param metrics Stage metrics of the patch job working on this workspace
+ */
+class PatchWorkspace(
+    val dir: File,
+    val sourceApk: ApkSource,
+    val resources: PatchResources,
+    val splits: List<ApkSource> = emptyList(),
+    val metrics: PatchMetricsRecorder = PatchMetricsRecorder()
+) {
+
+    private val deltaDir = File(dir, "delta")
+    private val source = sourceApk.open()
+    private val added = LinkedHashSet<String>()
+    private val removed = HashSet<String>()
+
+    /**
+     * Options the output is built with, set by [Patcher.rebuildApk].
+     */
+    var config: PatchConfig = PatchConfig()
+
+    /**
+     * SHA-256 of the input [sourceApk] and [splits] were copied or extracted from, if known.
+     * The output cache key uses it instead of hashing the APKs again.
+     */
+    var sourceHash: ByteArray? = null
+
+    val isSplitBundle: Boolean
+        get() = splits.isNotEmpty()
+
+    /**
+     * Added and replaced entries with their delta files.
+     */
+    val delta: Map<String, File>
+        get() = added.associateWith { deltaFile(it) }
+
+    val removedEntries: Set<String>
+        get() = removed
+
+    /**
+     * Entry names of the patched APK: source entries minus removed ones, plus added ones.
+     */
+    val entryNames: Set<String>
+        get() = (source.entryNames - removed) + added
+
+    /**
+     * The binary manifest, materialized into the delta on first access so it can be edited
+     * in place.
+     */
+    val manifestFile: File
+        get() = file(MANIFEST)
+
+    /**
+     * Signature schemes of the outputs, from the minSdkVersion of the base manifest. Splits
+     * are signed with the same plan, without v4: the member APKs are only exported packed
+     * into a bundle, where a v4 signature file next to each of them cannot be used.
+     */
+    val signaturePlan: SignaturePlan by lazy {
+        SignaturePlan.forManifest(manifestFile)
+            .let { if (isSplitBundle) it.withoutV4() else it }
+            .also { metrics.signing(it) }
+    }
+
+    fun hasEntry(name: String): Boolean =
+        name in added || (source.hasEntry(name) && name !in removed)
+
+    /**
+     * Returns a delta file for [name]. Source entries are extracted on first access and the
+     * entry is marked as replaced, so edits to the returned file end up in the output.
+     */
+    fun file(name: String): File {
+        val target = deltaFile(name)
+        if (name !in added) {
+            metrics.stage(PatchStage.EXTRACT) { counter ->
+                target.parentFile?.mkdirs()
+                if (!source.extract(name, target)) {
+                    throw IllegalStateException("$name not found in $sourceApk")
+                }
+                counter.read(source.getUncompressedSize(name))
+                counter.written(target.length())
+                counter.entries(1)
+            }
+            track(name, target)
+        }
+        return target
+    }
+
+    /**
+     * Adds or replaces an entry, returns the number of bytes written to the delta.
+     */
+    fun put(name: String, data: ByteArray): Long {
+        val target = deltaFile(name)
+        target.parentFile?.mkdirs()
+        target.writeBytes(data)
+        track(name, target)
+        return data.size.toLong()
+    }
+
+    /**
+     * Adds or replaces an entry with [data], which is moved into the delta. Returns the
+     * number of bytes written to the delta.
+     */
+    fun put(name: String, data: File): Long {
+        val target = deltaFile(name)
+        target.parentFile?.mkdirs()
+        if (!data.renameTo(target)) {
+            data.copyTo(target, overwrite = true)
+            data.delete()
+        }
+        track(name, target)
+        return target.length()
+    }
+
+    /**
+     * Reads an entry of the patched APK without adding it to the delta, or returns null if
+     * there is no such entry.
+     */
+    fun read(name: String): ByteArray? {
+        if (name in added) return deltaFile(name).readBytes()
+        if (name in removed) return null
+        val buffer = source.readEntry(name) ?: return null
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.remaining() == buffer.array().size) {
+            return buffer.array()
+        }
+        return ByteArray(buffer.remaining()).also { buffer.get(it) }
+    }
+
+    /**
+     * Makes a compressed source entry stored in the output. The entry is inflated into the
+     * delta; entries that are already stored are left alone. Returns true if it changed.
+     */
+    fun store(name: String): Boolean {
+        if (name in added || source.getMethod(name) != ZipEntry.DEFLATED) return false
+        val target = file(name)
+        source.put(name, target, ZipEntry.STORED)
+        return true
+    }
+
+    fun remove(name: String) {
+        added.remove(name)
+        removed.add(name)
+        source.remove(name)
+    }
+
+    /**
+     * Returns the rebuilder for the patched base APK. Signature files from the original APK
+     * are dropped.
+     */
+    fun rebuilder(): ApkRebuilder = source.removeDirectory("META-INF/")
+
+    private fun track(name: String, target: File) {
+        removed.remove(name)
+        added.add(name)
+        if (source.hasEntry(name)) {
+            source.put(name, target)
+        } else {
+            source.put(name, target, if (noCompressEntry(name)) ZipEntry.STORED else ZipEntry.DEFLATED)
+        }
+    }
+
+    private fun deltaFile(name: String): File {
+        val target = File(deltaDir, name)
+        if (!target.canonicalPath.startsWith(deltaDir.canonicalPath + File.separator)) {
+            throw IllegalArgumentException("Invalid entry name: $name")
+        }
+        return target
+    }
+
+    companion object {
+        const val MANIFEST = "AndroidManifest.xml"
+
+        private fun noCompressFolder(name: String) =
+            name in setOf("assets", "lib", "res")
+
+        private fun noCompressFile(name: String) =
+            name.equals("resources.arsc", true) ||
+                    (name.startsWith("classes") && name.endsWith(".dex"))
+
+        private fun noCompressEntry(name: String) =
+            if (name.contains('/')) noCompressFolder(name.substringBefore('/')) else noCompressFile(name)
+    }
+}
@@ -4,25 +4,56 @@ import android.content.Context
 import android.net.Uri
 import android.util.Log
 import io.kitsuri.m1rage.R
+import io.kitsuri.m1rage.model.PatchConfig
+import io.kitsuri.m1rage.model.PatchMode
 import io.kitsuri.m1rage.model.PatcherViewModel
+import io.kitsuri.m1rage.model.SettingsManager
 import io.kitsuri.m1rage.utils.*
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
 import net.lingala.zip4j.ZipFile
-import net.lingala.zip4j.model.ZipParameters
-import net.lingala.zip4j.model.enums.CompressionMethod
 import java.io.File
+import java.io.FileInputStream
 import java.io.FileOutputStream
-import java.io.RandomAccessFile
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.security.MessageDigest
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Semaphore
+import java.util.zip.ZipEntry
+import kotlin.system.measureTimeMillis
 
 object Patcher {
 
+    private const val SOURCE_APK = "input.apk"
+    private const val OUTPUT_APK = "modded_signed.apk"
+    private const val OUTPUT_BUNDLE = "modded_signed.apks"
+    private const val OUTPUT_BASE = "base.apk"
+    private const val ALIGNMENT = 4
+    private const val SO_ALIGNMENT = 4096
+    const val COMPRESSION_THREADS_KEY = "compression_threads"
+    private const val LOADER_MARKER = "io.kitsur.HXO_LOADED"
+    private const val LOADER_LIBRARY = "hxo"
+
+    // A quarter of the heap is shared by concurrent rebuild jobs
+    private const val MEMORY_BUDGET_DIVISOR = 4
+    // Original and rewritten copies of a manifest held while it is edited
+    private const val MANIFEST_EDIT_FACTOR = 2
+
     private var viewModel: PatcherViewModel? = null
 
+    // One budget for the process, so concurrent batch jobs share the cap instead of each
+    // getting its own
+    private val memoryBudget = MemoryBudget(Runtime.getRuntime().maxMemory() / MEMORY_BUDGET_DIVISOR)
+
     fun setViewModel(vm: PatcherViewModel) {
         viewModel = vm
         APKSigner.setViewModel(vm)
+        SigningSession.setViewModel(vm)
         ZipAlign.setViewModel(vm)
+        ApkRebuilder.setViewModel(vm)
     }
 
     private fun addLog(level: Int, msg: String) {
@@ -34,7 +65,7 @@ object Patcher {
             val nameIndex = cursor.getColumnIndex(android.provider.OpenableColumns.DISPLAY_NAME)
             cursor.moveToFirst()
             cursor.getString(nameIndex)
-        }
+        } ?: uri.lastPathSegment
     }
 
     private fun isSplitApksBundle(context: Context, uri: Uri): Boolean {
@@ -44,17 +75,11 @@ object Patcher {
 
     suspend fun patchApk(
         context: Context,
-        apkUri: Uri
-    ): File? = withContext(Dispatchers.IO) {
+        apkUri: Uri,
+        resources: PatchResources = PatchResources(context)
+    ): PatchWorkspace? = withContext(Dispatchers.IO) {
         try {
-            val timestamp = System.currentTimeMillis()
-            val uniqueId = java.util.UUID.randomUUID().toString().take(8)
-            val workDir = File(context.getExternalFilesDir(null), "apk_workspace/${timestamp}_${uniqueId}")
-
-            if (workDir.exists()) {
-                workDir.deleteRecursively()
-            }
-            workDir.mkdirs()
+            val workDir = createWorkDir(context)
 
             addLog(Log.INFO, context.getString(R.string.patcher_creating_workspace, workDir.name))
 
@@ -62,41 +87,25 @@ object Patcher {
 
             if (isSplitBundle) {
                 addLog(Log.INFO, context.getString(R.string.patcher_detected_split_bundle))
-                return@withContext patchSplitApksBundle(context, apkUri, workDir)
+                return@withContext patchSplitApksBundle(context, apkUri, workDir, resources)
             }
 
-            val apkFile = File(workDir, "input.apk")
-            context.contentResolver.openInputStream(apkUri)?.use { input ->
-                FileOutputStream(apkFile).use { output -> input.copyTo(output) }
-            }
+            val metrics = PatchMetricsRecorder()
+            val ingested = ingest(context, apkUri, File(workDir, SOURCE_APK), metrics)
+            val apkFile = ingested.file
+            ManifestParser.apkSummary(apkFile)?.let { logSummary(context, it) }
 
-            addLog(Log.INFO, context.getString(R.string.patcher_extracting_apk))
-            val extractDir = File(workDir, "extracted").apply { mkdirs() }
-            APKInstallUtils.unzip(apkFile.absolutePath, extractDir.absolutePath)
+            addLog(Log.INFO, context.getString(R.string.patcher_opening_apk))
+            val workspace = PatchWorkspace(workDir, ApkSource(apkFile), resources, metrics = metrics)
+            workspace.sourceHash = ingested.hash
 
-            val manifestFile = File(extractDir, "AndroidManifest.xml")
-            if (!manifestFile.exists()) {
+            if (!workspace.hasEntry(PatchWorkspace.MANIFEST)) {
                 addLog(Log.ERROR, context.getString(R.string.patcher_manifest_not_found))
                 return@withContext null
             }
 
-            val pkgName = ManifestParser.findPackageName(manifestFile)
-            if (pkgName == null) {
-                addLog(Log.ERROR, context.getString(R.string.patcher_failed_read_package))
-                return@withContext null
-            }
-
-            addLog(Log.INFO, context.getString(R.string.patcher_package_info, pkgName))
-
-            injectLoaderDex(context, extractDir)
-            ManifestEditor.addProvider(context, manifestFile, pkgName)
-            addLog(Log.INFO, context.getString(R.string.patcher_provider_injected))
-            ManifestEditor.addMetaData(context, manifestFile, "io.kitsur.HXO_LOADED", "true")
-            addLog(Log.INFO, context.getString(R.string.patcher_metadata_injected))
-            injectNativeLibs(context, extractDir)
-
-            addLog(Log.INFO, context.getString(R.string.patcher_patch_preparation_complete))
-            extractDir
+            prepareLoader(context, workspace)
+            workspace
 
         } catch (e: Exception) {
             addLog(Log.ERROR, context.getString(R.string.patcher_patch_failed, e.message ?: "Unknown error"))
@@ -105,47 +114,180 @@ object Patcher {
         }
     }
 
-    private fun patchSplitApksBundle(
+    /**
+     * Opens a workspace over APKs that are already on disk, e.g. the installed splits of an
+     * app. Nothing is copied; the APKs are only read when the output is built.
+     */
+    fun openWorkspace(
         context: Context,
-        bundleUri: Uri,
-        workDir: File
-    ): File {
-        val bundleFile = File(workDir, "bundle.apks")
-        context.contentResolver.openInputStream(bundleUri)?.use { input ->
-            FileOutputStream(bundleFile).use { output -> input.copyTo(output) }
+        baseApk: File,
+        splits: List<File>,
+        resources: PatchResources = PatchResources(context)
+    ): PatchWorkspace {
+        val workDir = createWorkDir(context)
+        addLog(Log.INFO, context.getString(R.string.patcher_creating_workspace, workDir.name))
+        return PatchWorkspace(workDir, ApkSource(baseApk), resources, splits.map { ApkSource(it) })
+    }
+
+    /**
+     * An archive made readable by [ingest], with the SHA-256 of its content if it was copied.
+     */
+    private class Ingested(val file: File, val hash: ByteArray?)
+
+    /**
+     * Makes the picked archive readable as a file. `file://` URIs are used in place; for
+     * other URIs the descriptor is opened once and copied, since the workspace outlives the
+     * URI grant. The copy lands at a new path every run, so it is hashed on the way for the
+     * output cache key instead of being read a second time.
+     */
+    private fun ingest(context: Context, uri: Uri, target: File, metrics: PatchMetricsRecorder): Ingested =
+        metrics.stage(PatchStage.INGEST) { counter ->
+            counter.entries(1)
+            val path = uri.path
+            if (uri.scheme == "file" && path != null) {
+                return@stage Ingested(File(path).also { counter.read(it.length()) }, null)
+            }
+
+            val pfd = context.contentResolver.openFileDescriptor(uri, "r")
+                ?: throw Exception("Cannot open $uri")
+            val digest = MessageDigest.getInstance("SHA-256")
+            pfd.use {
+                FileInputStream(it.fileDescriptor).channel.use { src ->
+                    FileOutputStream(target).channel.use { dst ->
+                        val copied = copyHashing(src, dst, digest)
+                        counter.read(copied)
+                        counter.written(copied)
+                    }
+                }
+            }
+            Ingested(target, digest.digest())
         }
 
-        addLog(Log.INFO, context.getString(R.string.patcher_extracting_bundle))
-        val bundleExtractDir = File(workDir, "bundle_extracted").apply { mkdirs() }
-        APKInstallUtils.unzip(bundleFile.absolutePath, bundleExtractDir.absolutePath)
+    /**
+     * Copies a whole channel through [digest]. Works for pipes from providers that stream
+     * their content as well as for files.
+     */
+    private fun copyHashing(src: FileChannel, dst: FileChannel, digest: MessageDigest): Long {
+        val buffer = ByteBuffer.allocateDirect(1 shl 20)
+        var copied = 0L
+        while (src.read(buffer) != -1) {
+            buffer.flip()
+            digest.update(buffer.duplicate())
+            while (buffer.hasRemaining()) copied += dst.write(buffer)
+            buffer.clear()
+        }
+        return copied
+    }
 
-        val apkFiles = bundleExtractDir.walkTopDown()
-            .filter { it.isFile && it.extension == "apk" }
-            .toList()
+    /**
+     * Reads the app label and package name of the workspace base APK where it already is,
+     * so nothing is copied or extracted again for it.
+     */
+    fun readPackageInfo(context: Context, workspace: PatchWorkspace): Pair<String, String> {
+        // A literal label needs no resource lookup, the package manager parse is skipped
+        val summary = workspace.sourceApk.summary()
+        val label = summary?.applicationLabel
+        if (summary?.packageName != null && label != null) {
+            return label to summary.packageName
+        }
+        // The package manager only parses APK files, a base read in place inside a bundle
+        // is not extracted just to resolve its label
+        if (workspace.sourceApk.member != null) {
+            val packageName = summary?.packageName ?: "unknown"
+            return packageName to packageName
+        }
 
-        if (apkFiles.isEmpty()) {
-            addLog(Log.ERROR, context.getString(R.string.patcher_no_apks_in_bundle))
-            throw Exception(context.getString(R.string.patcher_no_apks_in_bundle))
+        val pm = context.packageManager
+        val path = workspace.sourceApk.file.absolutePath
+        val info = pm.getPackageArchiveInfo(path, 0)
+        val appInfo = info?.applicationInfo?.apply {
+            sourceDir = path
+            publicSourceDir = path
         }
+        val packageName = info?.packageName
+            ?: summary?.packageName
+            ?: "unknown"
+        val appName = appInfo?.loadLabel(pm)?.toString() ?: "Unknown"
+        return appName to packageName
+    }
 
-        addLog(Log.INFO, context.getString(R.string.patcher_found_apks_count, apkFiles.size))
+    private fun createWorkDir(context: Context): File {
+        val timestamp = System.currentTimeMillis()
+        val uniqueId = java.util.UUID.randomUUID().toString().take(8)
+        val workDir = File(context.getExternalFilesDir(null), "apk_workspace/${timestamp}_${uniqueId}")
 
-        val baseApk = apkFiles.firstOrNull {
-            it.nameWithoutExtension.contains("base", ignoreCase = true)
-        } ?: apkFiles.first()
+        if (workDir.exists()) {
+            workDir.deleteRecursively()
+        }
+        workDir.mkdirs()
+        return workDir
+    }
 
-        addLog(Log.INFO, context.getString(R.string.patcher_base_apk, baseApk.name))
+    private fun patchSplitApksBundle(
+        context: Context,
+        bundleUri: Uri,
+        workDir: File,
+        resources: PatchResources
+    ): PatchWorkspace {
+        val metrics = PatchMetricsRecorder()
+        val ingested = ingest(context, bundleUri, File(workDir, "bundle.apks"), metrics)
+        val bundleFile = ingested.file
 
-        val extractDir = File(workDir, "extracted_base").apply { mkdirs() }
-        APKInstallUtils.unzip(baseApk.absolutePath, extractDir.absolutePath)
+        addLog(Log.INFO, context.getString(R.string.patcher_extracting_bundle))
+        // Stored members are read in place from the bundle, compressed ones are extracted
+        // once, while the base is looked for, and that file is reused by the workspace
+        val bundleExtractDir = File(workDir, "bundle_extracted")
+        val index = BundleIndex(bundleFile, bundleExtractDir)
+        if (index.apkNames.isEmpty()) {
+            addLog(Log.ERROR, context.getString(R.string.patcher_no_apks_in_bundle))
+            throw Exception(context.getString(R.string.patcher_no_apks_in_bundle))
+        }
+        val baseName = metrics.stage(PatchStage.EXTRACT) { counter ->
+            val name = index.baseName
+            index.apkNames.forEach { index.source(it) }
+            val extracted = index.extracted
+            extracted.forEach { (member, file) ->
+                counter.read(index.uncompressedSize(member))
+                counter.written(file.length())
+            }
+            counter.entries(extracted.size)
+            name
+        }
+        if (baseName == null) {
+            addLog(Log.ERROR, context.getString(R.string.patcher_no_base_apk))
+            throw Exception(context.getString(R.string.patcher_no_base_apk))
+        }
 
-        val manifestFile = File(extractDir, "AndroidManifest.xml")
-        if (!manifestFile.exists()) {
+        addLog(Log.INFO, context.getString(R.string.patcher_found_apks_count, index.apkNames.size))
+        addLog(Log.INFO, context.getString(R.string.patcher_base_apk, baseName))
+        index.packageName?.let {
+            addLog(Log.INFO, context.getString(R.string.patcher_bundle_info, index.label ?: it, it))
+        }
+        index.baseManifest?.let { logSummary(context, it) }
+
+        // The bundle copy stays until the workspace is deleted, its stored members are read from it
+        val splits = index.splitNames.map { index.source(it) }
+        val workspace = PatchWorkspace(workDir, index.source(baseName), resources, splits, metrics)
+        // Every member comes from the bundle, its hash covers them all
+        workspace.sourceHash = ingested.hash
+        if (!workspace.hasEntry(PatchWorkspace.MANIFEST)) {
             addLog(Log.ERROR, context.getString(R.string.patcher_manifest_not_found_base))
             throw Exception(context.getString(R.string.patcher_manifest_not_found_base))
         }
 
-        val pkgName = ManifestParser.findPackageName(manifestFile)
+        prepareLoader(context, workspace)
+
+        addLog(Log.INFO, context.getString(R.string.patcher_split_apks_prepared))
+        return workspace
+    }
+
+    /**
+     * Checks the package name of the workspace. Nothing is added to the delta yet: the
+     * output may still come from the cache, so [applyConfig] injects the native libs and the
+     * loader.
+     */
+    fun prepareLoader(context: Context, workspace: PatchWorkspace) {
+        val pkgName = ManifestParser.findPackageName(workspace.manifestFile)
         if (pkgName == null) {
             addLog(Log.ERROR, context.getString(R.string.patcher_failed_read_package))
             throw Exception(context.getString(R.string.patcher_failed_read_package))
@@ -153,83 +295,126 @@ object Patcher {
 
         addLog(Log.INFO, context.getString(R.string.patcher_package_info, pkgName))
 
-        injectLoaderDex(context, extractDir)
-        ManifestEditor.addProvider(context, manifestFile, pkgName)
-        addLog(Log.INFO, context.getString(R.string.patcher_provider_injected))
-        ManifestEditor.addMetaData(context, manifestFile, "io.kitsur.HXO_LOADED", "true")
-        addLog(Log.INFO, context.getString(R.string.patcher_metadata_injected))
-        injectNativeLibs(context, extractDir)
-
-        val splitsDir = File(workDir, "splits").apply { mkdirs() }
-        apkFiles.forEach { apk ->
-            if (apk != baseApk) {
-                val targetFile = File(splitsDir, apk.name)
-                apk.copyTo(targetFile, overwrite = true)
-            }
-        }
-
-        addLog(Log.INFO, context.getString(R.string.patcher_split_apks_prepared))
-        return extractDir
+        addLog(Log.INFO, context.getString(R.string.patcher_patch_preparation_complete))
     }
 
-    private fun patchSplitApkManifest(
+    private fun rebuildSplitApk(
         context: Context,
-        splitApk: File,
-        workDir: File,
+        rebuilder: ApkRebuilder,
+        splitApk: ApkSource,
+        workspace: PatchWorkspace,
+        outputFile: File,
         versionCode: Int? = null,
         debuggable: Boolean? = null
-    ): File {
-        try {
-            val splitExtractDir = File(workDir, "temp_split_${splitApk.nameWithoutExtension}").apply {
-                deleteRecursively()
-                mkdirs()
-            }
-
-            addLog(Log.DEBUG, context.getString(R.string.patcher_extracting_split_for_patching, splitApk.name))
-            APKInstallUtils.unzip(splitApk.absolutePath, splitExtractDir.absolutePath)
+    ) {
+        val manifestFile = File(workspace.dir, "temp_manifest_${splitApk.nameWithoutExtension}.xml")
 
-            val manifestFile = File(splitExtractDir, "AndroidManifest.xml")
-            if (manifestFile.exists()) {
-                versionCode?.let {
-                    addLog(Log.DEBUG, context.getString(R.string.patcher_setting_version_code, it, splitApk.name))
-                    ManifestEditor.setVersionCode(context, manifestFile, it)
-                }
-                debuggable?.let {
-                    addLog(Log.DEBUG, context.getString(R.string.patcher_setting_debuggable, it.toString(), splitApk.name))
-                    ManifestEditor.setDebuggable(context, manifestFile, it)
+        if (versionCode != null || debuggable != null) {
+            try {
+                workspace.metrics.stage(PatchStage.MANIFEST) { counter ->
+                    addLog(Log.DEBUG, context.getString(R.string.patcher_extracting_split_for_patching, splitApk.name))
+                    if (rebuilder.extract(PatchWorkspace.MANIFEST, manifestFile)) {
+                        counter.read(manifestFile.length())
+                        val session = ManifestEditSession(manifestFile)
+                        versionCode?.let {
+                            addLog(Log.DEBUG, context.getString(R.string.patcher_setting_version_code, it, splitApk.name))
+                            session.setVersionCode(it)
+                        }
+                        debuggable?.let {
+                            addLog(Log.DEBUG, context.getString(R.string.patcher_setting_debuggable, it.toString(), splitApk.name))
+                            session.setDebuggable(it)
+                        }
+                        val result = session.apply()
+                        logSkippedEdits(context, result)
+                        // An untouched split manifest keeps its original entry
+                        if (result.written) {
+                            rebuilder.put(PatchWorkspace.MANIFEST, manifestFile)
+                            counter.written(manifestFile.length())
+                            counter.entries(1)
+                        }
+                    }
                 }
+            } catch (e: Exception) {
+                addLog(Log.WARN, context.getString(R.string.patcher_failed_patch_split, splitApk.name, e.message ?: "Unknown"))
             }
+        }
 
-            File(splitExtractDir, "META-INF").deleteRecursively()
-
-            val repackedSplit = File(workDir, "repacked_${splitApk.name}")
-            zipDirectory(splitExtractDir, repackedSplit)
-
-            splitExtractDir.deleteRecursively()
-
-            return repackedSplit
+        // Split libs are stored too: the installer maps them from the split APK
+        val storedLibs = if (workspace.config.pageAlignedLibs) storeSplitNativeLibs(rebuilder, splitApk, workspace) else emptyList()
 
-        } catch (e: Exception) {
-            addLog(Log.WARN, context.getString(R.string.patcher_failed_patch_split, splitApk.name, e.message ?: "Unknown"))
-            return splitApk
+        try {
+            writeSigned(rebuilder.removeDirectory("META-INF/"), outputFile, workspace)
+        } finally {
+            manifestFile.delete()
+            storedLibs.forEach { it.delete() }
         }
     }
 
-    suspend fun rebuildApk(context: Context, extractDir: File): File? =
+    private fun storeSplitNativeLibs(rebuilder: ApkRebuilder, splitApk: ApkSource, workspace: PatchWorkspace): List<File> =
+        workspace.metrics.stage(PatchStage.LIB) { counter ->
+            val libDir = File(workspace.dir, "split_libs/${splitApk.nameWithoutExtension}")
+            rebuilder.entryNames
+                .filter { isNativeLib(it) && rebuilder.getMethod(it) == ZipEntry.DEFLATED }
+                .map { name ->
+                    val target = File(libDir, name.replace('/', '_'))
+                    target.parentFile?.mkdirs()
+                    rebuilder.extract(name, target)
+                    rebuilder.put(name, target, ZipEntry.STORED)
+                    counter.written(target.length())
+                    counter.entries(1)
+                    target
+                }
+        }
+
+    private fun isNativeLib(name: String) = name.startsWith("lib/") && name.endsWith(".so")
+
+    /**
+     * Applies [config] to the workspace and builds the signed output into [outputDir]. The
+     * output cache is looked up first, from the inputs alone, and on a hit nothing is
+     * patched or rebuilt.
+     */
+    suspend fun rebuildApk(
+        context: Context,
+        workspace: PatchWorkspace,
+        config: PatchConfig,
+        outputDir: File = File(workspace.dir.parentFile, "output")
+    ): File? =
         withContext(Dispatchers.IO) {
             try {
-                val workDir = extractDir.parentFile!!
-                val outputDir = File(workDir.parentFile, "output").apply { mkdirs() }
+                outputDir.mkdirs()
+
+                val cache = PatchOutputCache.open(context)
+                val cacheKey = cache?.key(workspace, config)
+                val output = File(outputDir, if (workspace.isSplitBundle) OUTPUT_BUNDLE else OUTPUT_APK)
+                // Every file written next to the output is part of it: the member APKs of a
+                // bundle and the v4 signature of a single APK
+                val sidecars = when {
+                    workspace.isSplitBundle ->
+                        (listOf(OUTPUT_BASE) + workspace.splits.map { it.name }).map { File(outputDir, it) }
+                    workspace.signaturePlan.v4 -> listOf(APKSigner.getV4SignatureFile(output))
+                    else -> emptyList()
+                }
 
-                val splitsDir = File(workDir, "splits")
-                val hasSplits = splitsDir.exists() && splitsDir.listFiles()?.isNotEmpty() == true
+                if (cache != null && cacheKey != null && cache.restore(cacheKey, output, sidecars.map { it.name })) {
+                    addLog(Log.INFO, context.getString(R.string.patcher_cache_hit, cacheKey.take(12)))
+                } else {
+                    applyConfig(context, workspace, config)
+                    if (workspace.isSplitBundle) {
+                        addLog(Log.INFO, context.getString(R.string.patcher_rebuilding_split_bundle))
+                        rebuildSplitApksBundle(context, workspace, outputDir)
+                    } else {
+                        rebuildSingleApk(context, workspace, outputDir)
+                    }
 
-                if (hasSplits) {
-                    addLog(Log.INFO, context.getString(R.string.patcher_rebuilding_split_bundle))
-                    return@withContext rebuildSplitApksBundle(context, extractDir, outputDir, splitsDir)
+                    if (cache != null && cacheKey != null) {
+                        cache.put(cacheKey, output, sidecars)
+                    }
                 }
 
-                rebuildSingleApk(context, extractDir, outputDir)
+                val metricsFile = File(outputDir, output.nameWithoutExtension + PatchMetricsRecorder.FILE_SUFFIX)
+                workspace.metrics.writeJson(metricsFile)
+                addLog(Log.DEBUG, context.getString(R.string.patcher_metrics_saved, metricsFile.name))
+                output
 
             } catch (e: Exception) {
                 addLog(Log.ERROR, context.getString(R.string.patcher_build_failed, e.message ?: "Unknown error"))
@@ -240,214 +425,253 @@ object Patcher {
 
     private fun rebuildSingleApk(
         context: Context,
-        extractDir: File,
+        workspace: PatchWorkspace,
         outputDir: File
     ): File {
-        val workDir = extractDir.parentFile!!
-        val buildDir = File(workDir.parentFile, "build_temp").apply {
-            deleteRecursively()
-            mkdirs()
-        }
-
-        addLog(Log.INFO, context.getString(R.string.patcher_preparing_build_dir))
-
-        extractDir.listFiles()?.forEach { f ->
-            if (f.isDirectory) {
-                f.copyRecursively(File(buildDir, f.name), overwrite = true)
-            } else {
-                f.copyTo(File(buildDir, f.name), overwrite = true)
-            }
+        addLog(Log.INFO, context.getString(R.string.patcher_building_signed_apk))
+        val signedApk = File(outputDir, OUTPUT_APK)
+        val rebuilder = workspace.rebuilder().setParallelism(compressionThreads(context))
+        memoryBudget.use(rebuilder.estimateMemory()) {
+            writeSigned(rebuilder, signedApk, workspace)
         }
 
-        File(buildDir, "META-INF").deleteRecursively()
-
-        addLog(Log.INFO, context.getString(R.string.patcher_creating_unsigned_apk))
-        val unsignedApk = File(outputDir, "unsigned.apk").apply { delete() }
-        zipDirectory(buildDir, unsignedApk)
-
-        addLog(Log.INFO, context.getString(R.string.patcher_aligning_apk))
-        val alignedApk = File(outputDir, "aligned.apk")
-        alignApk(unsignedApk, alignedApk)
-
-        addLog(Log.INFO, context.getString(R.string.patcher_signing_apk))
-        val signedApk = File(outputDir, "modded_signed.apk")
-        APKData.signApks(alignedApk, signedApk, context)
-
-        buildDir.deleteRecursively()
         addLog(Log.INFO, context.getString(R.string.patcher_build_complete, signedApk.name))
         return signedApk
     }
 
+    /**
+     * Rebuilds the base APK and every split concurrently, within the configured number of
+     * compression threads. Each job holds permits of the process-wide memory budget for its
+     * estimated heap use while it runs, so a few large jobs, of this bundle or of other batch
+     * jobs, cannot run the app out of memory together. The bundle is assembled once all jobs
+     * are done, in the original split order.
+     */
     private fun rebuildSplitApksBundle(
         context: Context,
-        extractDir: File,
-        outputDir: File,
-        splitsDir: File
+        workspace: PatchWorkspace,
+        outputDir: File
     ): File {
-        val workDir = extractDir.parentFile!!
+        val splitFiles = workspace.splits
+        addLog(Log.INFO, context.getString(R.string.patcher_processing_split_count, splitFiles.size))
 
-        if (!splitsDir.canonicalPath.startsWith(workDir.canonicalPath)) {
-            addLog(Log.ERROR, context.getString(R.string.patcher_invalid_splits_dir))
-            throw Exception(context.getString(R.string.patcher_invalid_splits_dir))
-        }
+        val baseManifest = workspace.manifestFile
+        val targetVersionCode = ManifestParser.findVersionCode(baseManifest)
+        val isDebuggable = ManifestParser.isDebuggable(baseManifest)
 
-        val buildDir = File(workDir.parentFile, "build_temp").apply {
-            deleteRecursively()
-            mkdirs()
-        }
+        // Splits compress on their own worker, the base gets the threads no split worker
+        // takes, so the bundle never runs more than the configured number of threads
+        val threads = compressionThreads(context).coerceAtLeast(1)
+        val workers = threads.coerceAtMost(splitFiles.size + 1)
+        val executor = Executors.newFixedThreadPool(workers)
 
-        addLog(Log.INFO, context.getString(R.string.patcher_rebuilding_base_apk))
-        extractDir.listFiles()?.forEach { f ->
-            if (f.isDirectory) {
-                f.copyRecursively(File(buildDir, f.name), overwrite = true)
-            } else {
-                f.copyTo(File(buildDir, f.name), overwrite = true)
+        try {
+            val signedBase = File(outputDir, OUTPUT_BASE)
+            val baseRebuilder = workspace.rebuilder().setParallelism(threads - (workers - 1))
+            val baseJob = executor.submit<File> {
+                memoryBudget.use(baseRebuilder.estimateMemory()) {
+                    addLog(Log.INFO, context.getString(R.string.patcher_rebuilding_base_apk))
+                    val time = measureTimeMillis { writeSigned(baseRebuilder, signedBase, workspace) }
+                    addLog(Log.INFO, context.getString(R.string.patcher_signed_split_timed, signedBase.name, time))
+                }
+                signedBase
             }
-        }
 
-        File(buildDir, "META-INF").deleteRecursively()
+            val splitJobs = splitFiles.map { splitApk ->
+                executor.submit<File> {
+                    val rebuilder = splitApk.open().setParallelism(1)
+                    val manifestSize = rebuilder.getUncompressedSize(PatchWorkspace.MANIFEST).coerceAtLeast(0)
+                    memoryBudget.use(rebuilder.estimateMemory() + manifestSize * MANIFEST_EDIT_FACTOR) {
+                        addLog(Log.INFO, context.getString(R.string.patcher_processing_split, splitApk.name))
+                        val signedSplit = File(outputDir, splitApk.name)
+                        val time = measureTimeMillis {
+                            rebuildSplitApk(
+                                context, rebuilder, splitApk, workspace, signedSplit,
+                                targetVersionCode, isDebuggable
+                            )
+                        }
+                        addLog(Log.INFO, context.getString(R.string.patcher_signed_split_timed, splitApk.name, time))
+                        signedSplit
+                    }
+                }
+            }
 
-        val unsignedBase = File(outputDir, "base_unsigned.apk").apply { delete() }
-        zipDirectory(buildDir, unsignedBase)
+            val signedFiles = (listOf(baseJob) + splitJobs).map { job ->
+                try {
+                    job.get()
+                } catch (e: ExecutionException) {
+                    throw e.cause ?: e
+                }
+            }
 
-        addLog(Log.INFO, context.getString(R.string.patcher_aligning_base))
-        val alignedBase = File(outputDir, "base_aligned.apk")
-        alignApk(unsignedBase, alignedBase)
+            addLog(Log.INFO, context.getString(R.string.patcher_creating_bundle))
+            val finalBundle = File(outputDir, OUTPUT_BUNDLE)
+            finalBundle.delete()
+            workspace.metrics.stage(PatchStage.BUNDLE) { counter ->
+                ZipFile(finalBundle).use { zip ->
+                    signedFiles.forEach { zip.addFile(it) }
+                }
+                counter.read(signedFiles.sumOf { it.length() })
+                counter.written(finalBundle.length())
+                counter.entries(signedFiles.size)
+            }
 
-        addLog(Log.INFO, context.getString(R.string.patcher_signing_base))
-        val signedBase = File(outputDir, "base.apk")
-        APKData.signApks(alignedBase, signedBase, context)
+            addLog(Log.INFO, context.getString(R.string.patcher_bundle_complete, finalBundle.name))
+            addLog(Log.INFO, context.getString(R.string.patcher_total_apks, signedFiles.size))
 
-        val splitFiles = splitsDir.listFiles() ?: emptyArray()
-        addLog(Log.INFO, context.getString(R.string.patcher_processing_split_count, splitFiles.size))
+            return finalBundle
+        } finally {
+            executor.shutdownNow()
+        }
+    }
 
-        val baseManifest = File(extractDir, "AndroidManifest.xml")
-        val targetVersionCode = if (baseManifest.exists()) ManifestParser.findVersionCode(baseManifest) else null
-        val isDebuggable = if (baseManifest.exists()) ManifestParser.isDebuggable(baseManifest) else null
+    /**
+     * Heap budget shared by all concurrent rebuild jobs of the process, counted in KiB so it
+     * fits a [Semaphore]. A job larger than the whole budget waits for every permit and runs
+     * alone; permits are handed out in arrival order, so it is not starved by smaller jobs.
+     */
+    private class MemoryBudget(bytes: Long) {
+        private val totalPermits = (bytes / 1024).coerceIn(1, Int.MAX_VALUE.toLong()).toInt()
+        private val semaphore = Semaphore(totalPermits, true)
+
+        fun <T> use(bytes: Long, block: () -> T): T {
+            val permits = (bytes / 1024).coerceIn(1, totalPermits.toLong()).toInt()
+            semaphore.acquire(permits)
+            try {
+                return block()
+            } finally {
+                semaphore.release(permits)
+            }
+        }
+    }
 
-        val signedSplitFiles = mutableListOf<File>()
-        splitFiles.forEach { splitApk ->
-            addLog(Log.INFO, context.getString(R.string.patcher_processing_split, splitApk.name))
+    /**
+     * Writes, aligns and signs the APK in a single sequential pass, then checks the
+     * alignment of the signed file from its central directory.
+     */
+    private fun writeSigned(
+        rebuilder: ApkRebuilder,
+        outputFile: File,
+        workspace: PatchWorkspace
+    ) {
+        val soAlignment = soAlignment(workspace.config)
+        workspace.metrics.zip(rebuilder) {
+            rebuilder
+                .setAlignment(ALIGNMENT, soAlignment)
+                .setSignerEngine(workspace.resources.createSignerEngine(workspace.signaturePlan))
+                .setV4SignatureFile(
+                    if (workspace.signaturePlan.v4) APKSigner.getV4SignatureFile(outputFile) else null
+                )
+                .writeTo(outputFile)
+        }
+        verifyAlignment(outputFile, workspace.metrics, soAlignment, workspace.config.pageAlignedLibs)
+    }
 
-            val patchedSplit = if (targetVersionCode != null || isDebuggable != null) {
-                patchSplitApkManifest(context, splitApk, workDir, targetVersionCode, isDebuggable)
-            } else {
-                splitApk
+    private fun soAlignment(config: PatchConfig) =
+        if (config.pageAlignedLibs) config.libPageSize else SO_ALIGNMENT
+
+    /**
+     * Fails if an entry of [apk] is misaligned. With [mappedLibs], every native lib must also
+     * be stored, so the installer can mmap it from the APK.
+     */
+    private fun verifyAlignment(apk: File, metrics: PatchMetricsRecorder, soAlignment: Int, mappedLibs: Boolean) =
+        metrics.stage(PatchStage.ALIGN) {
+            val misaligned = ZipAlign.findMisaligned(apk, ALIGNMENT, soAlignment)
+            if (misaligned.isNotEmpty()) {
+                throw IOException(
+                    "${misaligned.size} misaligned entries in ${apk.name}: ${misaligned.take(5).joinToString()}"
+                )
             }
 
-            val alignedSplit = File(outputDir, "temp_aligned_${patchedSplit.name}")
-            alignApk(patchedSplit, alignedSplit)
-
-            val signedSplit = File(outputDir, splitApk.name)
-            APKData.signApks(alignedSplit, signedSplit, context)
-            alignedSplit.delete()
+            if (mappedLibs) {
+                val index = ApkIndex.of(apk)
+                val compressed = index.names().filter { isNativeLib(it) && index.method(index.indexOf(it)) != ZipEntry.STORED }
+                if (compressed.isNotEmpty()) {
+                    throw IOException(
+                        "${compressed.size} compressed native libs in ${apk.name}: ${compressed.take(5).joinToString()}"
+                    )
+                }
+            }
+        }
 
-            if (patchedSplit != splitApk) patchedSplit.delete()
+    private fun compressionThreads(context: Context): Int =
+        SettingsManager(context).getFloatValue(
+            COMPRESSION_THREADS_KEY,
+            ApkRebuilder.DEFAULT_PARALLELISM.toFloat()
+        ).toInt()
 
-            signedSplitFiles.add(signedSplit)
-            addLog(Log.INFO, context.getString(R.string.patcher_signed_split, splitApk.name))
-        }
+    fun injectLoaderDex(context: Context, workspace: PatchWorkspace) {
+        val maxIndex = workspace.entryNames.maxOfOrNull(::dexIndex) ?: 0
+        val nextIndex = maxIndex + 1
+        val targetName = if (nextIndex == 1) "classes.dex" else "classes$nextIndex.dex"
 
-        addLog(Log.INFO, context.getString(R.string.patcher_creating_bundle))
-        val finalBundle = File(outputDir, "modded_signed.apks")
-        ZipFile(finalBundle).use { zip ->
-            zip.addFile(signedBase)
-            signedSplitFiles.forEach { zip.addFile(it) }
+        workspace.metrics.stage(PatchStage.DEX) { counter ->
+            counter.written(workspace.put(targetName, workspace.resources.loaderDex))
+            counter.entries(1)
         }
 
-        buildDir.deleteRecursively()
-        addLog(Log.INFO, context.getString(R.string.patcher_bundle_complete, finalBundle.name))
-        addLog(Log.INFO, context.getString(R.string.patcher_total_apks, splitFiles.size + 1))
-
-        return finalBundle
+        addLog(Log.INFO, context.getString(R.string.patcher_injected_loader_dex, targetName))
     }
 
-    private fun zipDirectory(buildDir: File, outputFile: File) {
-        ZipFile(outputFile).use { zip ->
-            val params = ZipParameters()
-            buildDir.listFiles()?.forEach { file ->
-                when {
-                    file.isDirectory && noCompressFolder(file.name) -> {
-                        params.compressionMethod = CompressionMethod.STORE
-                        zip.addFolder(file, params)
-                        params.compressionMethod = CompressionMethod.DEFLATE
+    /**
+     * Makes [activity], or the launcher activity if null, load the native lib from its static
+     * initializer. An activity-alias is resolved to the activity it targets. Only the dex that
+     * defines the class is rewritten, the others are left as they are.
+     */
+    fun injectActivityLoader(context: Context, workspace: PatchWorkspace, activity: String?) {
+        val summary = ManifestParser.summary(workspace.manifestFile)
+        val className = if (activity != null) summary?.targetActivity(activity) ?: activity else summary?.launcherActivity
+        if (className == null) {
+            addLog(Log.ERROR, context.getString(R.string.patcher_no_target_activity))
+            throw Exception(context.getString(R.string.patcher_no_target_activity))
+        }
+
+        val injector = ClinitInjector(className, LOADER_LIBRARY)
+        val dexFiles = workspace.entryNames.filter { dexIndex(it) > 0 }.sortedBy(::dexIndex)
+        val patchedDex = workspace.metrics.stage(PatchStage.DEX) { counter ->
+            for (name in dexFiles) {
+                val dex = workspace.read(name) ?: continue
+                counter.read(dex.size.toLong())
+                val output = File(workspace.dir, "patched_$name")
+                when (injector.patch(dex, output)) {
+                    ClinitInjector.Result.NOT_FOUND -> continue
+                    ClinitInjector.Result.ALREADY_PATCHED -> {
+                        addLog(Log.INFO, context.getString(R.string.patcher_activity_already_patched, className, name))
                     }
-                    file.isDirectory -> zip.addFolder(file)
-                    noCompressFile(file.name) -> {
-                        params.compressionMethod = CompressionMethod.STORE
-                        zip.addFile(file, params)
-                        params.compressionMethod = CompressionMethod.DEFLATE
+                    ClinitInjector.Result.PATCHED -> {
+                        counter.written(workspace.put(name, output))
+                        counter.entries(1)
+                        addLog(Log.INFO, context.getString(R.string.patcher_activity_patched, className, name))
                     }
-                    else -> zip.addFile(file)
                 }
+                return@stage name
             }
+            null
         }
-    }
 
-    private fun alignApk(inputApk: File, outputApk: File) {
-        try {
-            RandomAccessFile(inputApk, "r").use { raf ->
-                FileOutputStream(outputApk).use { out ->
-                    ZipAlign.alignZip(raf, out, 4, 4096)
-                }
-            }
-        } catch (e: Exception) {
-            addLog(Log.WARN, "Alignment failed, copying as-is: ${e.message}")
-            inputApk.copyTo(outputApk, overwrite = true)
+        if (patchedDex == null) {
+            addLog(Log.ERROR, context.getString(R.string.patcher_activity_not_found, className))
+            throw Exception(context.getString(R.string.patcher_activity_not_found, className))
         }
     }
 
-    fun injectLoaderDex(context: Context, extractDir: File) {
-        val dexFiles = extractDir.listFiles { file ->
-            file.isFile && file.name.startsWith("classes") && file.name.endsWith(".dex")
-        }.orEmpty()
-
-        var maxIndex = 0
-        for (dex in dexFiles) {
-            val name = dex.name
-            val index = when {
-                name == "classes.dex" -> 1
-                name.matches(Regex("""classes\d+\.dex""")) ->
-                    name.removePrefix("classes").removeSuffix(".dex").toIntOrNull() ?: 0
-                else -> 0
-            }
-            if (index > maxIndex) maxIndex = index
-        }
-
-        val nextIndex = maxIndex + 1
-        val targetName = if (nextIndex == 1) "classes.dex" else "classes$nextIndex.dex"
-        val target = File(extractDir, targetName)
-
-        context.assets.open("loader/hxo.dex").use { input ->
-            FileOutputStream(target).use { output ->
-                input.copyTo(output)
-            }
-        }
-
-        addLog(Log.INFO, context.getString(R.string.patcher_injected_loader_dex, targetName))
+    /**
+     * Returns the position of a dex entry in the load order, `classes.dex` being 1, or 0 for
+     * entries that are not a top-level dex.
+     */
+    private fun dexIndex(name: String): Int = when {
+        name == "classes.dex" -> 1
+        name.matches(Regex("""classes\d+\.dex""")) ->
+            name.removePrefix("classes").removeSuffix(".dex").toIntOrNull() ?: 0
+        else -> 0
     }
 
-    fun injectNativeLibs(context: Context, extractDir: File) {
+    fun injectNativeLibs(context: Context, workspace: PatchWorkspace) = workspace.metrics.stage(PatchStage.LIB) { counter ->
         try {
-            val targetLibDir = File(extractDir, "lib").apply { mkdirs() }
-            val abis = android.os.Build.SUPPORTED_ABIS
             var copied = 0
-
-            for (abi in abis) {
-                try {
-                    val assetPath = "libs/$abi"
-                    val libs = context.assets.list(assetPath) ?: continue
-                    val abiDir = File(targetLibDir, abi).apply { mkdirs() }
-
-                    for (lib in libs.filter { it.endsWith(".so") }) {
-                        context.assets.open("$assetPath/$lib").use { input ->
-                            FileOutputStream(File(abiDir, lib)).use { out ->
-                                input.copyTo(out)
-                            }
-                        }
-                        copied++
-                    }
-                } catch (_: Exception) {}
+            for ((name, lib) in workspace.resources.nativeLibs) {
+                counter.written(workspace.put(name, lib))
+                counter.entries(1)
+                copied++
             }
 
             val msg = if (copied > 0) {
@@ -462,10 +686,94 @@ object Patcher {
         }
     }
 
-    private fun noCompressFolder(name: String) =
-        name in setOf("assets", "lib", "res")
+    /**
+     * Stores every compressed native lib of the base APK uncompressed, so the installer can
+     * map it straight from the APK once extractNativeLibs is off.
+     */
+    private fun storeNativeLibs(context: Context, workspace: PatchWorkspace) =
+        workspace.metrics.stage(PatchStage.LIB) { counter ->
+            var stored = 0
+            for (name in workspace.entryNames.filter(::isNativeLib)) {
+                if (workspace.store(name)) {
+                    counter.written(workspace.file(name).length())
+                    stored++
+                }
+            }
+            counter.entries(stored)
+            addLog(Log.INFO, context.getString(R.string.patcher_storing_native_libs, stored, workspace.config.libPageSize / 1024))
+        }
+
+    /**
+     * Adds the native libs, injects the loader for the mode of [config] and applies its
+     * manifest and native lib options to the workspace. DEX mode adds the loader dex and the
+     * HxoLoader provider, MAPI mode patches the static initializer of the selected activity
+     * instead.
+     */
+    private fun applyConfig(context: Context, workspace: PatchWorkspace, config: PatchConfig) {
+        workspace.config = config
+        injectNativeLibs(context, workspace)
+        when (config.mode) {
+            PatchMode.DEX -> injectLoaderDex(context, workspace)
+            PatchMode.MAPI -> injectActivityLoader(context, workspace, config.selectedActivity)
+        }
+        if (config.pageAlignedLibs) {
+            storeNativeLibs(context, workspace)
+        }
+
+        val manifestFile = workspace.manifestFile
+        workspace.metrics.stage(PatchStage.MANIFEST) { counter ->
+            counter.read(manifestFile.length())
+            val session = ManifestEditSession(manifestFile)
+            if (config.mode == PatchMode.DEX) {
+                val pkgName = ManifestParser.findPackageName(manifestFile)
+                    ?: throw Exception(context.getString(R.string.patcher_failed_read_package))
+                session.addProvider(pkgName)
+            }
+            session.addMetaData(LOADER_MARKER, "true")
+
+            if (config.debuggable) {
+                addLog(Log.INFO, context.getString(R.string.patcher_applying_debuggable))
+                session.setDebuggable(true)
+            }
+
+            if (config.overrideVersionCode) {
+                addLog(Log.INFO, context.getString(R.string.patcher_overriding_version_code))
+                session.setVersionCode(1)
+            }
+
+            if (config.pageAlignedLibs) {
+                addLog(Log.INFO, context.getString(R.string.patcher_disabling_extract_native_libs))
+                session.setExtractNativeLibs(false)
+            }
+
+            val result = session.apply()
+            logSkippedEdits(context, result)
+            if (ManifestEditSession.PROVIDER_EDIT in result.applied) {
+                addLog(Log.INFO, context.getString(R.string.patcher_provider_injected))
+            }
+            if (ManifestEditSession.metaDataEdit(LOADER_MARKER) in result.applied) {
+                addLog(Log.INFO, context.getString(R.string.patcher_metadata_injected))
+            }
+            if (result.written) {
+                counter.written(manifestFile.length())
+                counter.entries(1)
+            }
+        }
+    }
+
+    private fun logSummary(context: Context, summary: ManifestSummary) {
+        addLog(Log.INFO, context.getString(
+            R.string.patcher_manifest_summary,
+            summary.packageName ?: "?",
+            summary.versionName ?: "?",
+            summary.versionCode ?: 0,
+            summary.launcherActivity ?: "-"
+        ))
+    }
 
-    private fun noCompressFile(name: String) =
-        name.equals("resources.arsc", true) ||
-                (name.startsWith("classes") && name.endsWith(".dex"))
-}
\ No newline at end of file
+    private fun logSkippedEdits(context: Context, result: ManifestEditSession.Result) {
+        for (edit in result.skipped) {
+            addLog(Log.DEBUG, context.getString(R.string.patcher_manifest_edit_skipped, edit))
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package io.kitsuri.m1rage.ui.pages
 
+import android.text.format.Formatter
 import android.util.Log
 import androidx.activity.compose.rememberLauncherForActivityResult
 import androidx.activity.result.contract.ActivityResultContracts
@@ -31,6 +32,8 @@ import androidx.compose.ui.unit.LayoutDirection
 import androidx.compose.ui.unit.dp
 import androidx.lifecycle.viewmodel.compose.viewModel
 import io.kitsuri.m1rage.R
+import io.kitsuri.m1rage.patcher.BatchItem
+import io.kitsuri.m1rage.patcher.PatchMetrics
 import io.kitsuri.m1rage.ui.components.ShimmerAnimation
 import io.kitsuri.m1rage.model.*
 import io.kitsuri.m1rage.ui.components.InfoCard
@@ -94,6 +97,17 @@ fun PatcherScreen(
         }
     }
 
+    val batchPickerLauncher = rememberLauncherForActivityResult(
+        contract = ActivityResultContracts.GetMultipleContents()
+    ) { uris ->
+        if (uris.isNotEmpty()) {
+            val items = uris.map { uri ->
+                BatchItem(label = uri.lastPathSegment?.substringAfterLast('/') ?: uri.toString(), uri = uri)
+            }
+            viewModel.dispatch(PatcherViewModel.ViewAction.StartBatch(context, items))
+        }
+    }
+
     if (showSelectAppsScreen) {
         SelectAppsScreen(
             onAppSelected = { packageName, appName, isSplit, splitApkPaths ->
@@ -110,6 +124,11 @@ fun PatcherScreen(
                     )
                 }
             },
+            onAppsSelected = { apps ->
+                showSelectAppsScreen = false
+                val items = apps.map { BatchItem(label = it.appName, apkPaths = it.splitApkPaths) }
+                viewModel.dispatch(PatcherViewModel.ViewAction.StartBatch(context, items))
+            },
             onBackClick = { showSelectAppsScreen = false },
             onTopBarConfigChanged = onTopBarConfigChanged
         )
@@ -179,6 +198,10 @@ fun PatcherScreen(
             onAppListClick = {
                 showApkSourceDialog = false
                 showSelectAppsScreen = true
+            },
+            onBatchFilesClick = {
+                showApkSourceDialog = false
+                batchPickerLauncher.launch("*/*")
             }
         )
     }
@@ -384,6 +407,41 @@ private fun ConfigurationView(
             title = stringResource(R.string.patcher_override_version_title),
             desc = stringResource(R.string.patcher_override_version_desc)
         )
+
+        SettingsCheckBox(
+            modifier = Modifier.clickable {
+                viewModel.patchConfig = viewModel.patchConfig.copy(pageAlignedLibs = !viewModel.patchConfig.pageAlignedLibs)
+            },
+            checked = viewModel.patchConfig.pageAlignedLibs,
+            icon = Icons.Outlined.Memory,
+            title = stringResource(R.string.patcher_page_aligned_libs_title),
+            desc = stringResource(R.string.patcher_page_aligned_libs_desc),
+            extraContent = if (viewModel.patchConfig.pageAlignedLibs) {
+                {
+                    listOf(
+                        PatchConfig.PAGE_SIZE_4K to R.string.patcher_page_size_4k,
+                        PatchConfig.PAGE_SIZE_16K to R.string.patcher_page_size_16k
+                    ).forEach { (pageSize, label) ->
+                        Row(
+                            modifier = Modifier
+                                .fillMaxWidth()
+                                .clickable { viewModel.patchConfig = viewModel.patchConfig.copy(libPageSize = pageSize) },
+                            verticalAlignment = Alignment.CenterVertically
+                        ) {
+                            RadioButton(
+                                selected = viewModel.patchConfig.libPageSize == pageSize,
+                                onClick = { viewModel.patchConfig = viewModel.patchConfig.copy(libPageSize = pageSize) }
+                            )
+                            Spacer(modifier = Modifier.width(8.dp))
+                            Text(
+                                text = stringResource(label),
+                                style = MaterialTheme.typography.bodyMedium
+                            )
+                        }
+                    }
+                }
+            } else null
+        )
         Spacer(Modifier.height(48.dp))
     }
 }
@@ -391,6 +449,7 @@ private fun ConfigurationView(
 @Composable
 private fun PatchingView(viewModel: PatcherViewModel) {
     val context = LocalContext.current
+    var showMetrics by remember { mutableStateOf(false) }
 
     Column(
         modifier = Modifier
@@ -415,7 +474,7 @@ private fun PatchingView(viewModel: PatcherViewModel) {
                     horizontalArrangement = Arrangement.spacedBy(12.dp)
                 ) {
                     val showSaveButton = viewModel.patcherState == PatcherState.FINISHED &&
-                            viewModel.outputApkFile != null &&
+                            (viewModel.outputApkFile != null || viewModel.batchResults.any { it.isSuccess }) &&
                             !viewModel.savedToDownloads
 
                     AnimatedVisibility(
@@ -442,18 +501,79 @@ private fun PatchingView(viewModel: PatcherViewModel) {
                     ) {
                         Text(stringResource(R.string.patcher_return_button))
                     }
+                    if (viewModel.patcherState == PatcherState.FINISHED && viewModel.patchMetrics != null) {
+                        FilledTonalIconButton(onClick = { showMetrics = true }) {
+                            Icon(
+                                Icons.Outlined.Timer,
+                                contentDescription = stringResource(R.string.patcher_metrics_title)
+                            )
+                        }
+                    }
                 }
             }
             else -> Unit
         }
     }
+
+    val metrics = viewModel.patchMetrics
+    if (showMetrics && metrics != null) {
+        PatchMetricsDialog(metrics = metrics, onDismiss = { showMetrics = false })
+    }
+}
+
+@Composable
+private fun PatchMetricsDialog(metrics: PatchMetrics, onDismiss: () -> Unit) {
+    val context = LocalContext.current
+    fun size(bytes: Long) = Formatter.formatShortFileSize(context, bytes)
+
+    AlertDialog(
+        onDismissRequest = onDismiss,
+        title = { Text(stringResource(R.string.patcher_metrics_title)) },
+        text = {
+            Column(
+                modifier = Modifier.verticalScroll(rememberScrollState()),
+                verticalArrangement = Arrangement.spacedBy(8.dp)
+            ) {
+                Text(
+                    text = stringResource(R.string.patcher_metrics_total, metrics.totalTimeMs),
+                    fontWeight = FontWeight.Bold
+                )
+                metrics.stages.forEach { stage ->
+                    Column {
+                        Text(
+                            text = stage.stage.name.lowercase().replaceFirstChar { it.uppercase() },
+                            style = MaterialTheme.typography.titleSmall
+                        )
+                        Text(
+                            text = stringResource(
+                                R.string.patcher_metrics_stage,
+                                stage.wallTimeMs,
+                                size(stage.bytesRead),
+                                size(stage.bytesWritten),
+                                stage.entryCount,
+                                size(stage.heapHighWaterBytes)
+                            ),
+                            style = MaterialTheme.typography.bodySmall.copy(fontFamily = FontFamily.Monospace),
+                            color = MaterialTheme.colorScheme.onSurfaceVariant
+                        )
+                    }
+                }
+            }
+        },
+        confirmButton = {
+            TextButton(onClick = onDismiss) {
+                Text(stringResource(R.string.patcher_close_desc))
+            }
+        }
+    )
 }
 
 @Composable
 private fun ApkSourceDialog(
     onDismiss: () -> Unit,
     onStorageClick: () -> Unit,
-    onAppListClick: () -> Unit
+    onAppListClick: () -> Unit,
+    onBatchFilesClick: () -> Unit
 ) {
     AlertDialog(
         onDismissRequest = onDismiss,
@@ -505,6 +625,29 @@ private fun ApkSourceDialog(
                         }
                     }
                 }
+
+                Card(
+                    modifier = Modifier
+                        .fillMaxWidth()
+                        .clickable(onClick = onBatchFilesClick),
+                    colors = CardDefaults.cardColors(containerColor = MaterialTheme.colorScheme.surfaceVariant)
+                ) {
+                    Row(
+                        modifier = Modifier.padding(16.dp),
+                        verticalAlignment = Alignment.CenterVertically
+                    ) {
+                        Icon(Icons.Default.LibraryAdd, null, modifier = Modifier.size(24.dp))
+                        Spacer(modifier = Modifier.width(16.dp))
+                        Column {
+                            Text(stringResource(R.string.patcher_source_batch))
+                            Text(
+                                text = stringResource(R.string.patcher_source_batch_desc),
+                                style = MaterialTheme.typography.bodySmall,
+                                color = MaterialTheme.colorScheme.onSurfaceVariant
+                            )
+                        }
+                    }
+                }
             }
         },
         confirmButton = {
@@ -4,7 +4,9 @@ import android.content.Context
 import android.content.pm.PackageManager
 import android.graphics.Bitmap
 import android.graphics.drawable.Drawable
-import androidx.compose.foundation.clickable
+import androidx.compose.foundation.ExperimentalFoundationApi
+import androidx.compose.foundation.background
+import androidx.compose.foundation.combinedClickable
 import androidx.compose.foundation.layout.*
 import androidx.compose.foundation.lazy.LazyColumn
 import androidx.compose.foundation.lazy.items
@@ -130,16 +132,30 @@ class SelectAppsViewModel : ViewModel() {
     }
 }
 
+/**
+ * Tapping an app selects it for a single patch. Long-pressing starts a multi-selection,
+ * which is handed to [onAppsSelected] for batch patching.
+ */
 @OptIn(ExperimentalMaterial3Api::class)
 @Composable
 fun SelectAppsScreen(
     onAppSelected: (String, String, Boolean, List<String>) -> Unit,
+    onAppsSelected: (List<AppInfo>) -> Unit = {},
     onBackClick: () -> Unit,
     onTopBarConfigChanged: (TopBarConfig) -> Unit
 ) {
     val viewModel = viewModel<SelectAppsViewModel>()
     val context = LocalContext.current
     var searchText by remember { mutableStateOf("") }
+    var selectedPackages by remember { mutableStateOf(setOf<String>()) }
+
+    fun toggle(app: AppInfo) {
+        selectedPackages = if (app.packageName in selectedPackages) {
+            selectedPackages - app.packageName
+        } else {
+            selectedPackages + app.packageName
+        }
+    }
 
     // Set custom top bar for this screen
     LaunchedEffect(Unit) {
@@ -207,23 +223,45 @@ fun SelectAppsScreen(
         } else {
             AppList(
                 apps = viewModel.filteredApps,
+                selectedPackages = selectedPackages,
                 onAppClick = { app ->
-                    onAppSelected(
-                        app.packageName,
-                        app.appName,
-                        app.isSplit,
-                        app.splitApkPaths
-                    )
-                }
+                    if (selectedPackages.isNotEmpty()) {
+                        toggle(app)
+                    } else {
+                        onAppSelected(
+                            app.packageName,
+                            app.appName,
+                            app.isSplit,
+                            app.splitApkPaths
+                        )
+                    }
+                },
+                onAppLongClick = { app -> toggle(app) }
             )
+
+            if (selectedPackages.isNotEmpty()) {
+                ExtendedFloatingActionButton(
+                    modifier = Modifier
+                        .align(Alignment.BottomEnd)
+                        .padding(16.dp),
+                    onClick = {
+                        onAppsSelected(viewModel.allApps.filter { it.packageName in selectedPackages })
+                    }
+                ) {
+                    Text("Patch ${selectedPackages.size} apps")
+                }
+            }
         }
     }
 }
 
+@OptIn(ExperimentalFoundationApi::class)
 @Composable
 private fun AppList(
     apps: List<AppInfo>,
-    onAppClick: (AppInfo) -> Unit
+    selectedPackages: Set<String>,
+    onAppClick: (AppInfo) -> Unit,
+    onAppLongClick: (AppInfo) -> Unit
 ) {
     LazyColumn(
         modifier = Modifier.fillMaxSize()
@@ -234,7 +272,16 @@ private fun AppList(
         ) { app ->
             AppItem(
                 modifier = Modifier
-                    .clickable { onAppClick(app) },
+                    .background(
+                        if (app.packageName in selectedPackages)
+                            MaterialTheme.colorScheme.secondaryContainer
+                        else
+                            MaterialTheme.colorScheme.surface
+                    )
+                    .combinedClickable(
+                        onClick = { onAppClick(app) },
+                        onLongClick = { onAppLongClick(app) }
+                    ),
                 icon = app.appIcon,
                 label = app.appName,
                 packageName = app.packageName,
@@ -97,8 +97,9 @@ public class APKData {
     public static String findPackageName(List<String> apkList, Context context) {
         String name = null;
         for (String mAPKs : apkList) {
-            if (sAPKUtils.getPackageName(mAPKs, context) != null) {
-                name = Objects.requireNonNull(sAPKUtils.getPackageName(mAPKs, context));
+            if (!ApkIndex.isApk(new File(mAPKs))) continue;
+            name = sAPKUtils.getPackageName(mAPKs, context);
+            if (name != null) {
                 break;
             }
         }
@@ -137,7 +138,7 @@ public class APKData {
 
     private static boolean isValidBundle(File parentDir, Context context) {
         for (File files : Objects.requireNonNull(parentDir.listFiles())) {
-            if (files.getName().endsWith(".apk") && sAPKUtils.getPackageName(files.getAbsolutePath(), context) != null) {
+            if (files.getName().endsWith(".apk") && ApkIndex.isApk(files)) {
                 return true;
             }
         }
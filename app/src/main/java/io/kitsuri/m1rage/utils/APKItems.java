@@ -48,8 +48,7 @@ public class APKItems implements Serializable {
     public File getBaseAPK(Context context) {
         if (isDirectory()) {
             for (File file : Objects.requireNonNull(mAPKFile.listFiles())) {
-                if (file.isFile()
-                        && sAPKUtils.getPackageName(file.getAbsolutePath(), context) != null) {
+                if (ApkIndex.isApk(file)) {
                     return file;
                 }
             }
@@ -82,7 +81,7 @@ public class APKItems implements Serializable {
 
         if (isDirectory()) {
             for (File file : Objects.requireNonNull(mAPKFile.listFiles())) {
-                if (file.isFile() && sAPKUtils.getPackageName(file.getAbsolutePath(), context) != null) {
+                if (ApkIndex.isApk(file)) {
                     length += file.length();
                 }
             }
@@ -1,24 +1,19 @@
 package io.kitsuri.m1rage.utils;
 
 import android.content.Context;
-import android.os.Build;
 import android.util.Log;
 
 import com.android.apksig.ApkSigner;
+import com.android.apksig.ApkSignerEngine;
+import com.android.apksig.DefaultApkSignerEngine;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.Collections;
 
-import in.sunilpaulmathew.sCommon.FileUtils.sFileUtils;
 import io.kitsuri.m1rage.model.PatcherViewModel;
 
 public class APKSigner {
@@ -26,11 +21,12 @@ public class APKSigner {
     private static final String TAG = "APKSigner";
     private static PatcherViewModel viewModel;
 
-    private final Context mContext;
+    private final SigningSession mSession;
 
-    private static final String SIGN_DIR = "keystore";
+    static final String SIGN_DIR = "keystore";
     private static final String PK8_NAME = "HXOManager.pk8";
     private static final String CRD_NAME = "HXOManager_crd";
+    private static final String V4_SIGNATURE_SUFFIX = ".idsig";
 
     public static void setViewModel(PatcherViewModel vm) {
         viewModel = vm;
@@ -44,29 +40,18 @@ public class APKSigner {
         }
     }
 
+    /**
+     * Signs with the keys of the process-wide {@link SigningSession}, creating a signer is
+     * cheap once the keys have been loaded.
+     */
     public APKSigner(Context context) {
-        mContext = context;
-        ensureDefaultSigningKeys();
+        mSession = SigningSession.get(context);
     }
 
     public void sign(File apkFile, File output) throws Exception {
         addLog(Log.INFO, "Signing APK: " + apkFile.getName());
 
-        File pk8 = getPK8PrivateKey(mContext);
-        File crd = getSigningCredentials(mContext);
-
-        if (!pk8.exists() || !crd.exists()) {
-            addLog(Log.ERROR, "Signing keys missing");
-            throw new IllegalStateException("Signing keys missing");
-        }
-
-        addLog(Log.DEBUG, "Loading signing certificate");
-        ApkSigner.SignerConfig signerConfig =
-                new ApkSigner.SignerConfig.Builder(
-                        "CERT",
-                        new PK8File(pk8).getPrivateKey(),
-                        Collections.singletonList(getCertificate(mContext))
-                ).build();
+        ApkSigner.SignerConfig signerConfig = mSession.getSignerConfig();
 
         ApkSigner.Builder builder =
                 new ApkSigner.Builder(Collections.singletonList(signerConfig));
@@ -74,28 +59,57 @@ public class APKSigner {
         builder.setInputApk(apkFile);
         builder.setOutputApk(output);
         builder.setCreatedBy("Kitsuri Studios");
-        builder.setV1SigningEnabled(true);
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            builder.setV2SigningEnabled(true);
-            addLog(Log.DEBUG, "V2 signing enabled");
-        }
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
-            builder.setV3SigningEnabled(true);
-            addLog(Log.DEBUG, "V3 signing enabled");
-        }
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
-            builder.setV4SigningEnabled(true);
-            addLog(Log.DEBUG, "V4 signing enabled");
+        SignaturePlan plan = SignaturePlan.forApk(apkFile);
+        addLog(Log.DEBUG, "Signature schemes: " + plan);
+        builder.setV1SigningEnabled(plan.v1);
+        builder.setV2SigningEnabled(plan.v2);
+        builder.setV3SigningEnabled(plan.v3);
+        builder.setV4SigningEnabled(plan.v4);
+        if (plan.v4) {
+            // Replaced rather than written through, it may be linked into the output cache
+            File v4SignatureFile = getV4SignatureFile(output);
+            v4SignatureFile.delete();
+            builder.setV4SignatureOutputFile(v4SignatureFile);
         }
 
-        builder.setMinSdkVersion(-1);
+        builder.setMinSdkVersion(plan.minSdkVersion);
 
         addLog(Log.INFO, "Applying signature...");
         builder.build().sign();
         addLog(Log.INFO, "APK signed successfully");
     }
 
+    /**
+     * Creates a signer engine for {@link ApkRebuilder}, which signs the APK while it is being
+     * written, for the schemes of [plan]. The v2/v3 chunk digests are computed on
+     * [digestThreads] threads, or on apksig's default executor for
+     * {@link DigestExecutor#APKSIG_DEFAULT_THREADS}; the output does not depend on the thread count.
+     */
+    public static ApkSignerEngine createSignerEngine(DefaultApkSignerEngine.SignerConfig signerConfig,
+                                                     SignaturePlan plan, int digestThreads) throws Exception {
+        DefaultApkSignerEngine.Builder builder =
+                new DefaultApkSignerEngine.Builder(Collections.singletonList(signerConfig), plan.minSdkVersion);
+
+        builder.setCreatedBy("Kitsuri Studios");
+        builder.setV1SigningEnabled(plan.v1);
+        builder.setV2SigningEnabled(plan.v2);
+        builder.setV3SigningEnabled(plan.v3);
+
+        DefaultApkSignerEngine engine = builder.build();
+        if (digestThreads != DigestExecutor.APKSIG_DEFAULT_THREADS) {
+            engine.setExecutor(DigestExecutor.withThreads(digestThreads));
+        }
+        return engine;
+    }
+
+    /**
+     * The APK Signature Scheme v4 file of [apk], written next to it for incremental installs.
+     */
+    public static File getV4SignatureFile(File apk) {
+        return new File(apk.getPath() + V4_SIGNATURE_SUFFIX);
+    }
+
     public static File getPK8PrivateKey(Context context) {
         return new File(context.getFilesDir(), SIGN_DIR + "/" + PK8_NAME);
     }
@@ -104,17 +118,6 @@ public class APKSigner {
         return new File(context.getFilesDir(), SIGN_DIR + "/" + CRD_NAME);
     }
 
-    private static X509Certificate getCertificate(Context context) throws JSONException {
-        JSONObject json =
-                new JSONObject(sFileUtils.read(getSigningCredentials(context)));
-
-        String cert = json.getString("x509Certificate");
-
-        return encodeCertificate(
-                new ByteArrayInputStream(cert.getBytes())
-        );
-    }
-
     public static X509Certificate encodeCertificate(InputStream in) {
         try {
             return (X509Certificate) CertificateFactory
@@ -125,34 +128,4 @@ public class APKSigner {
             throw new RuntimeException("Invalid signing certificate", e);
         }
     }
-
-    private void ensureDefaultSigningKeys() {
-        File dir = new File(mContext.getFilesDir(), SIGN_DIR);
-        if (!dir.exists()) {
-            dir.mkdirs();
-            addLog(Log.DEBUG, "Created keystore directory");
-        }
-
-        copyAssetIfMissing(PK8_NAME);
-        copyAssetIfMissing(CRD_NAME);
-    }
-
-    private void copyAssetIfMissing(String name) {
-        File out = new File(mContext.getFilesDir(), SIGN_DIR + "/" + name);
-        if (out.exists()) return;
-
-        try (InputStream in = mContext.getAssets().open(SIGN_DIR + "/" + name);
-             FileOutputStream fos = new FileOutputStream(out)) {
-
-            byte[] buf = new byte[4096];
-            int r;
-            while ((r = in.read(buf)) != -1) {
-                fos.write(buf, 0, r);
-            }
-            addLog(Log.DEBUG, "Copied signing key: " + name);
-        } catch (Exception e) {
-            addLog(Log.ERROR, "Missing signing asset: " + name);
-            throw new RuntimeException("Missing signing asset: " + name, e);
-        }
-    }
-}
\ No newline at end of file
+}
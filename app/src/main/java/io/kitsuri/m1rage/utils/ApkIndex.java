@@ -0,0 +1,484 @@
+package io.kitsuri.m1rage.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Central directory of an archive, read once and kept in primitive arrays: names, methods,
+ * sizes, CRCs and local header offsets, plus a hash table from names to entry indices.
+ * {@link #of(File)} shares one index per file between {@link ApkRebuilder}, {@link ZipAlign}
+ * and the package helpers for as long as the file keeps its size and modification time.
+ * Instances are immutable.
+ */
+public final class ApkIndex {
+
+    static final int CENTRAL_HEADER_SIZE = 46;
+
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int MAX_EOCD_LOOKUP = 0xffff + EOCD_SIZE;
+
+    private static final int MAX_CACHED = 16;
+
+    private static final Map<String, ApkIndex> sCache = new LinkedHashMap<String, ApkIndex>(MAX_CACHED, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ApkIndex> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+
+    /** Index of an archive with no entries */
+    public static final ApkIndex EMPTY = new ApkIndex(0, new byte[0], 0, 0, 0, 0, false, -1, -1, null);
+
+    private final String[] mNames;
+    private final byte[] mNameData;
+    private final int[] mNameStarts;
+    private final int[] mFlags;
+    private final int[] mMethods;
+    private final int[] mDosTimes;
+    private final int[] mDosDates;
+    private final int[] mCrcs;
+    private final long[] mCompressedSizes;
+    private final long[] mUncompressedSizes;
+    private final long[] mLocalHeaderOffsets;
+    // One more than there are entries, the last one is the end of the records
+    private final int[] mCentralPositions;
+    private final int[] mZip64OffsetFields;
+    // Open addressing, entry index + 1, 0 marks a free slot
+    private final int[] mTable;
+
+    private final long mCentralDirectoryOffset;
+    private final long mCentralDirectorySize;
+    private final long mEocdOffset;
+    private final long mEndRecordsOffset;
+    private final boolean mZip64;
+
+    // Validation key of cached indexes
+    private final long mFileLength;
+    private final long mModifiedNanos;
+    private final Object mFileKey;
+
+    private ApkIndex(int count, byte[] nameData, long centralDirectoryOffset, long centralDirectorySize,
+                     long eocdOffset, long endRecordsOffset, boolean zip64,
+                     long fileLength, long modifiedNanos, Object fileKey) {
+        mNames = new String[count];
+        mNameStarts = new int[count + 1];
+        mNameData = nameData;
+        mFlags = new int[count];
+        mMethods = new int[count];
+        mDosTimes = new int[count];
+        mDosDates = new int[count];
+        mCrcs = new int[count];
+        mCompressedSizes = new long[count];
+        mUncompressedSizes = new long[count];
+        mLocalHeaderOffsets = new long[count];
+        mCentralPositions = new int[count + 1];
+        mZip64OffsetFields = new int[count];
+        mTable = new int[tableSize(count)];
+        mCentralDirectoryOffset = centralDirectoryOffset;
+        mCentralDirectorySize = centralDirectorySize;
+        mEocdOffset = eocdOffset;
+        mEndRecordsOffset = endRecordsOffset;
+        mZip64 = zip64;
+        mFileLength = fileLength;
+        mModifiedNanos = modifiedNanos;
+        mFileKey = fileKey;
+    }
+
+    /**
+     * Returns the index of [file], from the cache if the file has not changed since it was
+     * read.
+     */
+    public static ApkIndex of(File file) throws IOException {
+        String key = file.getCanonicalPath();
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        long modified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+
+        synchronized (sCache) {
+            ApkIndex cached = sCache.get(key);
+            if (cached != null && cached.mFileLength == attributes.size() && cached.mModifiedNanos == modified
+                    && Objects.equals(cached.mFileKey, attributes.fileKey())) {
+                return cached;
+            }
+        }
+
+        ApkIndex index;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            index = read(channel, 0, channel.size(), attributes.size(), modified, attributes.fileKey());
+        }
+
+        synchronized (sCache) {
+            sCache.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * Drops the cached index of [file], for callers that rewrite it within the resolution
+     * of the file system timestamps.
+     */
+    public static void invalidate(File file) {
+        try {
+            String key = file.getCanonicalPath();
+            synchronized (sCache) {
+                sCache.remove(key);
+            }
+        } catch (IOException ignored) {
+            // Never cached under a path that cannot be resolved
+        }
+    }
+
+    /**
+     * Returns true if [file] is a readable archive with an AndroidManifest.xml entry.
+     */
+    public static boolean isApk(File file) {
+        try {
+            return file.isFile() && of(file).contains("AndroidManifest.xml");
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the central directory of the archive in [channel], without caching.
+     */
+    public static ApkIndex read(FileChannel channel) throws IOException {
+        return read(channel, 0, channel.size());
+    }
+
+    /**
+     * Reads the central directory of the archive spanning [length] bytes from [start] of
+     * [channel], e.g. a stored APK inside a bundle, without caching. Offsets in the index are
+     * relative to [start].
+     */
+    public static ApkIndex read(FileChannel channel, long start, long length) throws IOException {
+        return read(channel, start, length, -1, -1, null);
+    }
+
+    private static ApkIndex read(FileChannel channel, long start, long length,
+                                 long fileLength, long modifiedNanos, Object fileKey) throws IOException {
+        int tailLength = (int) Math.min(length, MAX_EOCD_LOOKUP);
+        long tailStart = length - tailLength;
+        ByteBuffer tail = ByteBuffer.allocate(tailLength).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, tail, start + tailStart);
+
+        int eocd = -1;
+        for (int i = tailLength - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE
+                    && i + EOCD_SIZE + (tail.getShort(i + 20) & 0xffff) == tailLength) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException("No end-of-central-directory found");
+        }
+
+        long eocdOffset = tailStart + eocd;
+        Zip64.CentralDirectory location = Zip64.locate(channel, start, tail, tailStart, eocd);
+        long cdSize = location.size;
+        long cdOffset = location.offset;
+        if (cdOffset + cdSize > location.endRecordsOffset(eocdOffset) || cdSize > Integer.MAX_VALUE
+                || location.entryCount > Integer.MAX_VALUE) {
+            throw new IOException("Central directory out of range");
+        }
+        int count = (int) location.entryCount;
+
+        ByteBuffer cd = ByteBuffer.allocate((int) cdSize).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, cd, start + cdOffset);
+
+        // First pass checks the records and sizes the array all names are copied into
+        int nameBytes = 0;
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            if (pos + CENTRAL_HEADER_SIZE > cdSize || cd.getInt(pos) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Corrupt central directory entry at " + (cdOffset + pos));
+            }
+            int nameLen = cd.getShort(pos + 28) & 0xffff;
+            nameBytes += nameLen;
+            pos += CENTRAL_HEADER_SIZE + nameLen + (cd.getShort(pos + 30) & 0xffff) + (cd.getShort(pos + 32) & 0xffff);
+            if (pos > cdSize) {
+                throw new IOException("Corrupt central directory entry at " + (cdOffset + pos));
+            }
+        }
+
+        ApkIndex index = new ApkIndex(count, new byte[nameBytes], cdOffset, cdSize, eocdOffset,
+                location.endRecordsOffset(eocdOffset), location.isZip64(), fileLength, modifiedNanos, fileKey);
+
+        int nameStart = 0;
+        pos = 0;
+        for (int i = 0; i < count; i++) {
+            int nameLen = cd.getShort(pos + 28) & 0xffff;
+            int extraLen = cd.getShort(pos + 30) & 0xffff;
+            int commentLen = cd.getShort(pos + 32) & 0xffff;
+
+            index.mCentralPositions[i] = pos;
+            index.mFlags[i] = cd.getShort(pos + 8) & 0xffff;
+            index.mMethods[i] = cd.getShort(pos + 10) & 0xffff;
+            index.mDosTimes[i] = cd.getShort(pos + 12) & 0xffff;
+            index.mDosDates[i] = cd.getShort(pos + 14) & 0xffff;
+            index.mCrcs[i] = cd.getInt(pos + 16);
+            index.mCompressedSizes[i] = cd.getInt(pos + 20) & 0xffffffffL;
+            index.mUncompressedSizes[i] = cd.getInt(pos + 24) & 0xffffffffL;
+            index.mLocalHeaderOffsets[i] = cd.getInt(pos + 42) & 0xffffffffL;
+            index.mZip64OffsetFields[i] = -1;
+            index.readZip64Extra(cd, i, pos + CENTRAL_HEADER_SIZE + nameLen, extraLen);
+
+            cd.position(pos + CENTRAL_HEADER_SIZE);
+            cd.get(index.mNameData, nameStart, nameLen);
+            index.mNameStarts[i] = nameStart;
+            index.mNames[i] = new String(index.mNameData, nameStart, nameLen, StandardCharsets.UTF_8);
+            index.insert(i);
+
+            nameStart += nameLen;
+            pos += CENTRAL_HEADER_SIZE + nameLen + extraLen + commentLen;
+        }
+        index.mNameStarts[count] = nameStart;
+        index.mCentralPositions[count] = pos;
+        return index;
+    }
+
+    /**
+     * Replaces the 32-bit values of entry [i] that are 0xffffffff with those of the ZIP64
+     * extra field, and remembers where its local header offset is.
+     */
+    private void readZip64Extra(ByteBuffer cd, int i, int extraStart, int extraLen) throws IOException {
+        boolean uncompressed = mUncompressedSizes[i] == Zip64.MAGIC32;
+        boolean compressed = mCompressedSizes[i] == Zip64.MAGIC32;
+        boolean offset = mLocalHeaderOffsets[i] == Zip64.MAGIC32;
+        if (!uncompressed && !compressed && !offset) return;
+
+        int data = Zip64.findExtra(cd, extraStart, extraLen, Zip64.EXTRA_ID);
+        int fields = (uncompressed ? 1 : 0) + (compressed ? 1 : 0) + (offset ? 1 : 0);
+        if (data < 0 || Zip64.extraSize(cd, data) < fields * 8) {
+            throw new IOException("Missing ZIP64 extra field at central directory " + extraStart);
+        }
+
+        int field = data;
+        if (uncompressed) {
+            mUncompressedSizes[i] = cd.getLong(field);
+            field += 8;
+        }
+        if (compressed) {
+            mCompressedSizes[i] = cd.getLong(field);
+            field += 8;
+        }
+        if (offset) {
+            mLocalHeaderOffsets[i] = cd.getLong(field);
+            mZip64OffsetFields[i] = field - mCentralPositions[i];
+        }
+    }
+
+    private void insert(int i) {
+        int mask = mTable.length - 1;
+        String name = mNames[i];
+        for (int slot = hash(name) & mask; ; slot = (slot + 1) & mask) {
+            int existing = mTable[slot];
+            if (existing == 0) {
+                mTable[slot] = i + 1;
+                return;
+            }
+            if (mNames[existing - 1].equals(name)) {
+                // Duplicate names resolve to the last entry, like a map built in order
+                mTable[slot] = i + 1;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Index of the entry named [name], or -1. Of duplicate names the last one is returned.
+     */
+    public int indexOf(String name) {
+        if (name == null || mNames.length == 0) return -1;
+        int mask = mTable.length - 1;
+        for (int slot = hash(name) & mask; ; slot = (slot + 1) & mask) {
+            int i = mTable[slot] - 1;
+            if (i < 0) return -1;
+            if (mNames[i].equals(name)) return i;
+        }
+    }
+
+    public boolean contains(String name) {
+        return indexOf(name) >= 0;
+    }
+
+    /** Number of central directory records, duplicates included */
+    public int size() {
+        return mNames.length;
+    }
+
+    /**
+     * Distinct entry names in central directory order, a view without copies.
+     */
+    public Set<String> names() {
+        return new AbstractSet<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new Iterator<String>() {
+                    private int mNext = advance(0);
+
+                    private int advance(int from) {
+                        while (from < mNames.length && indexOf(mNames[from]) != from) from++;
+                        return from;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return mNext < mNames.length;
+                    }
+
+                    @Override
+                    public String next() {
+                        if (!hasNext()) throw new NoSuchElementException();
+                        String name = mNames[mNext];
+                        mNext = advance(mNext + 1);
+                        return name;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                int distinct = 0;
+                for (int i = 0; i < mNames.length; i++) {
+                    if (indexOf(mNames[i]) == i) distinct++;
+                }
+                return distinct;
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof String && ApkIndex.this.contains((String) o);
+            }
+        };
+    }
+
+    public String name(int i) {
+        return mNames[i];
+    }
+
+    /** Raw name bytes as stored in the central directory */
+    public byte[] nameBytes(int i) {
+        byte[] bytes = new byte[mNameStarts[i + 1] - mNameStarts[i]];
+        System.arraycopy(mNameData, mNameStarts[i], bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    /** True if the name of entry [i] ends with [suffix], compared on the raw bytes */
+    boolean nameEndsWith(int i, String suffix) {
+        int end = mNameStarts[i + 1];
+        int start = end - suffix.length();
+        if (start < mNameStarts[i]) return false;
+        for (int k = 0; k < suffix.length(); k++) {
+            if (mNameData[start + k] != suffix.charAt(k)) return false;
+        }
+        return true;
+    }
+
+    public int flags(int i) {
+        return mFlags[i];
+    }
+
+    public int method(int i) {
+        return mMethods[i];
+    }
+
+    public int dosTime(int i) {
+        return mDosTimes[i];
+    }
+
+    public int dosDate(int i) {
+        return mDosDates[i];
+    }
+
+    public long crc(int i) {
+        return mCrcs[i] & 0xffffffffL;
+    }
+
+    public long compressedSize(int i) {
+        return mCompressedSizes[i];
+    }
+
+    public long uncompressedSize(int i) {
+        return mUncompressedSizes[i];
+    }
+
+    public long localHeaderOffset(int i) {
+        return mLocalHeaderOffsets[i];
+    }
+
+    /** Position of the record of entry [i] within the central directory */
+    int centralPosition(int i) {
+        return mCentralPositions[i];
+    }
+
+    /** Length of the record of entry [i] within the central directory */
+    int centralLength(int i) {
+        return mCentralPositions[i + 1] - mCentralPositions[i];
+    }
+
+    /**
+     * Position of the 64-bit local header offset of entry [i] relative to its central
+     * directory record, or -1 if the offset is stored in the record itself.
+     */
+    int zip64OffsetField(int i) {
+        return mZip64OffsetFields[i];
+    }
+
+    public long getCentralDirectoryOffset() {
+        return mCentralDirectoryOffset;
+    }
+
+    public long getCentralDirectorySize() {
+        return mCentralDirectorySize;
+    }
+
+    long getEocdOffset() {
+        return mEocdOffset;
+    }
+
+    /** Start of the end records: the ZIP64 EOCD if present, otherwise the EOCD */
+    long getEndRecordsOffset() {
+        return mEndRecordsOffset;
+    }
+
+    public boolean isZip64() {
+        return mZip64;
+    }
+
+    private static int tableSize(int count) {
+        int size = 2;
+        while (size < count * 2) size <<= 1;
+        return size;
+    }
+
+    private static int hash(String name) {
+        int h = name.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int len = channel.read(buffer, position + buffer.position());
+            if (len < 0) throw new IOException("Unexpected end of archive");
+        }
+        buffer.flip();
+    }
+}
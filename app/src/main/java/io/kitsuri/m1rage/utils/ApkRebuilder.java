@@ -0,0 +1,1096 @@
+package io.kitsuri.m1rage.utils;
+
+import android.util.Log;
+
+import com.android.apksig.ApkSignerEngine;
+import com.android.apksig.apk.ApkFormatException;
+import com.android.apksig.util.DataSources;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SignatureException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+import io.kitsuri.m1rage.model.PatcherViewModel;
+
+/**
+ * Rebuilds an APK from its original archive. Entries that are not replaced or removed are
+ * copied with their compressed bytes untouched; only replaced and added entries are
+ * compressed again.
+ *
+ * Stored entries are padded for alignment while their local headers are written, and when a
+ * signer engine is set the signed APK comes out of the same sequential pass.
+ *
+ * Fresh entries are compressed on a bounded pool a few entries ahead of the writer, so the
+ * output is the same whatever the parallelism.
+ */
+public class ApkRebuilder {
+
+    private static final String TAG = "ApkRebuilder";
+    private static PatcherViewModel viewModel;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int FLAG_UTF8 = 0x800;
+
+    // 1981-01-01 00:00, same fixed timestamp aapt2 uses for generated entries
+    private static final int DEFAULT_DOS_TIME = 0;
+    private static final int DEFAULT_DOS_DATE = (1 << 9) | (1 << 5) | 1;
+
+    public static final int DEFAULT_PARALLELISM =
+            Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+    // Compressed entries waiting for the writer, per worker
+    private static final int LOOKAHEAD_PER_THREAD = 2;
+
+    private final File mSource;
+    // Offset of the source APK in mSource, non-zero for an APK stored inside another archive
+    private final long mSourceStart;
+    private final ApkIndex mIndex;
+    private final Map<String, Replacement> mReplacements = new LinkedHashMap<>();
+    private final Set<String> mRemovals = new HashSet<>();
+    private final List<String> mRemovedPrefixes = new ArrayList<>();
+
+    private int mAlignment = 0;
+    private int mSoAlignment = 0;
+    private int mParallelism = DEFAULT_PARALLELISM;
+    private ApkSignerEngine mSignerEngine;
+    private File mV4SignatureFile;
+
+    private long mBytesRead;
+    private int mAlignedEntries;
+    private long mPaddingBytes;
+    private long mSignNanos;
+    private Stats mStats;
+
+    public static void setViewModel(PatcherViewModel vm) {
+        viewModel = vm;
+    }
+
+    private static void addLog(int level, String message) {
+        if (viewModel != null) {
+            viewModel.addLog(level, message);
+        } else {
+            Log.println(level, TAG, message);
+        }
+    }
+
+    public ApkRebuilder(File source) throws IOException {
+        mSource = source;
+        mSourceStart = 0;
+        mIndex = ApkIndex.of(source);
+    }
+
+    private ApkRebuilder(File archive, long start, ApkIndex index) {
+        mSource = archive;
+        mSourceStart = start;
+        mIndex = index;
+    }
+
+    /**
+     * Starts a new archive with no source, every entry is added with {@link #put}.
+     */
+    public ApkRebuilder() {
+        mSource = null;
+        mSourceStart = 0;
+        mIndex = ApkIndex.EMPTY;
+    }
+
+    /**
+     * Opens the APK stored as entry [member] of the source archive, e.g. a split inside a
+     * bundle, as a source of its own. Its entries are read in place, nothing is extracted.
+     * Returns null if there is no such member.
+     *
+     * @throws IOException if [member] is compressed, which needs it extracted first, or if it
+     *                     is not a readable archive
+     */
+    public ApkRebuilder openNested(String member) throws IOException {
+        Entry outer = sourceEntry(member);
+        if (outer == null) return null;
+        if (outer.method != ZipEntry.STORED) {
+            throw new IOException(member + " is compressed");
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(mSource, "r")) {
+            FileChannel channel = raf.getChannel();
+            long start = getDataOffset(channel, outer);
+            return new ApkRebuilder(mSource, start, ApkIndex.read(channel, start, outer.compressedSize));
+        }
+    }
+
+    /**
+     * Central directory of the source archive, shared with every other reader of the file.
+     * For a nested source, offsets are relative to the start of the nested APK.
+     */
+    public ApkIndex getIndex() {
+        return mIndex;
+    }
+
+    public Set<String> getEntryNames() {
+        return mIndex.names();
+    }
+
+    public boolean hasEntry(String name) {
+        return mIndex.contains(name);
+    }
+
+    /**
+     * Returns true if the source archive holds an entry with the same size and CRC as the file.
+     */
+    public boolean matches(String name, File file) throws IOException {
+        int i = mIndex.indexOf(name);
+        if (i < 0 || mIndex.uncompressedSize(i) != file.length()) return false;
+        return mIndex.crc(i) == crc32(file);
+    }
+
+    /**
+     * Replaces or adds an entry. Replaced entries keep their original compression method,
+     * new entries are deflated.
+     */
+    public ApkRebuilder put(String name, File data) {
+        int i = mIndex.indexOf(name);
+        return put(name, data, i >= 0 ? mIndex.method(i) : ZipEntry.DEFLATED);
+    }
+
+    public ApkRebuilder put(String name, File data, int method) {
+        mRemovals.remove(name);
+        mReplacements.put(name, new Replacement(data, method));
+        return this;
+    }
+
+    public ApkRebuilder remove(String name) {
+        mReplacements.remove(name);
+        mRemovals.add(name);
+        return this;
+    }
+
+    public ApkRebuilder removeDirectory(String prefix) {
+        mRemovedPrefixes.add(prefix.endsWith("/") ? prefix : prefix + "/");
+        return this;
+    }
+
+    /**
+     * Pads stored entries so their data starts on a multiple of [alignment], and stored .so
+     * files on a multiple of [soAlignment]. Compressed entries are never padded, see
+     * {@link ZipAlign#entryAlignment}.
+     */
+    public ApkRebuilder setAlignment(int alignment, int soAlignment) {
+        mAlignment = alignment;
+        mSoAlignment = soAlignment;
+        return this;
+    }
+
+    /**
+     * Number of threads compressing fresh entries, 1 compresses on the writing thread.
+     */
+    public ApkRebuilder setParallelism(int parallelism) {
+        mParallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    /**
+     * Signs the output while it is written. The engine is closed once the APK is done.
+     */
+    public ApkRebuilder setSignerEngine(ApkSignerEngine signerEngine) {
+        mSignerEngine = signerEngine;
+        return this;
+    }
+
+    /**
+     * Also writes an APK Signature Scheme v4 file of the signed output, null writes none.
+     * The engine computes its fs-verity Merkle tree over the finished APK.
+     */
+    public ApkRebuilder setV4SignatureFile(File v4SignatureFile) {
+        mV4SignatureFile = v4SignatureFile;
+        return this;
+    }
+
+    /**
+     * Rough upper bound of the heap {@link #writeTo} needs: copy buffers per thread plus the
+     * deflated replacements, whose compressed bytes are held until they are written.
+     */
+    public long estimateMemory() {
+        long estimate = (long) (mParallelism + 1) * 2 * 65536;
+        for (Replacement replacement : mReplacements.values()) {
+            if (replacement.method != ZipEntry.STORED) {
+                estimate += replacement.data.length();
+            }
+        }
+        return estimate;
+    }
+
+    /**
+     * Uncompressed size of a source entry, or -1 if there is no such entry.
+     */
+    public long getUncompressedSize(String name) {
+        int i = mIndex.indexOf(name);
+        return i >= 0 ? mIndex.uncompressedSize(i) : -1;
+    }
+
+    /**
+     * Compression method of a source entry, or -1 if there is no such entry.
+     */
+    public int getMethod(String name) {
+        int i = mIndex.indexOf(name);
+        return i >= 0 ? mIndex.method(i) : -1;
+    }
+
+    /**
+     * Counters of the last {@link #writeTo} call, or null if it has not run yet.
+     */
+    public Stats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Extracts a single entry of the source archive into a file. Stored entries are copied
+     * with {@link FileChannel#transferTo}, deflated ones are inflated.
+     */
+    public boolean extract(String name, File target) throws IOException {
+        Entry entry = sourceEntry(name);
+        if (entry == null) return false;
+
+        try (RandomAccessFile raf = new RandomAccessFile(mSource, "r");
+             FileOutputStream out = new FileOutputStream(target)) {
+            FileChannel channel = raf.getChannel();
+            if (entry.method == ZipEntry.STORED) {
+                transferFully(channel, getDataOffset(channel, entry), entry.compressedSize, out.getChannel());
+                return true;
+            }
+            try (InputStream in = openEntry(channel, entry)) {
+                byte[] buffer = new byte[65536];
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, len);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Opens a single entry of the source archive for reading, or returns null if there is no
+     * such entry. Closing the stream closes the archive.
+     */
+    public InputStream openEntry(String name) throws IOException {
+        Entry entry = sourceEntry(name);
+        if (entry == null) return null;
+
+        RandomAccessFile raf = new RandomAccessFile(mSource, "r");
+        try {
+            InputStream in = openEntry(raf.getChannel(), entry);
+            return new FilterInputStream(in) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        raf.close();
+                    }
+                }
+            };
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a single entry of the source archive into memory, or returns null if there is no
+     * such entry. Stored entries are returned as a read-only mapping of their byte range,
+     * deflated ones are inflated into a heap buffer of their uncompressed size.
+     */
+    public ByteBuffer readEntry(String name) throws IOException {
+        Entry entry = sourceEntry(name);
+        if (entry == null) return null;
+
+        try (RandomAccessFile raf = new RandomAccessFile(mSource, "r")) {
+            return readEntry(raf.getChannel(), entry);
+        }
+    }
+
+    /**
+     * Reads entry [name] of the APK stored as entry [member] of the source archive, e.g. the
+     * manifest of a split inside a bundle. Only the central directory of the nested APK and
+     * the entry itself are read. Returns null if there is no such member or nested entry.
+     *
+     * @throws IOException if [member] is compressed, which needs it extracted first, or if it
+     *                     is not a readable archive
+     */
+    public ByteBuffer readNestedEntry(String member, String name) throws IOException {
+        ApkRebuilder nested = openNested(member);
+        return nested != null ? nested.readEntry(name) : null;
+    }
+
+    private static ByteBuffer readEntry(FileChannel channel, Entry entry) throws IOException {
+        if (entry.compressedSize > Integer.MAX_VALUE || entry.uncompressedSize > Integer.MAX_VALUE) {
+            throw new IOException(entry.name + " is too large to read into memory");
+        }
+
+        long dataOffset = getDataOffset(channel, entry);
+        if (entry.method == ZipEntry.STORED) {
+            // The mapping stays valid once the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, dataOffset, entry.compressedSize);
+        }
+
+        ByteBuffer raw = ByteBuffer.allocate((int) entry.compressedSize);
+        readFully(channel, raw, dataOffset);
+        return ByteBuffer.wrap(inflate(raw.array(), (int) entry.uncompressedSize, entry.name));
+    }
+
+    /**
+     * Writes the archive. An existing output file and v4 signature file are replaced, not
+     * written through, so hard links to a previous output keep their content.
+     */
+    public void writeTo(File output) throws IOException {
+        addLog(Log.INFO, "Rebuilding " + output.getName()
+                + (mSource != null ? " from " + mSource.getName() : ""));
+
+        long startTime = System.nanoTime();
+        mBytesRead = 0;
+        mAlignedEntries = 0;
+        mPaddingBytes = 0;
+        mSignNanos = 0;
+
+        List<PendingEntry> plan = planEntries();
+        int copied = 0;
+        int written = 0;
+        long outputSize = 0;
+        List<Entry> outputEntries = new ArrayList<>();
+
+        if (output.exists() && !output.delete()) {
+            throw new IOException("Failed to replace " + output.getName());
+        }
+        if (mV4SignatureFile != null && mV4SignatureFile.exists() && !mV4SignatureFile.delete()) {
+            throw new IOException("Failed to replace " + mV4SignatureFile.getName());
+        }
+        ApkIndex.invalidate(output);
+
+        ExecutorService pool = mParallelism > 1 ? Executors.newFixedThreadPool(mParallelism) : null;
+        try (RandomAccessFile in = mSource != null ? new RandomAccessFile(mSource, "r") : null;
+             RandomAccessFile out = new RandomAccessFile(output, "rw")) {
+            out.setLength(0);
+            FileChannel src = in != null ? in.getChannel() : null;
+            FileChannel dst = out.getChannel();
+
+            Deque<Future<Compressed>> compressed = new ArrayDeque<>();
+            int lookahead = pool != null ? mParallelism * LOOKAHEAD_PER_THREAD : 1;
+            int next = 0;
+
+            for (PendingEntry pending : plan) {
+                if (pending.replacement == null) {
+                    outputEntries.add(copyRaw(src, dst, pending.previous));
+                    copied++;
+                    continue;
+                }
+
+                // Queue up the next fresh entries so workers stay ahead of the writer
+                while (next < plan.size() && compressed.size() < lookahead) {
+                    PendingEntry ahead = plan.get(next++);
+                    if (ahead.replacement != null) {
+                        compressed.add(submit(pool, ahead.replacement));
+                    }
+                }
+                outputEntries.add(writeFresh(dst, pending, await(compressed.poll())));
+                written++;
+            }
+
+            if (mSignerEngine != null) {
+                long signStart = System.nanoTime();
+                writeJarSignature(dst, outputEntries);
+                mSignNanos += System.nanoTime() - signStart;
+            }
+
+            long cdOffset = dst.position();
+            ByteBuffer cd = buildCentralDirectory(outputEntries);
+            boolean zip64 = Zip64.needsEndRecords(outputEntries.size(), cd.remaining(), cdOffset);
+            if (zip64 && mSignerEngine != null) {
+                // APK signature schemes v2+ reject ZIP64 archives, and so does the installer
+                throw new IOException("Signed APK exceeds the non-ZIP64 limits: " + outputEntries.size()
+                        + " entries, central directory at " + cdOffset);
+            }
+            ByteBuffer eocd = Zip64.buildEnd(outputEntries.size(), cd.remaining(), cdOffset,
+                    cdOffset + cd.remaining(), zip64, null);
+
+            if (mSignerEngine != null) {
+                long signStart = System.nanoTime();
+                writeSigningBlock(out, cdOffset, cd, eocd);
+                mSignNanos += System.nanoTime() - signStart;
+            }
+
+            writeFully(dst, cd);
+            writeFully(dst, eocd);
+
+            if (mSignerEngine != null) {
+                long signStart = System.nanoTime();
+                mSignerEngine.outputDone();
+                if (mV4SignatureFile != null) {
+                    writeV4Signature(out, dst.size());
+                }
+                mSignNanos += System.nanoTime() - signStart;
+            }
+            outputSize = dst.size();
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+            if (mSignerEngine != null) {
+                mSignerEngine.close();
+            }
+        }
+
+        mStats = new Stats(copied, written, mBytesRead, outputSize, mAlignedEntries, mPaddingBytes,
+                mSignNanos, System.nanoTime() - startTime);
+        addLog(Log.DEBUG, "Copied " + copied + " entries as-is, wrote " + written + " entries"
+                + (pool != null ? " on " + mParallelism + " threads" : ""));
+    }
+
+    /**
+     * Output order: kept source entries in their original order, then added entries in the
+     * order they were put.
+     */
+    private List<PendingEntry> planEntries() {
+        List<PendingEntry> plan = new ArrayList<>();
+        for (int i = 0; i < mIndex.size(); i++) {
+            String name = mIndex.name(i);
+            // Of duplicate names only the last record is kept
+            if (isRemoved(name) || mIndex.indexOf(name) != i) continue;
+            plan.add(new PendingEntry(name, mReplacements.get(name), sourceEntryAt(i)));
+        }
+        for (Map.Entry<String, Replacement> added : mReplacements.entrySet()) {
+            if (mIndex.contains(added.getKey())) continue;
+            plan.add(new PendingEntry(added.getKey(), added.getValue(), null));
+        }
+        return plan;
+    }
+
+    private static Future<Compressed> submit(ExecutorService pool, Replacement replacement) {
+        Callable<Compressed> task = () -> compress(replacement);
+        if (pool != null) {
+            return pool.submit(task);
+        }
+        FutureTask<Compressed> inline = new FutureTask<>(task);
+        inline.run();
+        return inline;
+    }
+
+    private static Compressed await(Future<Compressed> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing entries", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("Failed to compress entry", cause);
+        }
+    }
+
+    private void writeJarSignature(FileChannel dst, List<Entry> outputEntries) throws IOException {
+        try {
+            ApkSignerEngine.OutputJarSignatureRequest request = mSignerEngine.outputJarEntries();
+            if (request == null) return;
+
+            for (ApkSignerEngine.OutputJarSignatureRequest.JarEntry jarEntry : request.getAdditionalJarEntries()) {
+                outputEntries.add(writeBytes(dst, jarEntry.getName(), jarEntry.getData(), ZipEntry.DEFLATED, null));
+            }
+            request.done();
+        } catch (ApkFormatException | GeneralSecurityException e) {
+            throw new IOException("Failed to generate JAR signature", e);
+        }
+    }
+
+    private void writeSigningBlock(RandomAccessFile out, long cdOffset, ByteBuffer cd, ByteBuffer eocd)
+            throws IOException {
+        try {
+            ApkSignerEngine.OutputApkSigningBlockRequest2 request = mSignerEngine.outputZipSections2(
+                    DataSources.asDataSource(out, 0, cdOffset),
+                    DataSources.asDataSource(cd.duplicate()),
+                    DataSources.asDataSource(eocd.duplicate())
+            );
+
+            // The data source reads through the same channel, so restore the write position
+            out.getChannel().position(cdOffset);
+            if (request == null) return;
+
+            int padding = request.getPaddingSizeBeforeApkSigningBlock();
+            byte[] block = request.getApkSigningBlock();
+            writeFully(out.getChannel(), ByteBuffer.allocate(padding));
+            writeFully(out.getChannel(), ByteBuffer.wrap(block));
+            eocd.putInt(16, (int) (cdOffset + padding + block.length));
+            request.done();
+        } catch (ApkFormatException | GeneralSecurityException e) {
+            throw new IOException("Failed to generate APK signing block", e);
+        }
+    }
+
+    private void writeV4Signature(RandomAccessFile out, long size) throws IOException {
+        try {
+            mSignerEngine.signV4(DataSources.asDataSource(out, 0, size), mV4SignatureFile, false);
+        } catch (SignatureException e) {
+            mV4SignatureFile.delete();
+            throw new IOException("Failed to generate v4 signature", e);
+        }
+    }
+
+    private boolean isRemoved(String name) {
+        if (mRemovals.contains(name)) return true;
+        for (String prefix : mRemovedPrefixes) {
+            if (name.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    private Entry copyRaw(FileChannel src, FileChannel dst, Entry entry) throws IOException {
+        long dataOffset = getDataOffset(src, entry);
+
+        Entry out = entry.copy();
+        out.flags = entry.flags & ~FLAG_DATA_DESCRIPTOR;
+        out.localHeaderOffset = dst.position();
+
+        writeLocalHeader(dst, out);
+        transferFully(src, dataOffset, entry.compressedSize, dst);
+        mBytesRead += entry.compressedSize;
+
+        long signStart = System.nanoTime();
+        ApkSignerEngine.InspectJarEntryRequest request = outputJarEntry(entry.name);
+        if (request != null) {
+            try (InputStream data = openEntry(src, entry)) {
+                byte[] buffer = new byte[65536];
+                int len;
+                while ((len = data.read(buffer)) != -1) {
+                    request.getDataSink().consume(buffer, 0, len);
+                }
+            }
+            request.done();
+        }
+        mSignNanos += System.nanoTime() - signStart;
+        return out;
+    }
+
+    private Entry writeFresh(FileChannel dst, PendingEntry pending, Compressed compressed)
+            throws IOException {
+        Replacement replacement = pending.replacement;
+        Entry out = newEntry(pending.name, replacement.method, pending.previous);
+        out.crc = compressed.crc;
+        out.compressedSize = compressed.payload != null ? compressed.payload.length : compressed.size;
+        out.uncompressedSize = compressed.size;
+        out.localHeaderOffset = dst.position();
+
+        writeLocalHeader(dst, out);
+        if (compressed.payload != null) {
+            writeFully(dst, ByteBuffer.wrap(compressed.payload));
+        } else {
+            try (FileInputStream data = new FileInputStream(replacement.data)) {
+                transferFully(data.getChannel(), 0, compressed.size, dst);
+            }
+        }
+        mBytesRead += compressed.size;
+
+        long signStart = System.nanoTime();
+        ApkSignerEngine.InspectJarEntryRequest request = outputJarEntry(pending.name);
+        if (request != null) {
+            try (FileInputStream data = new FileInputStream(replacement.data)) {
+                byte[] buffer = new byte[65536];
+                int len;
+                while ((len = data.read(buffer)) != -1) {
+                    request.getDataSink().consume(buffer, 0, len);
+                }
+            }
+            request.done();
+        }
+        mSignNanos += System.nanoTime() - signStart;
+        return out;
+    }
+
+    private Entry writeBytes(FileChannel dst, String name, byte[] raw, int method, Entry previous)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(raw, 0, raw.length);
+
+        byte[] payload = method == ZipEntry.STORED ? raw : deflate(raw);
+
+        Entry out = newEntry(name, method, previous);
+        out.crc = crc.getValue();
+        out.compressedSize = payload.length;
+        out.uncompressedSize = raw.length;
+        out.localHeaderOffset = dst.position();
+
+        writeLocalHeader(dst, out);
+        writeFully(dst, ByteBuffer.wrap(payload));
+
+        ApkSignerEngine.InspectJarEntryRequest request = outputJarEntry(name);
+        if (request != null) {
+            request.getDataSink().consume(raw, 0, raw.length);
+            request.done();
+        }
+        return out;
+    }
+
+    private static Entry newEntry(String name, int method, Entry previous) {
+        Entry out = new Entry();
+        out.name = name;
+        out.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        out.flags = isAscii(out.nameBytes) ? 0 : FLAG_UTF8;
+        out.method = method;
+        out.dosTime = previous != null ? previous.dosTime : DEFAULT_DOS_TIME;
+        out.dosDate = previous != null ? previous.dosDate : DEFAULT_DOS_DATE;
+        return out;
+    }
+
+    private ApkSignerEngine.InspectJarEntryRequest outputJarEntry(String name) {
+        return mSignerEngine != null ? mSignerEngine.outputJarEntry(name) : null;
+    }
+
+    private void writeLocalHeader(FileChannel dst, Entry entry) throws IOException {
+        int padding = alignAmount(entry);
+        if (padding > 0) {
+            mAlignedEntries++;
+            mPaddingBytes += padding;
+        }
+        writeFully(dst, buildLocalHeader(entry, padding));
+    }
+
+    /**
+     * Number of padding bytes needed in the local extra field, with the rules of
+     * {@link ZipAlign#entryAlignment}.
+     */
+    private int alignAmount(Entry entry) {
+        int alignment = ZipAlign.entryAlignment(entry.method, entry.name.endsWith(".so"), mAlignment, mSoAlignment);
+        if (alignment == 0) return 0;
+
+        long dataPos = entry.localHeaderOffset + LOCAL_HEADER_SIZE + entry.nameBytes.length
+                + localZip64ExtraLength(entry);
+        int wrongOffset = (int) (dataPos % alignment);
+        return wrongOffset == 0 ? 0 : alignment - wrongOffset;
+    }
+
+    private static ByteBuffer buildLocalHeader(Entry entry, int padding) {
+        int zip64Len = localZip64ExtraLength(entry);
+        int extraLen = zip64Len + padding;
+        ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE + entry.nameBytes.length + extraLen)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(LOCAL_HEADER_SIGNATURE);
+        header.putShort((short) versionNeeded(entry));
+        header.putShort((short) entry.flags);
+        header.putShort((short) entry.method);
+        header.putShort((short) entry.dosTime);
+        header.putShort((short) entry.dosDate);
+        header.putInt((int) entry.crc);
+        header.putInt((int) (zip64Len > 0 ? Zip64.MAGIC32 : entry.compressedSize));
+        header.putInt((int) (zip64Len > 0 ? Zip64.MAGIC32 : entry.uncompressedSize));
+        header.putShort((short) entry.nameBytes.length);
+        header.putShort((short) extraLen);
+        header.put(entry.nameBytes);
+        if (zip64Len > 0) {
+            // The local ZIP64 field holds both sizes
+            header.putShort((short) Zip64.EXTRA_ID);
+            header.putShort((short) 16);
+            header.putLong(entry.uncompressedSize);
+            header.putLong(entry.compressedSize);
+        }
+        // Padding stays zero-filled, like ZipAlign
+        header.position(header.capacity());
+        header.flip();
+        return header;
+    }
+
+    private static ByteBuffer buildCentralDirectory(List<Entry> entries) {
+        int cdSize = 0;
+        for (Entry entry : entries) {
+            cdSize += CENTRAL_HEADER_SIZE + entry.nameBytes.length + centralZip64ExtraLength(entry);
+        }
+
+        ByteBuffer cd = ByteBuffer.allocate(cdSize).order(ByteOrder.LITTLE_ENDIAN);
+        for (Entry entry : entries) {
+            cd.putInt(CENTRAL_HEADER_SIGNATURE);
+            cd.putShort((short) 20);
+            cd.putShort((short) versionNeeded(entry));
+            cd.putShort((short) entry.flags);
+            cd.putShort((short) entry.method);
+            cd.putShort((short) entry.dosTime);
+            cd.putShort((short) entry.dosDate);
+            cd.putInt((int) entry.crc);
+            cd.putInt((int) Math.min(entry.compressedSize, Zip64.MAGIC32));
+            cd.putInt((int) Math.min(entry.uncompressedSize, Zip64.MAGIC32));
+            cd.putShort((short) entry.nameBytes.length);
+            int zip64Len = centralZip64ExtraLength(entry);
+            cd.putShort((short) zip64Len);
+            cd.putShort((short) 0);
+            cd.putShort((short) 0);
+            cd.putShort((short) 0);
+            cd.putInt(0);
+            cd.putInt((int) Math.min(entry.localHeaderOffset, Zip64.MAGIC32));
+            cd.put(entry.nameBytes);
+            if (zip64Len > 0) {
+                // Only the values that overflow go into the field, in this order
+                cd.putShort((short) Zip64.EXTRA_ID);
+                cd.putShort((short) (zip64Len - 4));
+                if (entry.uncompressedSize >= Zip64.MAGIC32) cd.putLong(entry.uncompressedSize);
+                if (entry.compressedSize >= Zip64.MAGIC32) cd.putLong(entry.compressedSize);
+                if (entry.localHeaderOffset >= Zip64.MAGIC32) cd.putLong(entry.localHeaderOffset);
+            }
+        }
+        cd.flip();
+        return cd;
+    }
+
+    private static int versionNeeded(Entry entry) {
+        if (localZip64ExtraLength(entry) > 0 || entry.localHeaderOffset >= Zip64.MAGIC32) {
+            return Zip64.VERSION_NEEDED;
+        }
+        return entry.method == ZipEntry.STORED ? 10 : 20;
+    }
+
+    private static int localZip64ExtraLength(Entry entry) {
+        return entry.compressedSize >= Zip64.MAGIC32 || entry.uncompressedSize >= Zip64.MAGIC32 ? 20 : 0;
+    }
+
+    private static int centralZip64ExtraLength(Entry entry) {
+        int fields = (entry.uncompressedSize >= Zip64.MAGIC32 ? 1 : 0)
+                + (entry.compressedSize >= Zip64.MAGIC32 ? 1 : 0)
+                + (entry.localHeaderOffset >= Zip64.MAGIC32 ? 1 : 0);
+        return fields > 0 ? 4 + 8 * fields : 0;
+    }
+
+    private Entry sourceEntry(String name) {
+        int i = mIndex.indexOf(name);
+        return i >= 0 ? sourceEntryAt(i) : null;
+    }
+
+    /**
+     * Entry [i] of the source, with its local header offset in the file it is read from.
+     */
+    private Entry sourceEntryAt(int i) {
+        Entry entry = new Entry();
+        entry.name = mIndex.name(i);
+        entry.nameBytes = mIndex.nameBytes(i);
+        entry.flags = mIndex.flags(i);
+        entry.method = mIndex.method(i);
+        entry.dosTime = mIndex.dosTime(i);
+        entry.dosDate = mIndex.dosDate(i);
+        entry.crc = mIndex.crc(i);
+        entry.compressedSize = mIndex.compressedSize(i);
+        entry.uncompressedSize = mIndex.uncompressedSize(i);
+        entry.localHeaderOffset = mSourceStart + mIndex.localHeaderOffset(i);
+        return entry;
+    }
+
+    private static long getDataOffset(FileChannel channel, Entry entry) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, entry.localHeaderOffset);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Bad local header for " + entry.name);
+        }
+        int nameLen = header.getShort(26) & 0xffff;
+        int extraLen = header.getShort(28) & 0xffff;
+        return entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLen + extraLen;
+    }
+
+    private static InputStream openEntry(FileChannel channel, Entry entry) throws IOException {
+        long dataOffset = getDataOffset(channel, entry);
+        InputStream raw = new ChannelRangeInputStream(channel, dataOffset, entry.compressedSize);
+        if (entry.method == ZipEntry.STORED) {
+            return raw;
+        }
+        // Raw inflate may need one dummy byte past the end of the deflated data
+        InputStream padded = new SequenceInputStream(raw, new ByteArrayInputStream(new byte[1]));
+        return new EntryInflaterInputStream(padded);
+    }
+
+    private static byte[] inflate(byte[] deflated, int size, String name) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(deflated);
+            byte[] out = new byte[size];
+            int done = 0;
+            boolean padded = false;
+            while (done < size) {
+                int len = inflater.inflate(out, done, size - done);
+                done += len;
+                if (len > 0) continue;
+                if (inflater.finished() || inflater.needsDictionary() || padded) break;
+                // Raw inflate may need one dummy byte past the end of the deflated data
+                inflater.setInput(new byte[1]);
+                padded = true;
+            }
+            if (done != size) {
+                throw new IOException("Truncated entry " + name);
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt entry " + name, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int len = deflater.deflate(buffer);
+                out.write(buffer, 0, len);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Runs on the compression pool: CRC of the file and, for deflated entries, the deflated
+     * bytes. Stored entries are streamed from the file by the writer.
+     */
+    private static Compressed compress(Replacement replacement) throws IOException {
+        CRC32 crc = new CRC32();
+        long size = 0;
+        byte[] buffer = new byte[65536];
+
+        if (replacement.method == ZipEntry.STORED) {
+            try (FileInputStream in = new FileInputStream(replacement.data)) {
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    crc.update(buffer, 0, len);
+                    size += len;
+                }
+            }
+            return new Compressed(crc.getValue(), size, null);
+        }
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        ByteArrayOutputStream payload =
+                new ByteArrayOutputStream((int) Math.max(64, Math.min(replacement.data.length() / 2, 1 << 20)));
+        try (FileInputStream in = new FileInputStream(replacement.data);
+             DeflaterOutputStream out = new DeflaterOutputStream(payload, deflater, 8192)) {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, len);
+                out.write(buffer, 0, len);
+                size += len;
+            }
+        } finally {
+            deflater.end();
+        }
+        return new Compressed(crc.getValue(), size, payload.toByteArray());
+    }
+
+    private static long crc32(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[65536];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, len);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static boolean isAscii(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b < 0) return false;
+        }
+        return true;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int len = channel.read(buffer, position + buffer.position());
+            if (len < 0) throw new IOException("Unexpected end of archive");
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void transferFully(FileChannel src, long position, long count, FileChannel dst)
+            throws IOException {
+        long done = 0;
+        while (done < count) {
+            long len = src.transferTo(position + done, count - done, dst);
+            if (len <= 0) throw new IOException("Unexpected end of archive");
+            done += len;
+        }
+    }
+
+    private static class Entry {
+        String name;
+        byte[] nameBytes;
+        int flags;
+        int method;
+        int dosTime;
+        int dosDate;
+        long crc;
+        long compressedSize;
+        long uncompressedSize;
+        long localHeaderOffset;
+
+        Entry copy() {
+            Entry e = new Entry();
+            e.name = name;
+            e.nameBytes = nameBytes;
+            e.flags = flags;
+            e.method = method;
+            e.dosTime = dosTime;
+            e.dosDate = dosDate;
+            e.crc = crc;
+            e.compressedSize = compressedSize;
+            e.uncompressedSize = uncompressedSize;
+            e.localHeaderOffset = localHeaderOffset;
+            return e;
+        }
+    }
+
+    private static class Replacement {
+        final File data;
+        final int method;
+
+        Replacement(File data, int method) {
+            this.data = data;
+            this.method = method;
+        }
+    }
+
+    /**
+     * Counters of one {@link #writeTo} call. Sign time covers the signer engine calls,
+     * including inflating copied entries for the JAR signature, and is part of total time.
+     */
+    public static class Stats {
+        public final int entriesCopied;
+        public final int entriesWritten;
+        public final long bytesRead;
+        public final long bytesWritten;
+        public final int alignedEntries;
+        public final long paddingBytes;
+        public final long signNanos;
+        public final long totalNanos;
+
+        Stats(int entriesCopied, int entriesWritten, long bytesRead, long bytesWritten,
+              int alignedEntries, long paddingBytes, long signNanos, long totalNanos) {
+            this.entriesCopied = entriesCopied;
+            this.entriesWritten = entriesWritten;
+            this.bytesRead = bytesRead;
+            this.bytesWritten = bytesWritten;
+            this.alignedEntries = alignedEntries;
+            this.paddingBytes = paddingBytes;
+            this.signNanos = signNanos;
+            this.totalNanos = totalNanos;
+        }
+    }
+
+    private static class PendingEntry {
+        final String name;
+        final Replacement replacement;
+        final Entry previous;
+
+        PendingEntry(String name, Replacement replacement, Entry previous) {
+            this.name = name;
+            this.replacement = replacement;
+            this.previous = previous;
+        }
+    }
+
+    private static class Compressed {
+        final long crc;
+        final long size;
+        final byte[] payload;
+
+        Compressed(long crc, long size, byte[] payload) {
+            this.crc = crc;
+            this.size = size;
+            this.payload = payload;
+        }
+    }
+
+    private static class ChannelRangeInputStream extends InputStream {
+        private final FileChannel mChannel;
+        private long mPosition;
+        private final long mEnd;
+
+        ChannelRangeInputStream(FileChannel channel, long offset, long length) {
+            mChannel = channel;
+            mPosition = offset;
+            mEnd = offset + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mPosition >= mEnd) return -1;
+            int toRead = (int) Math.min(len, mEnd - mPosition);
+            int read = mChannel.read(ByteBuffer.wrap(b, off, toRead), mPosition);
+            if (read > 0) mPosition += read;
+            return read;
+        }
+    }
+
+    /**
+     * Inflates a raw deflated entry with an inflater of its own, which is released on
+     * close: {@link InflaterInputStream#close()} only ends the inflaters it created.
+     */
+    private static final class EntryInflaterInputStream extends InflaterInputStream {
+        EntryInflaterInputStream(InputStream in) {
+            super(in, new Inflater(true), 8192);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+}
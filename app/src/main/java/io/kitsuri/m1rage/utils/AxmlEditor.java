@@ -0,0 +1,731 @@
+package io.kitsuri.m1rage.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static io.kitsuri.m1rage.utils.BinaryXml.NO_ENTRY;
+import static io.kitsuri.m1rage.utils.BinaryXml.RES_STRING_POOL_TYPE;
+import static io.kitsuri.m1rage.utils.BinaryXml.RES_XML_CDATA_TYPE;
+import static io.kitsuri.m1rage.utils.BinaryXml.RES_XML_END_ELEMENT_TYPE;
+import static io.kitsuri.m1rage.utils.BinaryXml.RES_XML_END_NAMESPACE_TYPE;
+import static io.kitsuri.m1rage.utils.BinaryXml.RES_XML_RESOURCE_MAP_TYPE;
+import static io.kitsuri.m1rage.utils.BinaryXml.RES_XML_START_ELEMENT_TYPE;
+import static io.kitsuri.m1rage.utils.BinaryXml.RES_XML_START_NAMESPACE_TYPE;
+import static io.kitsuri.m1rage.utils.BinaryXml.RES_XML_TYPE;
+import static io.kitsuri.m1rage.utils.BinaryXml.SORTED_FLAG;
+import static io.kitsuri.m1rage.utils.BinaryXml.UTF8_FLAG;
+
+/**
+ * Edits a binary XML document (AndroidManifest.xml) at the chunk level: the string pool,
+ * the resource ID map and the element chunks. Attribute values are changed in place and
+ * elements are inserted as new chunks, every other chunk keeps its bytes. Nothing is
+ * decoded to text, so an edit costs a single pass over the chunks.
+ * <p>
+ * New attribute names are inserted at the end of the resource-mapped part of the string
+ * pool, which shifts the later string indices; every string reference of the document is
+ * moved along. Attributes are kept sorted by resource ID, as the framework expects.
+ */
+public final class AxmlEditor {
+
+    public static final String ANDROID_NAMESPACE = "http://schemas.android.com/apk/res/android";
+
+    // Res_value data types
+    public static final int TYPE_STRING = BinaryXml.TYPE_STRING;
+    public static final int TYPE_INT_DEC = BinaryXml.TYPE_INT_DEC;
+    public static final int TYPE_INT_BOOLEAN = BinaryXml.TYPE_INT_BOOLEAN;
+
+    private static final int NODE_HEADER_SIZE = 16;
+    private static final int ATTR_EXT_SIZE = 20;
+    private static final int ATTRIBUTE_SIZE = 20;
+
+    private final byte[] mOriginal;
+    private boolean mModified;
+
+    // Chunks in document order; the string pool and the resource map are null placeholders
+    private final List<byte[]> mChunks = new ArrayList<>();
+    private int mStringPoolChunk = -1;
+    private int mResourceMapChunk = -1;
+
+    // String pool
+    private int mPoolFlags;
+    private final List<byte[]> mStringData = new ArrayList<>();
+    private final List<String> mStrings = new ArrayList<>();
+    private int[] mStyleOffsets = new int[0];
+    private byte[] mStyleData = new byte[0];
+
+    private int[] mResourceIds = new int[0];
+
+    /**
+     * A typed attribute value for {@link #addElement}.
+     */
+    public static final class Attribute {
+        final String name;
+        final int resourceId;
+        final int type;
+        final int data;
+        final String string;
+
+        private Attribute(String name, int resourceId, int type, int data, String string) {
+            this.name = name;
+            this.resourceId = resourceId;
+            this.type = type;
+            this.data = data;
+            this.string = string;
+        }
+
+        /**
+         * A framework attribute, its resource ID taken from {@link FrameworkAttributes}.
+         */
+        public static Attribute string(String name, String value) {
+            return string(name, FrameworkAttributes.id(name), value);
+        }
+
+        public static Attribute integer(String name, int value) {
+            return integer(name, FrameworkAttributes.id(name), value);
+        }
+
+        public static Attribute bool(String name, boolean value) {
+            return bool(name, FrameworkAttributes.id(name), value);
+        }
+
+        public static Attribute string(String name, int resourceId, String value) {
+            return new Attribute(name, resourceId, TYPE_STRING, 0, value);
+        }
+
+        public static Attribute integer(String name, int resourceId, int value) {
+            return new Attribute(name, resourceId, TYPE_INT_DEC, value, null);
+        }
+
+        public static Attribute bool(String name, int resourceId, boolean value) {
+            return new Attribute(name, resourceId, TYPE_INT_BOOLEAN, value ? -1 : 0, null);
+        }
+    }
+
+    public AxmlEditor(byte[] data) throws IOException {
+        mOriginal = data;
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        if (data.length < 8 || (buffer.getShort(0) & 0xffff) != RES_XML_TYPE) {
+            throw new IOException("Not a binary XML document");
+        }
+
+        int end = Math.min(buffer.getInt(4), data.length);
+        int pos = buffer.getShort(2) & 0xffff;
+        while (pos + 8 <= end) {
+            int type = buffer.getShort(pos) & 0xffff;
+            int size = buffer.getInt(pos + 4);
+            if (size < 8 || pos + size > end) {
+                throw new IOException("Corrupt chunk at " + pos);
+            }
+
+            if (type == RES_STRING_POOL_TYPE && mStringPoolChunk < 0) {
+                readStringPool(buffer, pos);
+                mStringPoolChunk = mChunks.size();
+                mChunks.add(null);
+            } else if (type == RES_XML_RESOURCE_MAP_TYPE && mResourceMapChunk < 0) {
+                int headerSize = buffer.getShort(pos + 2) & 0xffff;
+                mResourceIds = new int[(size - headerSize) / 4];
+                for (int i = 0; i < mResourceIds.length; i++) {
+                    mResourceIds[i] = buffer.getInt(pos + headerSize + i * 4);
+                }
+                mResourceMapChunk = mChunks.size();
+                mChunks.add(null);
+            } else {
+                mChunks.add(Arrays.copyOfRange(data, pos, pos + size));
+            }
+            pos += size;
+        }
+
+        if (mStringPoolChunk < 0) {
+            throw new IOException("Binary XML without a string pool");
+        }
+    }
+
+    public boolean isModified() {
+        return mModified;
+    }
+
+    /**
+     * The edited document, or the original bytes if nothing changed.
+     */
+    public byte[] toByteArray() {
+        if (!mModified) return mOriginal;
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream(mOriginal.length + 1024);
+        for (int i = 0; i < mChunks.size(); i++) {
+            byte[] chunk = mChunks.get(i);
+            if (i == mStringPoolChunk) {
+                chunk = buildStringPool();
+            } else if (i == mResourceMapChunk) {
+                chunk = buildResourceMap();
+            }
+            body.write(chunk, 0, chunk.length);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        header.putShort((short) RES_XML_TYPE);
+        header.putShort((short) 8);
+        header.putInt(8 + body.size());
+
+        byte[] out = new byte[8 + body.size()];
+        System.arraycopy(header.array(), 0, out, 0, 8);
+        System.arraycopy(body.toByteArray(), 0, out, 8, body.size());
+        return out;
+    }
+
+    /**
+     * Returns true if any element has the framework attribute [name] set to the string [value].
+     */
+    public boolean hasAttributeValue(String name, String value) {
+        return hasAttributeValue(FrameworkAttributes.id(name), value);
+    }
+
+    /**
+     * Returns true if any element has the attribute [resourceId] set to the string [value].
+     */
+    public boolean hasAttributeValue(int resourceId, String value) {
+        for (byte[] chunk : mChunks) {
+            if (chunk == null || type(chunk) != RES_XML_START_ELEMENT_TYPE) continue;
+            ByteBuffer element = wrap(chunk);
+            int attr = findAttribute(element, resourceId);
+            if (attr >= 0 && value.equals(attributeString(element, attr))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * String value of the attribute [resourceId] of the first [tag] element, or null if it is
+     * missing or not a string.
+     */
+    public String getAttributeString(String tag, int resourceId) {
+        int index = findElement(tag);
+        if (index < 0) return null;
+        ByteBuffer element = wrap(mChunks.get(index));
+        int attr = findAttribute(element, resourceId);
+        return attr >= 0 ? attributeString(element, attr) : null;
+    }
+
+    /**
+     * Data of the attribute [resourceId] of the first [tag] element, or null if it is missing
+     * or a string.
+     */
+    public Integer getAttributeData(String tag, int resourceId) {
+        int index = findElement(tag);
+        if (index < 0) return null;
+        ByteBuffer element = wrap(mChunks.get(index));
+        int attr = findAttribute(element, resourceId);
+        if (attr < 0 || (element.get(attr + 15) & 0xff) == TYPE_STRING) return null;
+        return element.getInt(attr + 16);
+    }
+
+    public boolean setIntAttribute(String tag, String name, int value) {
+        return setAttribute(tag, Attribute.integer(name, value));
+    }
+
+    public boolean setBooleanAttribute(String tag, String name, boolean value) {
+        return setAttribute(tag, Attribute.bool(name, value));
+    }
+
+    public boolean setStringAttribute(String tag, String name, String value) {
+        return setAttribute(tag, Attribute.string(name, value));
+    }
+
+    public boolean setIntAttribute(String tag, String name, int resourceId, int value) {
+        return setAttribute(tag, Attribute.integer(name, resourceId, value));
+    }
+
+    public boolean setBooleanAttribute(String tag, String name, int resourceId, boolean value) {
+        return setAttribute(tag, Attribute.bool(name, resourceId, value));
+    }
+
+    public boolean setStringAttribute(String tag, String name, int resourceId, String value) {
+        return setAttribute(tag, Attribute.string(name, resourceId, value));
+    }
+
+    /**
+     * Sets an attribute of the first [tag] element, adding it if missing. Returns false if
+     * there is no such element or the attribute already has this value.
+     */
+    public boolean setAttribute(String tag, Attribute attribute) {
+        int index = findElement(tag);
+        if (index < 0) return false;
+
+        ByteBuffer element = wrap(mChunks.get(index));
+        int attr = findAttribute(element, attribute.resourceId);
+        if (attr >= 0) {
+            int type = element.get(attr + 15) & 0xff;
+            int data = element.getInt(attr + 16);
+            if (attribute.type == TYPE_STRING) {
+                if (type == TYPE_STRING && attribute.string.equals(stringAt(data))) return false;
+            } else if (type == attribute.type && data == attribute.data) {
+                return false;
+            }
+
+            // The raw text is kept only if the original had one, like aapt2 does for manifests
+            boolean hasRaw = element.getInt(attr + 8) != NO_ENTRY;
+            int valueIndex = attribute.type == TYPE_STRING ? addString(attribute.string) : NO_ENTRY;
+            int rawIndex = attribute.type == TYPE_STRING ? valueIndex
+                    : hasRaw ? addString(rawText(attribute)) : NO_ENTRY;
+
+            element.putInt(attr + 8, rawIndex);
+            element.putShort(attr + 12, (short) 8);
+            element.put(attr + 14, (byte) 0);
+            element.put(attr + 15, (byte) attribute.type);
+            element.putInt(attr + 16, attribute.type == TYPE_STRING ? valueIndex : attribute.data);
+            mModified = true;
+            return true;
+        }
+
+        int nameIndex = attributeName(attribute.name, attribute.resourceId);
+        int nsIndex = indexOfString(ANDROID_NAMESPACE, true);
+        byte[] encoded = encodeAttribute(nsIndex, nameIndex, attribute);
+        // Adding the name can insert a resource map chunk before the element
+        index = findElement(tag);
+        mChunks.set(index, insertAttribute(mChunks.get(index), encoded, attribute.resourceId));
+        mModified = true;
+        return true;
+    }
+
+    /**
+     * Appends a [tag] element with [attributes] as the last child of the first [parentTag]
+     * element. Returns false if there is no such parent.
+     */
+    public boolean addElement(String parentTag, String tag, List<Attribute> attributes) {
+        // Strings first: adding a resource-mapped attribute name shifts every string index
+        // after it, so those go in before any other index is taken
+        int[] names = new int[attributes.size()];
+        for (int i = 0; i < names.length; i++) {
+            if (attributes.get(i).resourceId != 0) {
+                names[i] = attributeName(attributes.get(i).name, attributes.get(i).resourceId);
+            }
+        }
+        for (int i = 0; i < names.length; i++) {
+            if (attributes.get(i).resourceId == 0) {
+                names[i] = attributeName(attributes.get(i).name, 0);
+            }
+        }
+        int nsIndex = indexOfString(ANDROID_NAMESPACE, true);
+        int tagIndex = indexOfString(tag, true);
+        byte[][] encoded = new byte[attributes.size()][];
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = encodeAttribute(nsIndex, names[i], attributes.get(i));
+        }
+
+        int parent = findElement(parentTag);
+        if (parent < 0) return false;
+        int parentEnd = findEndElement(parent);
+        if (parentEnd < 0) return false;
+        int line = wrap(mChunks.get(parentEnd)).getInt(8);
+
+        // Sorted by resource ID, attributes without an ID last
+        Integer[] order = new Integer[attributes.size()];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> compareIds(attributes.get(a).resourceId, attributes.get(b).resourceId));
+
+        ByteBuffer start = ByteBuffer.allocate(NODE_HEADER_SIZE + ATTR_EXT_SIZE + ATTRIBUTE_SIZE * order.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        start.putShort((short) RES_XML_START_ELEMENT_TYPE);
+        start.putShort((short) NODE_HEADER_SIZE);
+        start.putInt(start.capacity());
+        start.putInt(line);
+        start.putInt(NO_ENTRY);
+        start.putInt(NO_ENTRY);
+        start.putInt(tagIndex);
+        start.putShort((short) ATTR_EXT_SIZE);
+        start.putShort((short) ATTRIBUTE_SIZE);
+        start.putShort((short) order.length);
+        start.putShort((short) 0);
+        start.putShort((short) 0);
+        start.putShort((short) 0);
+        for (int i : order) {
+            start.put(encoded[i]);
+        }
+
+        ByteBuffer end = ByteBuffer.allocate(NODE_HEADER_SIZE + 8).order(ByteOrder.LITTLE_ENDIAN);
+        end.putShort((short) RES_XML_END_ELEMENT_TYPE);
+        end.putShort((short) NODE_HEADER_SIZE);
+        end.putInt(end.capacity());
+        end.putInt(line);
+        end.putInt(NO_ENTRY);
+        end.putInt(NO_ENTRY);
+        end.putInt(tagIndex);
+
+        mChunks.add(parentEnd, end.array());
+        mChunks.add(parentEnd, start.array());
+        mModified = true;
+        return true;
+    }
+
+    // Elements
+
+    private int findElement(String tag) {
+        for (int i = 0; i < mChunks.size(); i++) {
+            byte[] chunk = mChunks.get(i);
+            if (chunk == null || type(chunk) != RES_XML_START_ELEMENT_TYPE) continue;
+            if (tag.equals(stringAt(wrap(chunk).getInt(NODE_HEADER_SIZE + 4)))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int findEndElement(int start) {
+        int depth = 0;
+        for (int i = start; i < mChunks.size(); i++) {
+            byte[] chunk = mChunks.get(i);
+            if (chunk == null) continue;
+            int type = type(chunk);
+            if (type == RES_XML_START_ELEMENT_TYPE) {
+                depth++;
+            } else if (type == RES_XML_END_ELEMENT_TYPE && --depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Offset of the attribute [resourceId] within the element chunk, or -1.
+     */
+    private int findAttribute(ByteBuffer element, int resourceId) {
+        int ext = element.getShort(2) & 0xffff;
+        int start = ext + (element.getShort(ext + 8) & 0xffff);
+        int size = element.getShort(ext + 10) & 0xffff;
+        int count = element.getShort(ext + 12) & 0xffff;
+        for (int i = 0; i < count; i++) {
+            int attr = start + i * size;
+            int name = element.getInt(attr + 4);
+            if (name >= 0 && name < mResourceIds.length && mResourceIds[name] == resourceId) {
+                return attr;
+            }
+        }
+        return -1;
+    }
+
+    private String attributeString(ByteBuffer element, int attr) {
+        if ((element.get(attr + 15) & 0xff) == TYPE_STRING) {
+            return stringAt(element.getInt(attr + 16));
+        }
+        int raw = element.getInt(attr + 8);
+        return raw != NO_ENTRY ? stringAt(raw) : null;
+    }
+
+    private byte[] encodeAttribute(int nsIndex, int nameIndex, Attribute attribute) {
+        int valueIndex = attribute.type == TYPE_STRING ? indexOfString(attribute.string, true) : NO_ENTRY;
+        ByteBuffer encoded = ByteBuffer.allocate(ATTRIBUTE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        encoded.putInt(nsIndex);
+        encoded.putInt(nameIndex);
+        encoded.putInt(valueIndex);
+        encoded.putShort((short) 8);
+        encoded.put((byte) 0);
+        encoded.put((byte) attribute.type);
+        encoded.putInt(attribute.type == TYPE_STRING ? valueIndex : attribute.data);
+        return encoded.array();
+    }
+
+    /**
+     * Returns a copy of the element chunk with [encoded] inserted at its sorted position.
+     */
+    private byte[] insertAttribute(byte[] chunk, byte[] encoded, int resourceId) {
+        ByteBuffer element = wrap(chunk);
+        int ext = element.getShort(2) & 0xffff;
+        int start = ext + (element.getShort(ext + 8) & 0xffff);
+        int size = element.getShort(ext + 10) & 0xffff;
+        int count = element.getShort(ext + 12) & 0xffff;
+
+        int position = count;
+        for (int i = 0; i < count; i++) {
+            int name = element.getInt(start + i * size + 4);
+            int id = name >= 0 && name < mResourceIds.length ? mResourceIds[name] : 0;
+            if (compareIds(resourceId, id) < 0) {
+                position = i;
+                break;
+            }
+        }
+
+        int at = start + position * size;
+        byte[] out = new byte[chunk.length + size];
+        System.arraycopy(chunk, 0, out, 0, at);
+        System.arraycopy(encoded, 0, out, at, Math.min(encoded.length, size));
+        System.arraycopy(chunk, at, out, at + size, chunk.length - at);
+
+        ByteBuffer patched = wrap(out);
+        patched.putInt(4, out.length);
+        patched.putShort(ext + 12, (short) (count + 1));
+        // id, class and style attribute indices are 1-based
+        for (int field = ext + 14; field <= ext + 18; field += 2) {
+            int index = patched.getShort(field) & 0xffff;
+            if (index > position) {
+                patched.putShort(field, (short) (index + 1));
+            }
+        }
+        return out;
+    }
+
+    private static int compareIds(int a, int b) {
+        if (a == 0 || b == 0) return a == b ? 0 : a == 0 ? 1 : -1;
+        return Integer.compareUnsigned(a, b);
+    }
+
+    private static String rawText(Attribute attribute) {
+        if (attribute.type == TYPE_INT_BOOLEAN) return attribute.data != 0 ? "true" : "false";
+        return Integer.toString(attribute.data);
+    }
+
+    // String pool
+
+    /**
+     * Index of the attribute name string mapped to [resourceId], added to the resource-mapped
+     * part of the pool if missing.
+     */
+    private int attributeName(String name, int resourceId) {
+        if (resourceId == 0) return indexOfString(name, true);
+        for (int i = 0; i < mResourceIds.length; i++) {
+            if (mResourceIds[i] == resourceId) return i;
+        }
+
+        int index = mResourceIds.length;
+        if (index < mStyleOffsets.length) {
+            throw new IllegalStateException("Styled strings overlap the resource-mapped strings");
+        }
+        insertString(index, name);
+        mResourceIds = Arrays.copyOf(mResourceIds, index + 1);
+        mResourceIds[index] = resourceId;
+        if (mResourceMapChunk < 0) {
+            mResourceMapChunk = mStringPoolChunk + 1;
+            mChunks.add(mResourceMapChunk, null);
+        }
+        return index;
+    }
+
+    private int indexOfString(String value, boolean add) {
+        // Resource-mapped strings are attribute names, values never point at them
+        for (int i = mResourceIds.length; i < mStrings.size(); i++) {
+            if (value.equals(stringAt(i))) return i;
+        }
+        return add ? addString(value) : -1;
+    }
+
+    private int addString(String value) {
+        int index = indexOfString(value, false);
+        if (index >= 0) return index;
+        mStrings.add(value);
+        mStringData.add(encodeString(value));
+        mPoolFlags &= ~SORTED_FLAG;
+        mModified = true;
+        return mStrings.size() - 1;
+    }
+
+    /**
+     * Inserts a string at [index] and moves every string reference at or after it, in the
+     * document chunks and in the style spans of the pool.
+     */
+    private void insertString(int index, String value) {
+        mStrings.add(index, value);
+        mStringData.add(index, encodeString(value));
+        mPoolFlags &= ~SORTED_FLAG;
+        mModified = true;
+        for (byte[] chunk : mChunks) {
+            if (chunk != null) shiftStrings(wrap(chunk), index);
+        }
+        shiftStyles(index);
+    }
+
+    /**
+     * Moves the tag name of every style span at or after [from]. Each style is a run of
+     * name, first and last char spans up to an END marker.
+     */
+    private void shiftStyles(int from) {
+        ByteBuffer styles = wrap(mStyleData);
+        for (int offset : mStyleOffsets) {
+            for (int span = offset; span + 4 <= mStyleData.length && styles.getInt(span) != NO_ENTRY; span += 12) {
+                shift(styles, span, from);
+            }
+        }
+    }
+
+    private void shiftStrings(ByteBuffer chunk, int from) {
+        int type = chunk.getShort(0) & 0xffff;
+        if (type < RES_XML_START_NAMESPACE_TYPE || type > RES_XML_CDATA_TYPE) return;
+
+        shift(chunk, 12, from);
+        int ext = chunk.getShort(2) & 0xffff;
+        switch (type) {
+            case RES_XML_START_NAMESPACE_TYPE:
+            case RES_XML_END_NAMESPACE_TYPE:
+            case RES_XML_END_ELEMENT_TYPE:
+                shift(chunk, ext, from);
+                shift(chunk, ext + 4, from);
+                break;
+            case RES_XML_CDATA_TYPE:
+                shift(chunk, ext, from);
+                shiftValue(chunk, ext + 4, from);
+                break;
+            case RES_XML_START_ELEMENT_TYPE:
+                shift(chunk, ext, from);
+                shift(chunk, ext + 4, from);
+                int start = ext + (chunk.getShort(ext + 8) & 0xffff);
+                int size = chunk.getShort(ext + 10) & 0xffff;
+                int count = chunk.getShort(ext + 12) & 0xffff;
+                for (int i = 0; i < count; i++) {
+                    int attr = start + i * size;
+                    shift(chunk, attr, from);
+                    shift(chunk, attr + 4, from);
+                    shift(chunk, attr + 8, from);
+                    shiftValue(chunk, attr + 12, from);
+                }
+                break;
+        }
+    }
+
+    private static void shift(ByteBuffer chunk, int offset, int from) {
+        int index = chunk.getInt(offset);
+        if (index != NO_ENTRY && index >= from) {
+            chunk.putInt(offset, index + 1);
+        }
+    }
+
+    private static void shiftValue(ByteBuffer chunk, int offset, int from) {
+        if ((chunk.get(offset + 3) & 0xff) == TYPE_STRING) {
+            shift(chunk, offset + 4, from);
+        }
+    }
+
+    private String stringAt(int index) {
+        return index >= 0 && index < mStrings.size() ? mStrings.get(index) : null;
+    }
+
+    private void readStringPool(ByteBuffer buffer, int pos) throws IOException {
+        int headerSize = buffer.getShort(pos + 2) & 0xffff;
+        int size = buffer.getInt(pos + 4);
+        int stringCount = buffer.getInt(pos + 8);
+        int styleCount = buffer.getInt(pos + 12);
+        mPoolFlags = buffer.getInt(pos + 16);
+        int stringsStart = buffer.getInt(pos + 20);
+        int stylesStart = buffer.getInt(pos + 24);
+        boolean utf8 = (mPoolFlags & UTF8_FLAG) != 0;
+
+        int stringsEnd = styleCount > 0 ? stylesStart : size;
+        for (int i = 0; i < stringCount; i++) {
+            int start = pos + stringsStart + buffer.getInt(pos + headerSize + i * 4);
+            int end = BinaryXml.stringEnd(buffer, start, utf8);
+            if (end > pos + stringsEnd) {
+                throw new IOException("Corrupt string pool entry " + i);
+            }
+            byte[] raw = new byte[end - start];
+            buffer.position(start);
+            buffer.get(raw);
+            mStringData.add(raw);
+            mStrings.add(BinaryXml.decodeString(buffer, start, utf8));
+        }
+
+        mStyleOffsets = new int[styleCount];
+        for (int i = 0; i < styleCount; i++) {
+            mStyleOffsets[i] = buffer.getInt(pos + headerSize + (stringCount + i) * 4);
+        }
+        if (styleCount > 0) {
+            mStyleData = new byte[size - stylesStart];
+            buffer.position(pos + stylesStart);
+            buffer.get(mStyleData);
+        }
+        buffer.position(0);
+    }
+
+    private byte[] buildStringPool() {
+        int count = mStringData.size();
+        int headerSize = 28;
+        int stringsStart = headerSize + (count + mStyleOffsets.length) * 4;
+
+        int stringsLength = 0;
+        for (byte[] raw : mStringData) stringsLength += raw.length;
+        int padded = (stringsLength + 3) & ~3;
+        int stylesStart = mStyleOffsets.length > 0 ? stringsStart + padded : 0;
+        int size = stringsStart + padded + (mStyleOffsets.length > 0 ? mStyleData.length : 0);
+
+        ByteBuffer pool = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        pool.putShort((short) RES_STRING_POOL_TYPE);
+        pool.putShort((short) headerSize);
+        pool.putInt(size);
+        pool.putInt(count);
+        pool.putInt(mStyleOffsets.length);
+        pool.putInt(mPoolFlags);
+        pool.putInt(stringsStart);
+        pool.putInt(stylesStart);
+
+        int offset = 0;
+        for (byte[] raw : mStringData) {
+            pool.putInt(offset);
+            offset += raw.length;
+        }
+        for (int styleOffset : mStyleOffsets) {
+            pool.putInt(styleOffset);
+        }
+        for (byte[] raw : mStringData) {
+            pool.put(raw);
+        }
+        pool.position(stringsStart + padded);
+        if (mStyleOffsets.length > 0) {
+            pool.put(mStyleData);
+        }
+        return pool.array();
+    }
+
+    private byte[] buildResourceMap() {
+        ByteBuffer map = ByteBuffer.allocate(8 + mResourceIds.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        map.putShort((short) RES_XML_RESOURCE_MAP_TYPE);
+        map.putShort((short) 8);
+        map.putInt(map.capacity());
+        for (int id : mResourceIds) {
+            map.putInt(id);
+        }
+        return map.array();
+    }
+
+    private byte[] encodeString(String value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if ((mPoolFlags & UTF8_FLAG) != 0) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeUtf8Length(out, value.length());
+            writeUtf8Length(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+            out.write(0);
+        } else {
+            int length = value.length();
+            if (length > 0x7fff) {
+                writeShort(out, 0x8000 | (length >>> 16));
+            }
+            writeShort(out, length & 0xffff);
+            byte[] chars = value.getBytes(StandardCharsets.UTF_16LE);
+            out.write(chars, 0, chars.length);
+            writeShort(out, 0);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeUtf8Length(ByteArrayOutputStream out, int length) {
+        if (length > 0x7f) {
+            out.write(0x80 | (length >>> 8));
+        }
+        out.write(length & 0xff);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+    }
+
+    private static int type(byte[] chunk) {
+        return (chunk[0] & 0xff) | ((chunk[1] & 0xff) << 8);
+    }
+
+    private static ByteBuffer wrap(byte[] chunk) {
+        return ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,87 @@
+package io.kitsuri.m1rage.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Chunk layout of binary XML documents (ResourceTypes.h) shared by {@link AxmlEditor}
+ * and {@link ManifestSummary}: chunk types, Res_value data types and the string pool
+ * entry encoding.
+ */
+final class BinaryXml {
+
+    static final int RES_STRING_POOL_TYPE = 0x0001;
+    static final int RES_XML_TYPE = 0x0003;
+    static final int RES_XML_START_NAMESPACE_TYPE = 0x0100;
+    static final int RES_XML_END_NAMESPACE_TYPE = 0x0101;
+    static final int RES_XML_START_ELEMENT_TYPE = 0x0102;
+    static final int RES_XML_END_ELEMENT_TYPE = 0x0103;
+    static final int RES_XML_CDATA_TYPE = 0x0104;
+    static final int RES_XML_RESOURCE_MAP_TYPE = 0x0180;
+
+    // String pool flags
+    static final int SORTED_FLAG = 1;
+    static final int UTF8_FLAG = 1 << 8;
+
+    static final int NO_ENTRY = -1;
+
+    // Res_value data types
+    static final int TYPE_STRING = 0x03;
+    static final int TYPE_INT_DEC = 0x10;
+    static final int TYPE_INT_HEX = 0x11;
+    static final int TYPE_INT_BOOLEAN = 0x12;
+
+    private BinaryXml() {
+    }
+
+    /**
+     * End of the string pool entry at [pos], past its terminator.
+     */
+    static int stringEnd(ByteBuffer buffer, int pos, boolean utf8) {
+        return pos + prefixLength(buffer, pos, utf8) + dataLength(buffer, pos, utf8) + (utf8 ? 1 : 2);
+    }
+
+    /**
+     * Decodes the string pool entry at [pos], or returns null if it does not fit in the
+     * buffer. The buffer position is left unchanged.
+     */
+    static String decodeString(ByteBuffer buffer, int pos, boolean utf8) {
+        if (pos < 0 || pos >= buffer.limit()) return null;
+        int start = pos + prefixLength(buffer, pos, utf8);
+        int length = dataLength(buffer, pos, utf8);
+        if (length < 0 || start + (long) length > buffer.limit()) return null;
+        byte[] bytes = new byte[length];
+        ByteBuffer data = buffer.duplicate();
+        data.position(start);
+        data.get(bytes);
+        return new String(bytes, utf8 ? StandardCharsets.UTF_8 : StandardCharsets.UTF_16LE);
+    }
+
+    /**
+     * Size of the length fields in front of the entry at [pos]: the UTF-16 and UTF-8
+     * lengths of a UTF-8 entry, the character count of a UTF-16 one.
+     */
+    private static int prefixLength(ByteBuffer buffer, int pos, boolean utf8) {
+        if (utf8) {
+            int chars = (buffer.get(pos) & 0x80) != 0 ? 2 : 1;
+            return chars + ((buffer.get(pos + chars) & 0x80) != 0 ? 2 : 1);
+        }
+        return (buffer.getShort(pos) & 0x8000) != 0 ? 4 : 2;
+    }
+
+    /**
+     * Size in bytes of the encoded characters of the entry at [pos], without the terminator.
+     */
+    private static int dataLength(ByteBuffer buffer, int pos, boolean utf8) {
+        if (utf8) {
+            pos += (buffer.get(pos) & 0x80) != 0 ? 2 : 1;
+            int length = buffer.get(pos) & 0xff;
+            return (length & 0x80) != 0 ? ((length & 0x7f) << 8) | (buffer.get(pos + 1) & 0xff) : length;
+        }
+        int length = buffer.getShort(pos) & 0xffff;
+        if ((length & 0x8000) != 0) {
+            length = ((length & 0x7fff) << 16) | (buffer.getShort(pos + 2) & 0xffff);
+        }
+        return length * 2;
+    }
+}
@@ -0,0 +1,182 @@
+package io.kitsuri.m1rage.utils;
+
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction10x;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction21c;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction35c;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.iface.reference.StringReference;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
+import org.jf.dexlib2.writer.io.FileDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Makes one class load a native library from its static initializer: a
+ * {@code System.loadLibrary(library)} call is put in front of the existing
+ * {@code <clinit>}, or a {@code <clinit>} holding only that call is added. The dex is read
+ * and rewritten with dexlib2, the other classes are interned as they are and nothing goes
+ * through smali.
+ * <p>
+ * The call runs before any other instruction of the initializer, when no register holds a
+ * value yet, so it borrows v0 instead of growing the frame.
+ */
+public final class ClinitInjector {
+
+    public enum Result {
+        /** The dex does not define the class */
+        NOT_FOUND,
+        /** The initializer already loads the library, nothing was written */
+        ALREADY_PATCHED,
+        PATCHED
+    }
+
+    private static final String CLINIT = "<clinit>";
+
+    private static final MethodReference LOAD_LIBRARY = new ImmutableMethodReference(
+            "Ljava/lang/System;", "loadLibrary", Collections.singletonList("Ljava/lang/String;"), "V");
+
+    private final String mType;
+    private final String mLibrary;
+
+    /**
+     * @param className Fully qualified class name, e.g. {@code com.example.MainActivity}
+     * @param library Library name as passed to {@code System.loadLibrary}, e.g. {@code hxo}
+     */
+    public ClinitInjector(String className, String library) {
+        mType = "L" + className.replace('.', '/') + ";";
+        mLibrary = library;
+    }
+
+    /**
+     * Patches the class in [dex] and writes the whole patched dex to [output], which is
+     * only written for {@link Result#PATCHED}.
+     */
+    public Result patch(byte[] dex, File output) throws IOException {
+        DexBackedDexFile dexFile;
+        try {
+            dexFile = new DexBackedDexFile(null, dex);
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid dex file", e);
+        }
+
+        ClassDef target = null;
+        for (ClassDef classDef : dexFile.getClasses()) {
+            if (classDef.getType().equals(mType)) {
+                target = classDef;
+                break;
+            }
+        }
+        if (target == null) return Result.NOT_FOUND;
+
+        Method clinit = null;
+        for (Method method : target.getDirectMethods()) {
+            if (method.getName().equals(CLINIT)) {
+                clinit = method;
+                break;
+            }
+        }
+        if (clinit != null && loadsLibrary(clinit.getImplementation())) {
+            return Result.ALREADY_PATCHED;
+        }
+
+        List<Method> methods = new ArrayList<>();
+        for (Method method : target.getMethods()) {
+            if (!method.getName().equals(CLINIT)) methods.add(method);
+        }
+        methods.add(patchedClinit(clinit));
+
+        ClassDef patched = new ImmutableClassDef(
+                target.getType(),
+                target.getAccessFlags(),
+                target.getSuperclass(),
+                target.getInterfaces(),
+                target.getSourceFile(),
+                target.getAnnotations(),
+                target.getFields(),
+                methods);
+
+        // Each pass over the dex yields new ClassDef objects, so the target is found by type
+        DexPool pool = new DexPool(dexFile.getOpcodes());
+        for (ClassDef classDef : dexFile.getClasses()) {
+            pool.internClass(classDef.getType().equals(mType) ? patched : classDef);
+        }
+        try {
+            pool.writeTo(new FileDataStore(output));
+        } catch (RuntimeException e) {
+            // e.g. the dex already references 64K methods and has no room for loadLibrary
+            output.delete();
+            throw new IOException("Cannot rewrite dex: " + e.getMessage(), e);
+        }
+        return Result.PATCHED;
+    }
+
+    private Method patchedClinit(Method clinit) {
+        MutableMethodImplementation code;
+        int registers;
+        if (clinit != null && clinit.getImplementation() != null) {
+            code = new MutableMethodImplementation(clinit.getImplementation());
+            registers = Math.max(1, clinit.getImplementation().getRegisterCount());
+        } else {
+            code = new MutableMethodImplementation(1);
+            code.addInstruction(new BuilderInstruction10x(Opcode.RETURN_VOID));
+            registers = 1;
+        }
+
+        code.addInstruction(0, new BuilderInstruction35c(Opcode.INVOKE_STATIC, 1, 0, 0, 0, 0, 0, LOAD_LIBRARY));
+        code.addInstruction(0, new BuilderInstruction21c(Opcode.CONST_STRING, 0, new ImmutableStringReference(mLibrary)));
+        MethodImplementation implementation = new ImmutableMethodImplementation(
+                registers, code.getInstructions(), code.getTryBlocks(), code.getDebugItems());
+
+        if (clinit == null) {
+            return new ImmutableMethod(mType, CLINIT, Collections.emptyList(), "V",
+                    AccessFlags.STATIC.getValue() | AccessFlags.CONSTRUCTOR.getValue(),
+                    Collections.emptySet(), Collections.emptySet(), implementation);
+        }
+        return new ImmutableMethod(clinit.getDefiningClass(), clinit.getName(), clinit.getParameters(),
+                clinit.getReturnType(), clinit.getAccessFlags(), clinit.getAnnotations(),
+                clinit.getHiddenApiRestrictions(), implementation);
+    }
+
+    /**
+     * Returns true if [code] passes the library name to {@code System.loadLibrary}.
+     */
+    private boolean loadsLibrary(MethodImplementation code) {
+        if (code == null) return false;
+        boolean hasName = false;
+        for (Instruction instruction : code.getInstructions()) {
+            if (!(instruction instanceof ReferenceInstruction)) continue;
+            Object reference = ((ReferenceInstruction) instruction).getReference();
+            if (instruction.getOpcode() == Opcode.CONST_STRING && reference instanceof StringReference
+                    && mLibrary.equals(((StringReference) reference).getString())) {
+                hasName = true;
+            } else if (hasName && instruction.getOpcode() == Opcode.INVOKE_STATIC
+                    && reference instanceof MethodReference && isLoadLibrary((MethodReference) reference)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isLoadLibrary(MethodReference reference) {
+        return reference.getDefiningClass().equals(LOAD_LIBRARY.getDefiningClass())
+                && reference.getName().equals(LOAD_LIBRARY.getName());
+    }
+}
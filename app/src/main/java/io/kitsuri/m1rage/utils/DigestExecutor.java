@@ -0,0 +1,99 @@
+package io.kitsuri.m1rage.utils;
+
+import com.android.apksig.util.RunnablesExecutor;
+import com.android.apksig.util.RunnablesProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the chunk digest workers of the v2/v3 signature schemes on a fixed number of
+ * threads. apksig hands out the 1 MB chunks from a shared queue and assembles the digests
+ * in chunk order, so the signature block is the same for any thread count.
+ * <p>
+ * The calling thread runs one worker itself, the others run on a process-wide pool that is
+ * shared by concurrent signing jobs. Only used when the digest thread count is set
+ * explicitly; otherwise apksig's own multi-threaded executor stays in place.
+ */
+public final class DigestExecutor implements RunnablesExecutor {
+
+    /**
+     * Digest thread count that keeps apksig's default executor.
+     */
+    public static final int APKSIG_DEFAULT_THREADS = 0;
+
+    private static ExecutorService sPool;
+
+    private final int mThreads;
+
+    private DigestExecutor(int threads) {
+        mThreads = threads;
+    }
+
+    /**
+     * Returns an executor running the digest workers on [threads] threads, the serial apksig
+     * executor for 1.
+     */
+    public static RunnablesExecutor withThreads(int threads) {
+        return threads <= 1 ? RunnablesExecutor.SINGLE_THREADED : new DigestExecutor(threads);
+    }
+
+    private static synchronized ExecutorService pool() {
+        if (sPool == null) {
+            AtomicInteger count = new AtomicInteger();
+            sPool = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "digest-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return sPool;
+    }
+
+    @Override
+    public void execute(RunnablesProvider provider) {
+        ExecutorService pool = pool();
+        List<Future<?>> workers = new ArrayList<>(mThreads - 1);
+        for (int i = 1; i < mThreads; i++) {
+            workers.add(pool.submit(provider.createRunnable()));
+        }
+
+        RuntimeException failure = null;
+        try {
+            provider.createRunnable().run();
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+
+        boolean interrupted = false;
+        for (Future<?> worker : workers) {
+            while (true) {
+                try {
+                    worker.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // The digests are still being written by the workers, wait for them
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof RuntimeException
+                                ? (RuntimeException) e.getCause()
+                                : new RuntimeException("Digest computation failed", e.getCause());
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
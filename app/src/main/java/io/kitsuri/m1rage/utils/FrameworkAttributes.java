@@ -0,0 +1,109 @@
+package io.kitsuri.m1rage.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Resource IDs of the framework ({@code android:}) attributes used in manifests, so binary
+ * manifests can be written without resolving names through the Android resources at run
+ * time. IDs are the public values of {@code android.R.attr} and never change between
+ * releases.
+ */
+public final class FrameworkAttributes {
+
+    private static final Map<String, Integer> sIds = new HashMap<>(128);
+
+    static {
+        add("theme", 0x01010000);
+        add("label", 0x01010001);
+        add("icon", 0x01010002);
+        add("name", 0x01010003);
+        add("manageSpaceActivity", 0x01010004);
+        add("allowClearUserData", 0x01010005);
+        add("permission", 0x01010006);
+        add("readPermission", 0x01010007);
+        add("writePermission", 0x01010008);
+        add("protectionLevel", 0x01010009);
+        add("permissionGroup", 0x0101000a);
+        add("sharedUserId", 0x0101000b);
+        add("hasCode", 0x0101000c);
+        add("persistent", 0x0101000d);
+        add("enabled", 0x0101000e);
+        add("debuggable", 0x0101000f);
+        add("exported", 0x01010010);
+        add("process", 0x01010011);
+        add("taskAffinity", 0x01010012);
+        add("multiprocess", 0x01010013);
+        add("finishOnTaskLaunch", 0x01010014);
+        add("clearTaskOnLaunch", 0x01010015);
+        add("stateNotNeeded", 0x01010016);
+        add("excludeFromRecents", 0x01010017);
+        add("authorities", 0x01010018);
+        add("syncable", 0x01010019);
+        add("initOrder", 0x0101001a);
+        add("grantUriPermissions", 0x0101001b);
+        add("priority", 0x0101001c);
+        add("launchMode", 0x0101001d);
+        add("screenOrientation", 0x0101001e);
+        add("configChanges", 0x0101001f);
+        add("description", 0x01010020);
+        add("targetPackage", 0x01010021);
+        add("handleProfiling", 0x01010022);
+        add("functionalTest", 0x01010023);
+        add("value", 0x01010024);
+        add("resource", 0x01010025);
+        add("mimeType", 0x01010026);
+        add("scheme", 0x01010027);
+        add("host", 0x01010028);
+        add("port", 0x01010029);
+        add("path", 0x0101002a);
+        add("pathPrefix", 0x0101002b);
+        add("pathPattern", 0x0101002c);
+        add("action", 0x0101002d);
+        add("data", 0x0101002e);
+        add("targetClass", 0x0101002f);
+        add("targetActivity", 0x01010202);
+        add("minSdkVersion", 0x0101020c);
+        add("versionCode", 0x0101021b);
+        add("versionName", 0x0101021c);
+        add("targetSdkVersion", 0x01010270);
+        add("maxSdkVersion", 0x01010271);
+        add("testOnly", 0x01010272);
+        add("backupAgent", 0x0101027f);
+        add("allowBackup", 0x01010280);
+        add("installLocation", 0x010102b7);
+        add("logo", 0x010102be);
+        add("hardwareAccelerated", 0x010102d3);
+        add("largeHeap", 0x0101035a);
+        add("supportsRtl", 0x010103af);
+        add("banner", 0x010103f2);
+        add("extractNativeLibs", 0x010104ea);
+        add("fullBackupContent", 0x010104eb);
+        add("usesCleartextTraffic", 0x010104ec);
+        add("resizeableActivity", 0x010104f6);
+        add("directBootAware", 0x01010505);
+        add("networkSecurityConfig", 0x01010527);
+        add("roundIcon", 0x0101052c);
+        add("isFeatureSplit", 0x0101055b);
+        add("compileSdkVersion", 0x01010572);
+        add("compileSdkVersionCodename", 0x01010573);
+        add("appComponentFactory", 0x0101057a);
+        add("requestLegacyExternalStorage", 0x01010603);
+    }
+
+    private FrameworkAttributes() {
+    }
+
+    private static void add(String name, int id) {
+        sIds.put(name, id);
+    }
+
+    /**
+     * Resource ID of the framework attribute [name], without the {@code android:} prefix, or
+     * 0 if it is not in the table.
+     */
+    public static int id(String name) {
+        Integer id = sIds.get(name);
+        return id != null ? id : 0;
+    }
+}
@@ -0,0 +1,103 @@
+package io.kitsuri.m1rage.utils
+
+import io.kitsuri.m1rage.utils.AxmlEditor.Attribute
+import java.io.File
+
+/**
+ * Batch of manifest edits applied with one parse and at most one write of [manifestFile].
+ * Edits run in the order they were added; [apply] reports the ones that found the manifest
+ * already in the requested state, and leaves the file untouched when all of them did.
+ */
+class ManifestEditSession(val manifestFile: File) {
+
+    /**
+     * Outcome of [apply]: labels of the edits that changed the manifest and of the ones that
+     * were no-ops, and whether the file was rewritten.
+     */
+    class Result(
+        val applied: List<String>,
+        val skipped: List<String>,
+        val written: Boolean
+    )
+
+    private class Edit(val label: String, val block: (AxmlEditor) -> Boolean)
+
+    private val edits = ArrayList<Edit>()
+
+    val isEmpty: Boolean get() = edits.isEmpty()
+
+    /**
+     * Adds the HxoLoader provider unless the manifest already declares it.
+     */
+    fun addProvider(packageName: String) = add(PROVIDER_EDIT) { editor ->
+        !editor.hasAttributeValue("name", LOADER_PROVIDER) && editor.addElement(
+            "application", "provider", listOf(
+                Attribute.string("name", LOADER_PROVIDER),
+                Attribute.string("authorities", "$packageName.hxo.init"),
+                Attribute.bool("exported", false),
+                Attribute.integer("initOrder", 1000)
+            )
+        )
+    }
+
+    /**
+     * Adds a meta-data element unless an element named [name] already exists.
+     */
+    fun addMetaData(name: String, value: String) = add(metaDataEdit(name)) { editor ->
+        !editor.hasAttributeValue("name", name) && editor.addElement(
+            "application", "meta-data", listOf(
+                Attribute.string("name", name),
+                Attribute.string("value", value)
+            )
+        )
+    }
+
+    fun setVersionCode(versionCode: Int) = add("versionCode=$versionCode") { editor ->
+        editor.setIntAttribute("manifest", "versionCode", versionCode)
+    }
+
+    fun setDebuggable(debuggable: Boolean) = add("debuggable=$debuggable") { editor ->
+        editor.setBooleanAttribute("application", "debuggable", debuggable)
+    }
+
+    fun setExtractNativeLibs(extract: Boolean) = add("extractNativeLibs=$extract") { editor ->
+        editor.setBooleanAttribute("application", "extractNativeLibs", extract)
+    }
+
+    private fun add(label: String, block: (AxmlEditor) -> Boolean): ManifestEditSession {
+        edits += Edit(label, block)
+        return this
+    }
+
+    /**
+     * Parses the manifest, runs every edit and writes the result back if any of them changed
+     * it. The session can be applied again, e.g. to another copy of the file.
+     */
+    fun apply(): Result {
+        if (edits.isEmpty()) return Result(emptyList(), emptyList(), false)
+
+        val editor = AxmlEditor(manifestFile.readBytes())
+        val applied = ArrayList<String>(edits.size)
+        val skipped = ArrayList<String>()
+        for (edit in edits) {
+            if (edit.block(editor)) applied += edit.label else skipped += edit.label
+        }
+
+        val written = editor.isModified
+        if (written) {
+            manifestFile.writeBytes(editor.toByteArray())
+            ManifestSummary.invalidate(manifestFile)
+        }
+        return Result(applied, skipped, written)
+    }
+
+    companion object {
+        const val LOADER_PROVIDER = "com.hxo.loader.HxoLoader"
+
+        /** Label of the [addProvider] edit in a [Result] */
+        const val PROVIDER_EDIT = "provider $LOADER_PROVIDER"
+
+        /** Label of the [addMetaData] edit for [name] in a [Result] */
+        fun metaDataEdit(name: String) = "meta-data $name"
+    }
+}
@@ -0,0 +1,478 @@
+package io.kitsuri.m1rage.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import static io.kitsuri.m1rage.utils.BinaryXml.NO_ENTRY;
+import static io.kitsuri.m1rage.utils.BinaryXml.RES_STRING_POOL_TYPE;
+import static io.kitsuri.m1rage.utils.BinaryXml.RES_XML_END_ELEMENT_TYPE;
+import static io.kitsuri.m1rage.utils.BinaryXml.RES_XML_RESOURCE_MAP_TYPE;
+import static io.kitsuri.m1rage.utils.BinaryXml.RES_XML_START_ELEMENT_TYPE;
+import static io.kitsuri.m1rage.utils.BinaryXml.RES_XML_TYPE;
+import static io.kitsuri.m1rage.utils.BinaryXml.TYPE_INT_BOOLEAN;
+import static io.kitsuri.m1rage.utils.BinaryXml.TYPE_INT_DEC;
+import static io.kitsuri.m1rage.utils.BinaryXml.TYPE_INT_HEX;
+import static io.kitsuri.m1rage.utils.BinaryXml.TYPE_STRING;
+import static io.kitsuri.m1rage.utils.BinaryXml.UTF8_FLAG;
+
+/**
+ * What the patcher needs to know about a binary AndroidManifest.xml, read in one pass over
+ * its chunks: package, version, SDK levels, debuggable, split attributes, the activities,
+ * their aliases and the launcher activity, and whether the HxoLoader provider is already
+ * there. Only the strings that are looked at are decoded, nothing is turned into text.
+ * <p>
+ * {@link #of(File)} keeps the summary of a manifest file, and {@link #forApk(File)} the one
+ * of the manifest inside an APK, for as long as the file keeps its size and modification
+ * time. Instances are immutable.
+ */
+public final class ManifestSummary {
+
+    private static final int ATTR_NAME = FrameworkAttributes.id("name");
+    private static final int ATTR_LABEL = FrameworkAttributes.id("label");
+    private static final int ATTR_DEBUGGABLE = FrameworkAttributes.id("debuggable");
+    private static final int ATTR_MIN_SDK_VERSION = FrameworkAttributes.id("minSdkVersion");
+    private static final int ATTR_VERSION_CODE = FrameworkAttributes.id("versionCode");
+    private static final int ATTR_VERSION_NAME = FrameworkAttributes.id("versionName");
+    private static final int ATTR_TARGET_SDK_VERSION = FrameworkAttributes.id("targetSdkVersion");
+    private static final int ATTR_TARGET_ACTIVITY = FrameworkAttributes.id("targetActivity");
+
+    private static final String ACTION_MAIN = "android.intent.action.MAIN";
+    private static final String CATEGORY_LAUNCHER = "android.intent.category.LAUNCHER";
+    private static final String LOADER_PROVIDER = "com.hxo.loader.HxoLoader";
+
+    private static final String MANIFEST = "AndroidManifest.xml";
+
+    private static final int MAX_CACHED = 16;
+
+    private static final Map<String, ManifestSummary> sCache = new LinkedHashMap<String, ManifestSummary>(MAX_CACHED, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ManifestSummary> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+
+    public final String packageName;
+    public final Integer versionCode;
+    public final String versionName;
+    /** {@link SignaturePlan#UNKNOWN_MIN_SDK} when there is no uses-sdk */
+    public final int minSdkVersion;
+    /** minSdkVersion when not declared */
+    public final int targetSdkVersion;
+    /** null when the application does not declare it */
+    public final Boolean debuggable;
+    /** android:label of the application when it is a literal, null for resource references */
+    public final String applicationLabel;
+    /**
+     * Fully qualified class of the launcher activity, null if there is none. When the
+     * launcher is an activity-alias, this is the activity it targets.
+     */
+    public final String launcherActivity;
+    /** Fully qualified names of the activity elements, in document order */
+    public final List<String> activities;
+    /** Fully qualified activity-alias names mapped to their target activities */
+    public final Map<String, String> activityAliases;
+    /** Split name of a split APK, null for the base */
+    public final String split;
+    public final String configForSplit;
+    public final boolean isFeatureSplit;
+    public final boolean hasLoaderProvider;
+
+    // Size, modification time and key of the file the summary was read from, for cached ones
+    private final long mFileLength;
+    private final long mModifiedNanos;
+    private final Object mFileKey;
+
+    private ManifestSummary(Reader reader, long fileLength, long modifiedNanos, Object fileKey) {
+        packageName = reader.packageName;
+        versionCode = reader.versionCode;
+        versionName = reader.versionName;
+        minSdkVersion = reader.minSdkVersion != null ? reader.minSdkVersion : SignaturePlan.UNKNOWN_MIN_SDK;
+        targetSdkVersion = reader.targetSdkVersion != null ? reader.targetSdkVersion : minSdkVersion;
+        debuggable = reader.debuggable;
+        applicationLabel = reader.applicationLabel;
+        List<String> activities = new ArrayList<>(reader.activities.size());
+        for (String activity : reader.activities) {
+            activities.add(resolveClassName(activity, packageName));
+        }
+        this.activities = Collections.unmodifiableList(activities);
+        Map<String, String> aliases = new LinkedHashMap<>();
+        for (Map.Entry<String, String> alias : reader.aliases.entrySet()) {
+            aliases.put(resolveClassName(alias.getKey(), packageName),
+                    resolveClassName(alias.getValue(), packageName));
+        }
+        activityAliases = Collections.unmodifiableMap(aliases);
+        launcherActivity = reader.launcherActivity != null
+                ? targetActivity(resolveClassName(reader.launcherActivity, packageName)) : null;
+        split = reader.split;
+        configForSplit = reader.configForSplit;
+        isFeatureSplit = reader.isFeatureSplit;
+        hasLoaderProvider = reader.hasLoaderProvider;
+        mFileLength = fileLength;
+        mModifiedNanos = modifiedNanos;
+        mFileKey = fileKey;
+    }
+
+    /**
+     * Summary of the manifest file [file], read once and shared until the file changes.
+     */
+    public static ManifestSummary of(File file) throws IOException {
+        return cached(file, file.getCanonicalPath(), () -> ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+    }
+
+    /**
+     * Summary of the AndroidManifest.xml inside the APK [apk], read straight from the
+     * archive without extracting anything, and shared until the APK changes.
+     */
+    public static ManifestSummary forApk(File apk) throws IOException {
+        return cached(apk, apk.getCanonicalPath() + "!/" + MANIFEST, () -> {
+            ByteBuffer manifest = new ApkRebuilder(apk).readEntry(MANIFEST);
+            if (manifest == null) {
+                throw new IOException(MANIFEST + " not found in " + apk.getName());
+            }
+            return manifest;
+        });
+    }
+
+    private interface Loader {
+        ByteBuffer load() throws IOException;
+    }
+
+    private static ManifestSummary cached(File file, String key, Loader loader) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        long modified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+
+        synchronized (sCache) {
+            ManifestSummary cached = sCache.get(key);
+            if (cached != null && cached.mFileLength == attributes.size() && cached.mModifiedNanos == modified
+                    && Objects.equals(cached.mFileKey, attributes.fileKey())) {
+                return cached;
+            }
+        }
+
+        ManifestSummary summary = new ManifestSummary(parse(loader.load()), attributes.size(), modified,
+                attributes.fileKey());
+
+        synchronized (sCache) {
+            sCache.put(key, summary);
+        }
+        return summary;
+    }
+
+    /**
+     * Drops the cached summary of the manifest file [file], for callers that rewrite it within the resolution
+     * of the file system timestamps.
+     */
+    public static void invalidate(File file) {
+        try {
+            String key = file.getCanonicalPath();
+            synchronized (sCache) {
+                sCache.remove(key);
+            }
+        } catch (IOException ignored) {
+            // Never cached under a path that cannot be resolved
+        }
+    }
+
+    /**
+     * Reads a binary manifest from the remaining bytes of [data], without caching. The
+     * buffer position is left unchanged.
+     */
+    public static ManifestSummary read(ByteBuffer data) throws IOException {
+        return new ManifestSummary(parse(data), -1, -1, null);
+    }
+
+    private static Reader parse(ByteBuffer data) throws IOException {
+        Reader reader = new Reader(data.slice().order(ByteOrder.LITTLE_ENDIAN));
+        try {
+            reader.read();
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt binary XML", e);
+        }
+        return reader;
+    }
+
+    /**
+     * Reads a binary manifest from [in] up to its end, e.g. a zip entry stream, without
+     * caching. The stream is not closed.
+     */
+    public static ManifestSummary read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16384);
+        byte[] buffer = new byte[8192];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+        return read(ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    /**
+     * Resolves a class name relative to the package, as the package manager does.
+     */
+    static String resolveClassName(String name, String packageName) {
+        if (packageName == null || packageName.isEmpty()) return name;
+        if (name.startsWith(".")) return packageName + name;
+        if (name.indexOf('.') < 0) return packageName + "." + name;
+        return name;
+    }
+
+    /**
+     * Returns the activity class behind [name]: the target of an activity-alias, or [name]
+     * itself. Relative names are resolved against the package.
+     */
+    public String targetActivity(String name) {
+        String className = resolveClassName(name, packageName);
+        String target = activityAliases.get(className);
+        return target != null ? target : className;
+    }
+
+    @Override
+    public String toString() {
+        return packageName + " " + versionName + " (" + versionCode + "), minSdk " + minSdkVersion
+                + (split != null ? ", split " + split : "");
+    }
+
+    /**
+     * Single pass over the chunks, with the string pool decoded on demand.
+     */
+    private static final class Reader {
+        private final ByteBuffer mData;
+
+        private int mPoolStart;
+        private int mPoolHeaderSize;
+        private int mStringsStart;
+        private boolean mUtf8;
+        private String[] mStrings = new String[0];
+        private int[] mResourceIds = new int[0];
+
+        String packageName;
+        Integer versionCode;
+        String versionName;
+        Integer minSdkVersion;
+        Integer targetSdkVersion;
+        Boolean debuggable;
+        String applicationLabel;
+        String launcherActivity;
+        final List<String> activities = new ArrayList<>();
+        final Map<String, String> aliases = new LinkedHashMap<>();
+        String split;
+        String configForSplit;
+        boolean isFeatureSplit;
+        boolean hasLoaderProvider;
+
+        // Launcher detection state of the activity being read
+        private String mComponent;
+        private int mComponentDepth;
+        private boolean mInIntentFilter;
+        private boolean mHasMain;
+        private boolean mHasLauncher;
+        private int mDepth;
+
+        Reader(ByteBuffer data) {
+            mData = data;
+        }
+
+        void read() throws IOException {
+            int limit = mData.limit();
+            if (limit < 8 || (mData.getShort(0) & 0xffff) != RES_XML_TYPE) {
+                throw new IOException("Not a binary XML document");
+            }
+
+            int end = Math.min(mData.getInt(4), limit);
+            int pos = mData.getShort(2) & 0xffff;
+            while (pos + 8 <= end) {
+                int type = mData.getShort(pos) & 0xffff;
+                int size = mData.getInt(pos + 4);
+                if (size < 8 || pos + size > end) {
+                    throw new IOException("Corrupt chunk at " + pos);
+                }
+
+                switch (type) {
+                    case RES_STRING_POOL_TYPE:
+                        if (mStrings.length == 0) readStringPool(pos);
+                        break;
+                    case RES_XML_RESOURCE_MAP_TYPE:
+                        readResourceMap(pos, size);
+                        break;
+                    case RES_XML_START_ELEMENT_TYPE:
+                        startElement(pos);
+                        break;
+                    case RES_XML_END_ELEMENT_TYPE:
+                        endElement(pos);
+                        break;
+                }
+                pos += size;
+            }
+        }
+
+        private void readStringPool(int pos) {
+            mPoolStart = pos;
+            mPoolHeaderSize = mData.getShort(pos + 2) & 0xffff;
+            mStrings = new String[mData.getInt(pos + 8)];
+            mUtf8 = (mData.getInt(pos + 16) & UTF8_FLAG) != 0;
+            mStringsStart = pos + mData.getInt(pos + 20);
+        }
+
+        private void readResourceMap(int pos, int size) {
+            int headerSize = mData.getShort(pos + 2) & 0xffff;
+            mResourceIds = new int[(size - headerSize) / 4];
+            for (int i = 0; i < mResourceIds.length; i++) {
+                mResourceIds[i] = mData.getInt(pos + headerSize + i * 4);
+            }
+        }
+
+        private void startElement(int pos) {
+            mDepth++;
+            int ext = pos + (mData.getShort(pos + 2) & 0xffff);
+            String tag = string(mData.getInt(ext + 4));
+            if (tag == null) return;
+
+            switch (tag) {
+                case "manifest":
+                    if (mDepth != 1) return;
+                    packageName = stringValue(pos, 0, "package");
+                    versionCode = intValue(pos, ATTR_VERSION_CODE, "versionCode");
+                    versionName = stringValue(pos, ATTR_VERSION_NAME, "versionName");
+                    split = stringValue(pos, 0, "split");
+                    configForSplit = stringValue(pos, 0, "configForSplit");
+                    isFeatureSplit = "true".equals(stringValue(pos, 0, "isFeatureSplit"));
+                    break;
+                case "uses-sdk":
+                    minSdkVersion = intValue(pos, ATTR_MIN_SDK_VERSION, "minSdkVersion");
+                    targetSdkVersion = intValue(pos, ATTR_TARGET_SDK_VERSION, "targetSdkVersion");
+                    break;
+                case "application":
+                    String debug = stringValue(pos, ATTR_DEBUGGABLE, "debuggable");
+                    debuggable = debug != null ? Boolean.valueOf("true".equals(debug)) : null;
+                    String label = stringValue(pos, ATTR_LABEL, "label");
+                    applicationLabel = label != null && !label.startsWith("@") ? label : null;
+                    break;
+                case "activity":
+                case "activity-alias":
+                    mComponent = stringValue(pos, ATTR_NAME, "name");
+                    mComponentDepth = mDepth;
+                    mHasMain = false;
+                    mHasLauncher = false;
+                    if (mComponent == null) break;
+                    if (tag.equals("activity")) {
+                        activities.add(mComponent);
+                    } else {
+                        String target = stringValue(pos, ATTR_TARGET_ACTIVITY, "targetActivity");
+                        if (target != null) aliases.put(mComponent, target);
+                    }
+                    break;
+                case "intent-filter":
+                    mInIntentFilter = mComponent != null;
+                    break;
+                case "action":
+                    if (mInIntentFilter && ACTION_MAIN.equals(stringValue(pos, ATTR_NAME, "name"))) {
+                        mHasMain = true;
+                    }
+                    break;
+                case "category":
+                    if (mInIntentFilter && CATEGORY_LAUNCHER.equals(stringValue(pos, ATTR_NAME, "name"))) {
+                        mHasLauncher = true;
+                    }
+                    break;
+                case "provider":
+                    if (LOADER_PROVIDER.equals(stringValue(pos, ATTR_NAME, "name"))) {
+                        hasLoaderProvider = true;
+                    }
+                    break;
+            }
+        }
+
+        private void endElement(int pos) {
+            int ext = pos + (mData.getShort(pos + 2) & 0xffff);
+            String tag = string(mData.getInt(ext + 4));
+            if ("intent-filter".equals(tag)) {
+                mInIntentFilter = false;
+            } else if (mComponent != null && mDepth == mComponentDepth) {
+                // The last launcher component wins, like the previous text-based lookup
+                if (mHasMain && mHasLauncher) {
+                    launcherActivity = mComponent;
+                }
+                mComponent = null;
+            }
+            mDepth--;
+        }
+
+        /**
+         * Offset of the attribute matching [resourceId] or, for attributes without one,
+         * [name], or -1.
+         */
+        private int findAttribute(int pos, int resourceId, String name) {
+            int ext = pos + (mData.getShort(pos + 2) & 0xffff);
+            int start = ext + (mData.getShort(ext + 8) & 0xffff);
+            int size = mData.getShort(ext + 10) & 0xffff;
+            int count = mData.getShort(ext + 12) & 0xffff;
+            for (int i = 0; i < count; i++) {
+                int attr = start + i * size;
+                int nameIndex = mData.getInt(attr + 4);
+                if (resourceId != 0 && nameIndex >= 0 && nameIndex < mResourceIds.length) {
+                    if (mResourceIds[nameIndex] == resourceId) return attr;
+                } else if (name.equals(string(nameIndex))) {
+                    return attr;
+                }
+            }
+            return -1;
+        }
+
+        private String stringValue(int pos, int resourceId, String name) {
+            int attr = findAttribute(pos, resourceId, name);
+            if (attr < 0) return null;
+            int type = mData.get(attr + 15) & 0xff;
+            int data = mData.getInt(attr + 16);
+            switch (type) {
+                case TYPE_STRING:
+                    return string(data);
+                case TYPE_INT_BOOLEAN:
+                    return data != 0 ? "true" : "false";
+                case TYPE_INT_DEC:
+                    return Integer.toString(data);
+                default:
+                    int raw = mData.getInt(attr + 8);
+                    return raw != NO_ENTRY ? string(raw) : null;
+            }
+        }
+
+        private Integer intValue(int pos, int resourceId, String name) {
+            int attr = findAttribute(pos, resourceId, name);
+            if (attr < 0) return null;
+            int type = mData.get(attr + 15) & 0xff;
+            if (type == TYPE_INT_DEC || type == TYPE_INT_HEX) {
+                return mData.getInt(attr + 16);
+            }
+            String text = stringValue(pos, resourceId, name);
+            if (text == null) return null;
+            try {
+                return Integer.valueOf(text.trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private String string(int index) {
+            if (index < 0 || index >= mStrings.length) return null;
+            String value = mStrings[index];
+            if (value == null) {
+                value = BinaryXml.decodeString(mData,
+                        mStringsStart + mData.getInt(mPoolStart + mPoolHeaderSize + index * 4), mUtf8);
+                mStrings[index] = value;
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package io.kitsuri.m1rage.utils;
+
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Signature schemes an APK is signed with, picked from the minSdkVersion of its manifest.
+ * v2 covers every release from Android 7.0, so v1 JAR signing, which hashes every entry
+ * again, is only kept for apps that still install on older releases. v3 only adds key
+ * rotation, which the signing key does not use. A v4 signature file for incremental
+ * installs is written when this device supports them (Android 11).
+ */
+public final class SignaturePlan {
+
+    /** First release that verifies APK Signature Scheme v2 */
+    private static final int MIN_SDK_V2 = 24;
+
+    /** minSdkVersion used when the manifest cannot be read: keeps v1 */
+    public static final int UNKNOWN_MIN_SDK = 1;
+
+    public final int minSdkVersion;
+    public final boolean v1;
+    public final boolean v2;
+    public final boolean v3;
+    public final boolean v4;
+
+    private SignaturePlan(int minSdkVersion, boolean v1, boolean v2, boolean v3, boolean v4) {
+        this.minSdkVersion = minSdkVersion;
+        this.v1 = v1;
+        this.v2 = v2;
+        this.v3 = v3;
+        this.v4 = v4;
+    }
+
+    public static SignaturePlan forMinSdk(int minSdkVersion) {
+        return new SignaturePlan(minSdkVersion, minSdkVersion < MIN_SDK_V2, true, false,
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.R);
+    }
+
+    /**
+     * Plan for a binary AndroidManifest.xml file.
+     */
+    public static SignaturePlan forManifest(File manifest) {
+        try {
+            return forMinSdk(ManifestSummary.of(manifest).minSdkVersion);
+        } catch (IOException e) {
+            return forMinSdk(UNKNOWN_MIN_SDK);
+        }
+    }
+
+    /**
+     * Plan for the manifest inside an APK.
+     */
+    public static SignaturePlan forApk(File apk) {
+        try {
+            return forMinSdk(ManifestSummary.forApk(apk).minSdkVersion);
+        } catch (IOException e) {
+            return forMinSdk(UNKNOWN_MIN_SDK);
+        }
+    }
+
+    /**
+     * This plan without the v4 signature file.
+     */
+    public SignaturePlan withoutV4() {
+        return v4 ? new SignaturePlan(minSdkVersion, v1, v2, v3, false) : this;
+    }
+
+    /**
+     * Enabled schemes, e.g. {@code [v1, v2]}.
+     */
+    public List<String> getSchemes() {
+        List<String> schemes = new ArrayList<>(4);
+        if (v1) schemes.add("v1");
+        if (v2) schemes.add("v2");
+        if (v3) schemes.add("v3");
+        if (v4) schemes.add("v4");
+        return Collections.unmodifiableList(schemes);
+    }
+
+    @Override
+    public String toString() {
+        return String.join("+", getSchemes()) + " (minSdk " + minSdkVersion + ")";
+    }
+}
@@ -0,0 +1,209 @@
+package io.kitsuri.m1rage.utils;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.android.apksig.ApkSigner;
+import com.android.apksig.DefaultApkSignerEngine;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+
+import in.sunilpaulmathew.sCommon.FileUtils.sFileUtils;
+import io.kitsuri.m1rage.model.PatcherViewModel;
+
+/**
+ * Signing key and certificate of the process, decoded once and shared by every signer.
+ * The key files are checked by length and modification time on each access and reloaded
+ * when they change. Safe to use from concurrent signing jobs.
+ */
+public final class SigningSession {
+
+    private static final String TAG = "SigningSession";
+    private static PatcherViewModel viewModel;
+
+    private static final String SIGNER_NAME = "CERT";
+
+    private static SigningSession sInstance;
+
+    private final Context mContext;
+    private volatile Keys mKeys;
+
+    public static void setViewModel(PatcherViewModel vm) {
+        viewModel = vm;
+    }
+
+    private static void addLog(int level, String message) {
+        if (viewModel != null) {
+            viewModel.addLog(level, message);
+        } else {
+            Log.println(level, TAG, message);
+        }
+    }
+
+    private SigningSession(Context context) {
+        mContext = context;
+    }
+
+    public static synchronized SigningSession get(Context context) {
+        if (sInstance == null) {
+            sInstance = new SigningSession(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    public PrivateKey getPrivateKey() {
+        return keys().privateKey;
+    }
+
+    public List<X509Certificate> getCertificates() {
+        return keys().certificates;
+    }
+
+    /**
+     * Signer config for {@link ApkSigner}, immutable.
+     */
+    public ApkSigner.SignerConfig getSignerConfig() {
+        return keys().signerConfig;
+    }
+
+    /**
+     * Signer config for {@link DefaultApkSignerEngine}, immutable and shared by engines
+     * running on different threads.
+     */
+    public DefaultApkSignerEngine.SignerConfig getEngineSignerConfig() {
+        return keys().engineSignerConfig;
+    }
+
+    /**
+     * Drops the decoded keys, the next access reads the key files again.
+     */
+    public void invalidate() {
+        mKeys = null;
+    }
+
+    private Keys keys() {
+        File pk8 = APKSigner.getPK8PrivateKey(mContext);
+        File crd = APKSigner.getSigningCredentials(mContext);
+
+        Keys keys = mKeys;
+        if (keys != null && keys.isCurrent(pk8, crd)) {
+            return keys;
+        }
+
+        synchronized (this) {
+            keys = mKeys;
+            if (keys != null && keys.isCurrent(pk8, crd)) {
+                return keys;
+            }
+            keys = load(pk8, crd);
+            mKeys = keys;
+            return keys;
+        }
+    }
+
+    private Keys load(File pk8, File crd) {
+        ensureDefaultSigningKeys();
+
+        if (!pk8.exists() || !crd.exists()) {
+            addLog(Log.ERROR, "Signing keys missing");
+            throw new IllegalStateException("Signing keys missing");
+        }
+
+        addLog(Log.DEBUG, "Loading signing certificate");
+        PrivateKey privateKey = new PK8File(pk8).getPrivateKey();
+        if (privateKey == null) {
+            addLog(Log.ERROR, "Invalid signing key: " + pk8.getName());
+            throw new IllegalStateException("Invalid signing key");
+        }
+
+        List<X509Certificate> certificates;
+        try {
+            certificates = Collections.singletonList(readCertificate(crd));
+        } catch (JSONException e) {
+            addLog(Log.ERROR, "Invalid signing credentials: " + e.getMessage());
+            throw new IllegalStateException("Invalid signing credentials", e);
+        }
+
+        return new Keys(pk8, crd, privateKey, certificates);
+    }
+
+    private static X509Certificate readCertificate(File crd) throws JSONException {
+        JSONObject json = new JSONObject(sFileUtils.read(crd));
+        String cert = json.getString("x509Certificate");
+        return APKSigner.encodeCertificate(new ByteArrayInputStream(cert.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private void ensureDefaultSigningKeys() {
+        File dir = APKSigner.getPK8PrivateKey(mContext).getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+            addLog(Log.DEBUG, "Created keystore directory");
+        }
+
+        copyAssetIfMissing(APKSigner.getPK8PrivateKey(mContext));
+        copyAssetIfMissing(APKSigner.getSigningCredentials(mContext));
+    }
+
+    private void copyAssetIfMissing(File out) {
+        if (out.exists()) return;
+
+        String asset = APKSigner.SIGN_DIR + "/" + out.getName();
+        try (InputStream in = mContext.getAssets().open(asset);
+             FileOutputStream fos = new FileOutputStream(out)) {
+
+            byte[] buf = new byte[4096];
+            int r;
+            while ((r = in.read(buf)) != -1) {
+                fos.write(buf, 0, r);
+            }
+            addLog(Log.DEBUG, "Copied signing key: " + out.getName());
+        } catch (Exception e) {
+            addLog(Log.ERROR, "Missing signing asset: " + out.getName());
+            throw new RuntimeException("Missing signing asset: " + out.getName(), e);
+        }
+    }
+
+    /**
+     * Decoded keys and the state of the files they were read from.
+     */
+    private static final class Keys {
+        final long pk8Length;
+        final long pk8Modified;
+        final long crdLength;
+        final long crdModified;
+
+        final PrivateKey privateKey;
+        final List<X509Certificate> certificates;
+        final ApkSigner.SignerConfig signerConfig;
+        final DefaultApkSignerEngine.SignerConfig engineSignerConfig;
+
+        Keys(File pk8, File crd, PrivateKey privateKey, List<X509Certificate> certificates) {
+            pk8Length = pk8.length();
+            pk8Modified = pk8.lastModified();
+            crdLength = crd.length();
+            crdModified = crd.lastModified();
+
+            this.privateKey = privateKey;
+            this.certificates = certificates;
+            signerConfig = new ApkSigner.SignerConfig.Builder(SIGNER_NAME, privateKey, certificates).build();
+            engineSignerConfig =
+                    new DefaultApkSignerEngine.SignerConfig.Builder(SIGNER_NAME, privateKey, certificates).build();
+        }
+
+        boolean isCurrent(File pk8, File crd) {
+            return pk8.length() == pk8Length && pk8.lastModified() == pk8Modified
+                    && crd.length() == crdLength && crd.lastModified() == crdModified;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package io.kitsuri.m1rage.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * ZIP64 records shared by {@link ZipAlign} and {@link ApkRebuilder}: the ZIP64
+ * end-of-central-directory record and its locator, and the ZIP64 extended information
+ * extra field of central directory and local headers.
+ */
+final class Zip64 {
+
+    static final long MAGIC32 = 0xffffffffL;
+    static final int MAGIC16 = 0xffff;
+
+    static final int EXTRA_ID = 0x0001;
+    static final int VERSION_NEEDED = 45;
+
+    private static final int EOCD_SIGNATURE = 0x06064b50;
+    private static final int LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int EOCD_SIZE = 56;
+    private static final int LOCATOR_SIZE = 20;
+    private static final int CLASSIC_EOCD_SIZE = 22;
+    private static final int CLASSIC_EOCD_SIGNATURE = 0x06054b50;
+
+    private Zip64() {
+    }
+
+    /**
+     * Location of the central directory, from the classic EOCD or the ZIP64 one.
+     */
+    static final class CentralDirectory {
+        final long entryCount;
+        final long size;
+        final long offset;
+        /** Offset of the ZIP64 EOCD record, or -1 if the archive has none */
+        final long zip64EocdOffset;
+
+        CentralDirectory(long entryCount, long size, long offset, long zip64EocdOffset) {
+            this.entryCount = entryCount;
+            this.size = size;
+            this.offset = offset;
+            this.zip64EocdOffset = zip64EocdOffset;
+        }
+
+        boolean isZip64() {
+            return zip64EocdOffset >= 0;
+        }
+
+        /** Start of the end records: the ZIP64 EOCD if present, otherwise the given EOCD */
+        long endRecordsOffset(long eocdOffset) {
+            return isZip64() ? zip64EocdOffset : eocdOffset;
+        }
+    }
+
+    /**
+     * Reads the central directory location from the classic EOCD at [eocd] within [tail],
+     * which was read from [tailStart]. A ZIP64 locator right before the EOCD takes over.
+     * Positions are relative to the archive starting at [start] of [channel].
+     */
+    static CentralDirectory locate(FileChannel channel, long start, ByteBuffer tail, long tailStart, int eocd)
+            throws IOException {
+        long entryCount = tail.getShort(eocd + 10) & 0xffff;
+        long size = tail.getInt(eocd + 12) & 0xffffffffL;
+        long offset = tail.getInt(eocd + 16) & 0xffffffffL;
+
+        long locatorOffset = tailStart + eocd - LOCATOR_SIZE;
+        if (locatorOffset < 0) {
+            return new CentralDirectory(entryCount, size, offset, -1);
+        }
+
+        ByteBuffer locator = read(channel, start + locatorOffset, LOCATOR_SIZE);
+        if (locator.getInt(0) != LOCATOR_SIGNATURE) {
+            return new CentralDirectory(entryCount, size, offset, -1);
+        }
+
+        long recordOffset = locator.getLong(8);
+        ByteBuffer record = read(channel, start + recordOffset, EOCD_SIZE);
+        if (record.getInt(0) != EOCD_SIGNATURE) {
+            throw new IOException("Corrupt ZIP64 end-of-central-directory record at " + recordOffset);
+        }
+        return new CentralDirectory(record.getLong(32), record.getLong(40), record.getLong(48), recordOffset);
+    }
+
+    /**
+     * Returns the position of the data of extra field [id] within [buffer], or -1. The
+     * extra field spans [length] bytes from [start].
+     */
+    static int findExtra(ByteBuffer buffer, int start, int length, int id) {
+        int pos = start;
+        int end = start + length;
+        while (pos + 4 <= end) {
+            int headerId = buffer.getShort(pos) & 0xffff;
+            int dataSize = buffer.getShort(pos + 2) & 0xffff;
+            if (headerId == id) {
+                return pos + 4 + dataSize <= end ? pos + 4 : -1;
+            }
+            pos += 4 + dataSize;
+        }
+        return -1;
+    }
+
+    /**
+     * Size of the extra field data of [id] at [data], as returned by {@link #findExtra}.
+     */
+    static int extraSize(ByteBuffer buffer, int data) {
+        return buffer.getShort(data - 2) & 0xffff;
+    }
+
+    /**
+     * True if the end of an archive with these values needs ZIP64 records.
+     */
+    static boolean needsEndRecords(long entryCount, long cdSize, long cdOffset) {
+        return entryCount >= MAGIC16 || cdSize >= MAGIC32 || cdOffset >= MAGIC32;
+    }
+
+    /**
+     * Builds the end records of an archive, written at [recordOffset]: the ZIP64 EOCD and
+     * locator when [zip64] is set, then the classic EOCD with [comment].
+     */
+    static ByteBuffer buildEnd(long entryCount, long cdSize, long cdOffset, long recordOffset, boolean zip64,
+                               ByteBuffer comment) {
+        int commentLength = comment != null ? comment.remaining() : 0;
+        ByteBuffer end = ByteBuffer.allocate((zip64 ? EOCD_SIZE + LOCATOR_SIZE : 0) + CLASSIC_EOCD_SIZE + commentLength)
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+        if (zip64) {
+            end.putInt(EOCD_SIGNATURE);
+            end.putLong(EOCD_SIZE - 12);
+            end.putShort((short) VERSION_NEEDED);
+            end.putShort((short) VERSION_NEEDED);
+            end.putInt(0);
+            end.putInt(0);
+            end.putLong(entryCount);
+            end.putLong(entryCount);
+            end.putLong(cdSize);
+            end.putLong(cdOffset);
+
+            end.putInt(LOCATOR_SIGNATURE);
+            end.putInt(0);
+            end.putLong(recordOffset);
+            end.putInt(1);
+        }
+
+        short count = (short) (entryCount >= MAGIC16 ? MAGIC16 : entryCount);
+        end.putInt(CLASSIC_EOCD_SIGNATURE);
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort(count);
+        end.putShort(count);
+        end.putInt((int) Math.min(cdSize, MAGIC32));
+        end.putInt((int) Math.min(cdOffset, MAGIC32));
+        end.putShort((short) commentLength);
+        if (comment != null) {
+            end.put(comment.duplicate());
+        }
+        end.flip();
+        return end;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            int len = channel.read(buffer, position + buffer.position());
+            if (len < 0) throw new IOException("Unexpected end of archive");
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -1,22 +1,39 @@
 package io.kitsuri.m1rage.utils;
 
 import android.util.Log;
-import androidx.annotation.NonNull;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.charset.StandardCharsets;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
 
 import io.kitsuri.m1rage.model.PatcherViewModel;
 
+/**
+ * Aligns the data of stored entries by growing their local extra field. Entries come from
+ * the {@link ApkIndex} of the input, the central directory is mapped to be patched, and
+ * everything between two patched local headers is copied with {@link FileChannel#transferTo}.
+ */
 public class ZipAlign {
 
     private static final String TAG = "ZipAlign";
-    private static final int maxEOCDLookup = 0xffff + 22;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int EOCD_SIZE = 22;
+
     private static PatcherViewModel viewModel;
 
     public static void setViewModel(PatcherViewModel vm) {
@@ -37,235 +54,311 @@ public class ZipAlign {
 
     public static void alignZip(RandomAccessFile file, OutputStream out, int alignment, int soFileAlignment)
             throws IOException {
+        WritableByteChannel dst = out instanceof FileOutputStream
+                ? ((FileOutputStream) out).getChannel()
+                : Channels.newChannel(out);
+        alignZip(file.getChannel(), dst, alignment, soFileAlignment);
+        out.flush();
+    }
 
-        addLog(Log.INFO, "Starting zip alignment");
-        addLog(Log.DEBUG, "Alignment: " + alignment + ", SO alignment: " + soFileAlignment);
-
-        long seekStart;
-        int readAmount;
-        final long fileLength = file.length();
-
-        if (fileLength > maxEOCDLookup) {
-            seekStart = fileLength - maxEOCDLookup;
-            readAmount = maxEOCDLookup;
-        } else {
-            seekStart = 0;
-            readAmount = (int) fileLength;
-        }
-
-        file.seek(seekStart);
-
-        int i;
-        for (i = readAmount - 4; i >= 0; i--) {
-            if (file.readByte() != 0x50) continue;
-            file.seek(file.getFilePointer() - 1);
-            if (file.readInt() == 0x504b0506) break;
-        }
-
-        if (i < 0) {
-            addLog(Log.ERROR, "No end-of-central-directory found");
-            throw new IOException("No end-of-central-directory found");
+    public static void alignZip(File input, File output, int alignment, int soFileAlignment) throws IOException {
+        ApkIndex index = ApkIndex.of(input);
+        ApkIndex.invalidate(output);
+        try (FileChannel src = FileChannel.open(input.toPath(), StandardOpenOption.READ);
+             FileChannel dst = FileChannel.open(output.toPath(), StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            alignZip(src, index, dst, alignment, soFileAlignment);
         }
+    }
 
-        long eocdPosition = file.getFilePointer() - 4;
-        addLog(Log.DEBUG, "Found EOCD at position: " + eocdPosition);
-
-        file.seek(eocdPosition + 10);
-
-        byte[] buf = new byte[10];
-        file.read(buf);
-        ByteBuffer eocdBuffer = ByteBuffer.wrap(buf)
-                .order(ByteOrder.LITTLE_ENDIAN);
-
-        short totalEntries = eocdBuffer.getShort();
-        int centralDirOffset = eocdBuffer.getInt();
-
-        addLog(Log.DEBUG, "Total entries: " + totalEntries);
+    /**
+     * Writes an aligned copy of the archive in [src] to [dst]. Stored entries are aligned to
+     * [alignment] and stored .so files to [soFileAlignment] (0 treats them like any other
+     * entry), see {@link #entryAlignment}.
+     */
+    public static void alignZip(FileChannel src, WritableByteChannel dst, int alignment, int soFileAlignment)
+            throws IOException {
+        alignZip(src, ApkIndex.read(src), dst, alignment, soFileAlignment);
+    }
 
-        ArrayList<Alignment> neededAlignments = new ArrayList<>();
-        ArrayList<FileOffsetShift> shifts = new ArrayList<>();
+    private static void alignZip(FileChannel src, ApkIndex index, WritableByteChannel dst, int alignment,
+                                 int soFileAlignment) throws IOException {
 
-        int shiftAmount = 0;
+        addLog(Log.INFO, "Starting zip alignment");
+        addLog(Log.DEBUG, "Alignment: " + alignment + ", SO alignment: " + soFileAlignment);
 
-        file.seek(centralDirOffset);
-        byte[] entry = new byte[46];
-        ByteBuffer entryBuffer = ByteBuffer.wrap(entry)
-                .order(ByteOrder.LITTLE_ENDIAN);
+        final long eocdOffset = index.getEocdOffset();
+        final long cdSize = index.getCentralDirectorySize();
+        final long cdOffset = index.getCentralDirectoryOffset();
+        final long endRecords = index.getEndRecordsOffset();
+        final int totalEntries = index.size();
+        addLog(Log.DEBUG, "Found EOCD at position: " + eocdOffset);
+        addLog(Log.DEBUG, "Total entries: " + totalEntries + (index.isZip64() ? " (ZIP64)" : ""));
+
+        // Central directory, patched in place with the shifted local header offsets
+        ByteBuffer cd = ByteBuffer.allocate((int) cdSize).order(ByteOrder.LITTLE_ENDIAN);
+        MappedByteBuffer mappedCd = src.map(FileChannel.MapMode.READ_ONLY, cdOffset, cdSize);
+        cd.put(mappedCd).flip();
+
+        long[] localOffsets = new long[totalEntries];
+        int[] cdPositions = new int[totalEntries];
+        int[] cdLengths = new int[totalEntries];
+        // Position of the 64-bit local header offset in a ZIP64 extra field, or -1
+        int[] zip64Offsets = new int[totalEntries];
+        int[] alignments = new int[totalEntries];
+        for (int i = 0; i < totalEntries; i++) {
+            localOffsets[i] = index.localHeaderOffset(i);
+            cdPositions[i] = index.centralPosition(i);
+            cdLengths[i] = index.centralLength(i);
+            int field = index.zip64OffsetField(i);
+            zip64Offsets[i] = field < 0 ? -1 : cdPositions[i] + field;
+            alignments[i] = entryAlignment(index.method(i), index.nameEndsWith(i, ".so"), alignment, soFileAlignment);
+        }
 
+        // Local headers are visited in file order, which need not be central directory order
+        Integer[] order = new Integer[totalEntries];
+        for (int i = 0; i < totalEntries; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(localOffsets[a], localOffsets[b]));
+
+        // Plan the padding of every entry from its local header lengths
+        ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        long[] shiftedOffsets = new long[totalEntries];
+        long[] headerEnds = new long[totalEntries];
+        int[] extraLens = new int[totalEntries];
+        int[] padding = new int[totalEntries];
+        long shiftAmount = 0;
         int alignedFiles = 0;
-        for (int ei = 0; ei < totalEntries; ei++) {
-            final long entryStart = file.getFilePointer();
-            file.read(entry);
-
-            if (entryBuffer.getInt(0) != 0x02014b50)
-                throw new IOException(
-                        "assumed central directory entry at " + entryStart + " doesn't start with a signature"
-                );
-
-            short entry_fileNameLen = entryBuffer.getShort(28);
-            short entry_extraFieldLen = entryBuffer.getShort(30);
-            short entry_commentLen = entryBuffer.getShort(32);
-            int fileOffset = entryBuffer.getInt(42);
-
-            if (shiftAmount != 0)
-                shifts.add(new FileOffsetShift(entryStart + 42, fileOffset + shiftAmount));
-
-            boolean soAligned = false;
-
-            if (soFileAlignment != 0) {
-                byte[] filenameBuffer = new byte[entry_fileNameLen];
-                file.read(filenameBuffer);
-
-                String filename = new String(filenameBuffer, StandardCharsets.UTF_8);
-                if (filename.endsWith(".so")) {
-                    file.seek(fileOffset + 26);
-
-                    ByteBuffer lengths = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
-                    file.read(lengths.array());
-                    short fileNameLen = lengths.getShort();
-                    short extraFieldLen = lengths.getShort();
-
-                    long dataPos = fileOffset + 30 + fileNameLen + extraFieldLen + shiftAmount;
-                    int wrongOffset = (int) (dataPos % soFileAlignment);
-                    int alignAmount = wrongOffset == 0 ? 0 : (soFileAlignment - wrongOffset);
-                    shiftAmount += alignAmount;
-
-                    if (alignAmount != 0) {
-                        neededAlignments.add(new Alignment(
-                                alignAmount,
-                                fileOffset + 28,
-                                (short) (extraFieldLen + alignAmount),
-                                fileNameLen + extraFieldLen
-                        ));
-                        alignedFiles++;
-                    }
-
-                    soAligned = true;
-                }
+        int maxPadding = 0;
+        int grownEntries = 0;
+        for (int i : order) {
+            long localOffset = localOffsets[i];
+            shiftedOffsets[i] = localOffset + shiftAmount;
+            if (zip64Offsets[i] < 0 && shiftedOffsets[i] >= Zip64.MAGIC32) {
+                grownEntries++;
             }
-
-            if (entryBuffer.getShort(10) == 0 && !soAligned) {
-                file.seek(fileOffset + 26);
-
-                ByteBuffer lengths = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
-                file.read(lengths.array());
-                short fileNameLen = lengths.getShort();
-                short extraFieldLen = lengths.getShort();
-
-                long dataPos = fileOffset + 30 + fileNameLen + extraFieldLen + shiftAmount;
-                int wrongOffset = (int) (dataPos % alignment);
-                int alignAmount = wrongOffset == 0 ? 0 : (alignment - wrongOffset);
-                shiftAmount += alignAmount;
-
-                if (alignAmount != 0) {
-                    neededAlignments.add(new Alignment(
-                            alignAmount,
-                            fileOffset + 28,
-                            (short) (extraFieldLen + alignAmount),
-                            fileNameLen + extraFieldLen
-                    ));
-                    alignedFiles++;
-                }
+            if (alignments[i] == 0) continue;
+
+            header.clear();
+            readFully(src, header, localOffset + 26);
+            int fileNameLen = header.getShort(0) & 0xffff;
+            int extraFieldLen = header.getShort(2) & 0xffff;
+
+            headerEnds[i] = localOffset + LOCAL_HEADER_SIZE + fileNameLen + extraFieldLen;
+            long dataPos = headerEnds[i] + shiftAmount;
+            int wrongOffset = (int) (dataPos % alignments[i]);
+            int alignAmount = wrongOffset == 0 ? 0 : alignments[i] - wrongOffset;
+            if (alignAmount == 0) continue;
+            if (extraFieldLen + alignAmount > 0xffff) {
+                throw new IOException("Extra field too long to align entry at " + localOffset);
             }
 
-            file.seek(entryStart + 46 + entry_fileNameLen + entry_extraFieldLen + entry_commentLen);
+            extraLens[i] = extraFieldLen + alignAmount;
+            padding[i] = alignAmount;
+            shiftAmount += alignAmount;
+            maxPadding = Math.max(maxPadding, alignAmount);
+            alignedFiles++;
         }
 
-        if (alignedFiles > 0) {
-            addLog(Log.INFO, "Aligning " + alignedFiles + " files");
-        }
-
-        file.seek(0);
-        if (neededAlignments.isEmpty()) {
+        if (alignedFiles == 0) {
             addLog(Log.INFO, "No alignment needed, copying as-is");
-            byte[] buffer = new byte[8192];
-            int len;
-            while (-1 != (len = file.read(buffer))) {
-                out.write(buffer, 0, len);
-            }
+            transferFully(src, 0, src.size(), dst);
             return;
         }
-
-        for (Alignment al : neededAlignments) {
-            if (al.extraFieldLenOffset != 0) {
-                passBytes(file, out, al.extraFieldLenOffset - file.getFilePointer());
-            }
-
-            out.write(al.extraFieldLenValue & 0xFF);
-            out.write((al.extraFieldLenValue >>> 8) & 0xFF);
-            file.readShort();
-
-            passBytes(file, out, al.extraFieldExtensionOffset);
-
-            byte[] padding = new byte[al.alignAmount];
-            out.write(padding);
-            out.flush();
+        addLog(Log.INFO, "Aligning " + alignedFiles + " files");
+
+        // Local headers and data: unchanged ranges are transferred, the extra field length is
+        // patched and the padding appended to the extra field
+        ByteBuffer patch = ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer zeros = ByteBuffer.allocate(maxPadding);
+        long copied = 0;
+        for (int i : order) {
+            if (padding[i] == 0) continue;
+            long localOffset = localOffsets[i];
+            transferFully(src, copied, localOffset + 28 - copied, dst);
+
+            patch.clear();
+            patch.putShort(0, (short) extraLens[i]);
+            writeFully(dst, patch);
+
+            transferFully(src, localOffset + LOCAL_HEADER_SIZE, headerEnds[i] - localOffset - LOCAL_HEADER_SIZE, dst);
+            zeros.clear().limit(padding[i]);
+            writeFully(dst, zeros);
+            copied = headerEnds[i];
         }
+        transferFully(src, copied, cdOffset - copied, dst);
+
+        ByteBuffer shiftedCd = shiftCentralDirectory(cd, cdPositions, cdLengths, zip64Offsets, shiftedOffsets,
+                grownEntries);
+        long shiftedCdSize = shiftedCd.remaining();
+        writeFully(dst, shiftedCd);
+
+        // Anything between the central directory and the end records, then new end records
+        // with the shifted central directory offset and the original comment
+        long cdEnd = cdOffset + cdSize;
+        transferFully(src, cdEnd, endRecords - cdEnd, dst);
+
+        long shiftedCdOffset = cdOffset + shiftAmount;
+        long shiftedEndRecords = shiftedCdOffset + shiftedCdSize + (endRecords - cdEnd);
+        boolean zip64 = index.isZip64() || Zip64.needsEndRecords(totalEntries, shiftedCdSize, shiftedCdOffset);
+        ByteBuffer comment = ByteBuffer.allocate((int) (src.size() - eocdOffset - EOCD_SIZE));
+        readFully(src, comment, eocdOffset + EOCD_SIZE);
+        writeFully(dst, Zip64.buildEnd(totalEntries, shiftedCdSize, shiftedCdOffset, shiftedEndRecords, zip64,
+                comment));
 
-        for (FileOffsetShift shift : shifts) {
-            passBytes(file, out, shift.eocdhPosition - file.getFilePointer());
+        addLog(Log.INFO, "Zip alignment complete");
+    }
 
-            out.write(shift.shiftedFileOffset & 0xFF);
-            out.write((shift.shiftedFileOffset >>> 8) & 0xFF);
-            out.write((shift.shiftedFileOffset >>> 16) & 0xFF);
-            out.write((shift.shiftedFileOffset >>> 24) & 0xFF);
-            file.readInt();
+    /**
+     * Verify-only mode, like {@code zipalign -c}: walks the central directory and the local
+     * header lengths without copying anything. Stored entries must start on a multiple of
+     * [alignment], stored .so files on a multiple of [soFileAlignment] (0 treats them like
+     * any other entry); compressed entries are not checked.
+     *
+     * @return Names of the misaligned entries, empty if the archive is aligned
+     */
+    public static List<String> findMisaligned(File apk, int alignment, int soFileAlignment) throws IOException {
+        ApkIndex index = ApkIndex.of(apk);
+        try (FileChannel src = FileChannel.open(apk.toPath(), StandardOpenOption.READ)) {
+            return findMisaligned(src, index, alignment, soFileAlignment);
         }
+    }
 
-        passBytes(file, out, eocdPosition + 0x10 - file.getFilePointer());
-        int shiftedCDOffset = centralDirOffset + shiftAmount;
-
-        out.write(shiftedCDOffset & 0xFF);
-        out.write((shiftedCDOffset >>> 8) & 0xFF);
-        out.write((shiftedCDOffset >>> 16) & 0xFF);
-        out.write((shiftedCDOffset >>> 24) & 0xFF);
-        file.readInt();
+    public static List<String> findMisaligned(FileChannel src, int alignment, int soFileAlignment)
+            throws IOException {
+        return findMisaligned(src, ApkIndex.read(src), alignment, soFileAlignment);
+    }
 
-        passBytes(file, out, file.length() - file.getFilePointer());
+    private static List<String> findMisaligned(FileChannel src, ApkIndex index, int alignment, int soFileAlignment)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        List<String> misaligned = new ArrayList<>();
+        for (int i = 0; i < index.size(); i++) {
+            int entryAlignment = entryAlignment(index.method(i), index.nameEndsWith(i, ".so"), alignment, soFileAlignment);
+            if (entryAlignment == 0) continue;
+
+            long localOffset = index.localHeaderOffset(i);
+            header.clear();
+            readFully(src, header, localOffset + 26);
+            long dataPos = localOffset + LOCAL_HEADER_SIZE + (header.getShort(0) & 0xffff) + (header.getShort(2) & 0xffff);
+            if (dataPos % entryAlignment != 0) {
+                misaligned.add(index.name(i));
+            }
+        }
+        return misaligned;
+    }
 
-        addLog(Log.INFO, "Zip alignment complete");
+    /**
+     * Alignment of the data of an entry, or 0 if it is not aligned. Like zipalign, only
+     * stored entries are padded: compressed data cannot be mapped, so compressed .so files
+     * are left alone too. Shared with {@link ApkRebuilder}, so both write the same layout.
+     */
+    static int entryAlignment(int method, boolean isSharedLib, int alignment, int soFileAlignment) {
+        if (method != ZipEntry.STORED) return 0;
+        return soFileAlignment != 0 && isSharedLib ? soFileAlignment : alignment;
     }
 
-    private static class Alignment {
-        public int alignAmount;
-        public long extraFieldLenOffset;
-        public short extraFieldLenValue;
-        public int extraFieldExtensionOffset;
-
-        public Alignment(int alignAmount, long extraFieldLenOffset, short extraFieldLenValue,
-                         int extraFieldExtensionOffset) {
-            this.alignAmount = alignAmount;
-            this.extraFieldLenOffset = extraFieldLenOffset;
-            this.extraFieldLenValue = extraFieldLenValue;
-            this.extraFieldExtensionOffset = extraFieldExtensionOffset;
+    /**
+     * Rewrites the local header offsets of the central directory. Entries whose offset no
+     * longer fits in 32 bits get it moved into a ZIP64 extra field.
+     */
+    private static ByteBuffer shiftCentralDirectory(ByteBuffer cd, int[] cdPositions, int[] cdLengths,
+                                                    int[] zip64Offsets, long[] shiftedOffsets, int grownEntries)
+            throws IOException {
+        if (grownEntries == 0) {
+            for (int i = 0; i < cdPositions.length; i++) {
+                if (zip64Offsets[i] >= 0) {
+                    cd.putLong(zip64Offsets[i], shiftedOffsets[i]);
+                } else {
+                    cd.putInt(cdPositions[i] + 42, (int) shiftedOffsets[i]);
+                }
+            }
+            cd.position(0);
+            return cd;
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(cd.limit() + grownEntries * 12).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < cdPositions.length; i++) {
+            int start = cdPositions[i];
+            if (zip64Offsets[i] >= 0) {
+                cd.putLong(zip64Offsets[i], shiftedOffsets[i]);
+            } else if (shiftedOffsets[i] < Zip64.MAGIC32) {
+                cd.putInt(start + 42, (int) shiftedOffsets[i]);
+            } else {
+                writeGrownEntry(cd, start, shiftedOffsets[i], out);
+                continue;
+            }
+            out.put(slice(cd, start, cdLengths[i]));
         }
+        out.flip();
+        return out;
     }
 
-    private static class FileOffsetShift {
-        public long eocdhPosition;
-        public int shiftedFileOffset;
+    /**
+     * Writes a central directory entry with its local header offset moved into the ZIP64
+     * extra field, which is created or extended by 8 bytes.
+     */
+    private static void writeGrownEntry(ByteBuffer cd, int start, long offset, ByteBuffer out)
+            throws IOException {
+        int nameLen = cd.getShort(start + 28) & 0xffff;
+        int extraLen = cd.getShort(start + 30) & 0xffff;
+        int commentLen = cd.getShort(start + 32) & 0xffff;
+        int extraStart = start + CENTRAL_HEADER_SIZE + nameLen;
+        if (extraLen + 12 > 0xffff) {
+            throw new IOException("Extra field too long for a ZIP64 offset at central directory " + start);
+        }
 
-        public FileOffsetShift(long eocdhPosition, int shiftedFileOffset) {
-            this.eocdhPosition = eocdhPosition;
-            this.shiftedFileOffset = shiftedFileOffset;
+        int entryStart = out.position();
+        out.put(slice(cd, start, CENTRAL_HEADER_SIZE + nameLen));
+        out.putShort(entryStart + 6, (short) Math.max(cd.getShort(start + 6) & 0xffff, Zip64.VERSION_NEEDED));
+        out.putInt(entryStart + 42, (int) Zip64.MAGIC32);
+
+        int data = Zip64.findExtra(cd, extraStart, extraLen, Zip64.EXTRA_ID);
+        if (data < 0) {
+            out.putShort(entryStart + 30, (short) (extraLen + 12));
+            out.putShort((short) Zip64.EXTRA_ID);
+            out.putShort((short) 8);
+            out.putLong(offset);
+            out.put(slice(cd, extraStart, extraLen));
+        } else {
+            // Sizes come first in the ZIP64 field, the offset follows them
+            int size = Zip64.extraSize(cd, data);
+            out.putShort(entryStart + 30, (short) (extraLen + 8));
+            out.put(slice(cd, extraStart, data - 2 - extraStart));
+            out.putShort((short) (size + 8));
+            out.put(slice(cd, data, size));
+            out.putLong(offset);
+            out.put(slice(cd, data + size, extraStart + extraLen - data - size));
         }
+        out.put(slice(cd, extraStart + extraLen, commentLen));
     }
 
-    private static void passBytes(RandomAccessFile raf, OutputStream out, long len) throws IOException {
-        byte[] buffer = new byte[8162];
+    private static ByteBuffer slice(ByteBuffer buffer, int start, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(start + length).position(start);
+        return slice;
+    }
 
-        long left;
-        for (left = len; left > 8162; left -= 8162) {
-            raf.read(buffer);
-            out.write(buffer);
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int len = channel.read(buffer, position + buffer.position());
+            if (len < 0) throw new IOException("Unexpected end of archive");
         }
+        buffer.flip();
+    }
 
-        if (left != 0) {
-            buffer = new byte[(int) left];
-            raf.read(buffer);
-            out.write(buffer);
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
         }
+    }
 
-        out.flush();
+    private static void transferFully(FileChannel src, long position, long count, WritableByteChannel dst)
+            throws IOException {
+        long done = 0;
+        while (done < count) {
+            long len = src.transferTo(position + done, count - done, dst);
+            if (len <= 0) throw new IOException("Unexpected end of archive");
+            done += len;
+        }
     }
-}
\ No newline at end of file
+}
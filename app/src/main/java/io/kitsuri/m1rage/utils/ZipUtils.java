@@ -1,40 +1,54 @@
 package io.kitsuri.m1rage.utils;
 
 import net.lingala.zip4j.ZipFile;
-import net.lingala.zip4j.model.ZipParameters;
-import net.lingala.zip4j.model.enums.CompressionMethod;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
 
 public class ZipUtils {
 
     public static void zip(File sourceDir, File zipFile) {
-        try (ZipFile zf = new ZipFile(zipFile)) {
-            ZipParameters params = new ZipParameters();
-            for (File f : sourceDir.listFiles()) {
+        zip(sourceDir, zipFile, ApkRebuilder.DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * Zips the content of a directory, compressing files on [parallelism] threads. Entries
+     * are written in directory walk order, so the archive does not depend on thread timing.
+     */
+    public static void zip(File sourceDir, File zipFile, int parallelism) {
+        try {
+            ApkRebuilder archive = new ApkRebuilder().setParallelism(parallelism);
+            for (File f : sortedFiles(sourceDir)) {
                 if (f.isDirectory()) {
-                    if (isStoredFolder(f.getName())) {
-                        params.setCompressionMethod(CompressionMethod.STORE);
-                        zf.addFolder(f, params);
-                        params.setCompressionMethod(CompressionMethod.DEFLATE);
-                    } else {
-                        zf.addFolder(f);
-                    }
+                    addFolder(archive, f, f.getName() + "/", isStoredFolder(f.getName()));
                 } else {
-                    if (isStoredFile(f.getName())) {
-                        params.setCompressionMethod(CompressionMethod.STORE);
-                        zf.addFile(f, params);
-                        params.setCompressionMethod(CompressionMethod.DEFLATE);
-                    } else {
-                        zf.addFile(f);
-                    }
+                    archive.put(f.getName(), f, isStoredFile(f.getName()) ? ZipEntry.STORED : ZipEntry.DEFLATED);
                 }
             }
+            archive.writeTo(zipFile);
         } catch (Exception e) {
             android.util.Log.e("ZipUtils", "Zip failed", e);
         }
     }
 
+    private static void addFolder(ApkRebuilder archive, File dir, String prefix, boolean stored) {
+        for (File f : sortedFiles(dir)) {
+            if (f.isDirectory()) {
+                addFolder(archive, f, prefix + f.getName() + "/", stored);
+            } else {
+                archive.put(prefix + f.getName(), f, stored ? ZipEntry.STORED : ZipEntry.DEFLATED);
+            }
+        }
+    }
+
+    private static File[] sortedFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) return new File[0];
+        Arrays.sort(files);
+        return files;
+    }
+
     private static boolean isStoredFolder(String name) {
         return "assets".equals(name) || "lib".equals(name) || "res".equals(name);
     }
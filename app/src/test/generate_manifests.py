@@ -0,0 +1,119 @@
+"""Writes the binary manifests read by ManifestSummaryTest and AxmlEditorTest.
+
+Usage: python generate_manifests.py [output dir]
+The default output dir is resources/manifests next to this script.
+"""
+import os, struct, sys
+
+ANDROID_NS = 'http://schemas.android.com/apk/res/android'
+IDS = {'name':0x01010003,'label':0x01010001,'debuggable':0x0101000f,'exported':0x01010010,
+       'versionCode':0x0101021b,'versionName':0x0101021c,'minSdkVersion':0x0101020c,
+       'targetSdkVersion':0x01010270,'targetActivity':0x01010202,'authorities':0x01010018,
+       'isFeatureSplit':0x0101055b}
+# element: (tag, [(name, value, mapped)], [children], (id, class, style) attribute names)
+# value: str, int or bool. styles: spans [(tag, first, last)] of the strings 0, 1, ...
+def build(root, utf8, path, styles=()):
+    mapped = []
+    def scan(e):
+        for n, v, m in e[1]:
+            if m and n not in mapped: mapped.append(n)
+        for c in e[2]: scan(c)
+    scan(root)
+    strings = list(mapped)
+    def idx(s):
+        if s in strings[len(mapped):]: return strings.index(s, len(mapped))
+        strings.append(s); return len(strings) - 1
+    idx('android'); idx(ANDROID_NS)
+    body = []
+    def node(t, line, ext): return struct.pack('<HHIII', t, 16, 16 + len(ext), line, 0xffffffff) + ext
+    line = [1]
+    def emit(e):
+        tag, attrs, kids, special = e
+        enc = []
+        attrs = sorted(attrs, key=lambda a: (0, IDS[a[0]]) if a[2] else (1, 0))
+        # id, class and style attribute indices are 1-based, 0 for none
+        positions = [[a[0] for a in attrs].index(n) + 1 if n else 0 for n in special]
+        for n, v, m in attrs:
+            ni = mapped.index(n) if m else idx(n)
+            ns = idx(ANDROID_NS) if m else 0xffffffff
+            if isinstance(v, bool): raw, typ, data = 0xffffffff, 0x12, 0xffffffff if v else 0
+            elif isinstance(v, int): raw, typ, data = 0xffffffff, 0x10, v
+            else: raw = idx(v); typ, data = 3, raw
+            enc.append(struct.pack('<IIIHBBI', ns, ni, raw, 8, 0, typ, data))
+        ext = struct.pack('<IIHHHHHH', 0xffffffff, idx(tag), 20, 20, len(enc), *positions) + b''.join(enc)
+        body.append(node(0x102, line[0], ext)); line[0] += 1
+        for k in kids: emit(k)
+        body.append(node(0x103, line[0], struct.pack('<II', 0xffffffff, idx(tag)))); line[0] += 1
+    emit(root)
+    start_ns = node(0x100, 1, struct.pack('<II', idx('android'), idx(ANDROID_NS)))
+    end_ns = node(0x101, line[0], struct.pack('<II', idx('android'), idx(ANDROID_NS)))
+    def enc(s):
+        if utf8:
+            b = s.encode()
+            def ln(n): return bytes([n]) if n < 0x80 else bytes([0x80 | (n >> 8), n & 0xff])
+            return ln(len(s)) + ln(len(b)) + b + b'\0'
+        return struct.pack('<H', len(s)) + s.encode('utf-16le') + b'\0\0'
+    spans = [b''.join(struct.pack('<III', idx(t), a, b) for t, a, b in st) + b'\xff' * 4 for st in styles]
+    data = [enc(s) for s in strings]
+    offs = []; o = 0
+    for d in data: offs.append(o); o += len(d)
+    sd = b''.join(data); sd += b'\0' * ((4 - len(sd) % 4) % 4)
+    soffs = []; o = 0
+    for sp in spans: soffs.append(o); o += len(sp)
+    styled = b''.join(spans) + b'\xff' * 8 if spans else b''
+    start = 28 + 4 * (len(strings) + len(spans))
+    pool = struct.pack('<HHIIIIII', 1, 28, start + len(sd) + len(styled), len(strings), len(spans),
+                       0x100 if utf8 else 0, start, start + len(sd) if spans else 0) \
+        + b''.join(struct.pack('<I', x) for x in offs + soffs) + sd + styled
+    rmap = struct.pack('<HHI', 0x180, 8, 8 + 4 * len(mapped)) + b''.join(struct.pack('<I', IDS[n]) for n in mapped) if mapped else b''
+    doc = pool + rmap + start_ns + b''.join(body) + end_ns
+    open(path, 'wb').write(struct.pack('<HHI', 3, 8, 8 + len(doc)) + doc)
+
+def E(tag, attrs=(), kids=(), special=(None, None, None)): return (tag, list(attrs), list(kids), special)
+def A(n, v, m=True): return (n, v, m)
+def launcher(): return E('intent-filter', [], [E('action', [A('name', 'android.intent.action.MAIN')]), E('category', [A('name', 'android.intent.category.LAUNCHER')])])
+
+def base():
+    return E('manifest', [A('package', 'com.example.app', False), A('versionCode', 42), A('versionName', '1.2.3')], [
+        E('uses-sdk', [A('minSdkVersion', 24), A('targetSdkVersion', 34)]),
+        E('application', [A('label', 'Example'), A('debuggable', True)], [
+            E('activity', [A('name', '.MainActivity'), A('exported', True)], [launcher()]),
+            E('activity', [A('name', 'SettingsActivity')]),
+            E('activity', [A('name', 'org.other.ExternalActivity')]),
+            E('provider', [A('name', 'com.hxo.loader.HxoLoader'), A('authorities', 'com.example.app.hxo.init')]),
+        ])])
+out = sys.argv[1] if len(sys.argv) > 1 else os.path.join(os.path.dirname(os.path.abspath(__file__)), 'resources', 'manifests')
+build(base(), True, out + '/base_utf8.axml')
+build(base(), False, out + '/base_utf16.axml')
+build(E('manifest', [A('package', 'com.example.alias', False), A('versionCode', 7)], [
+    E('application', [A('label', '@string/app_name')], [
+        E('activity', [A('name', '.RealMainActivity')]),
+        E('activity-alias', [A('name', '.LauncherAlias'), A('targetActivity', '.RealMainActivity')], [launcher()]),
+    ])]), True, out + '/alias_launcher.axml')
+build(E('manifest', [A('package', 'com.example.app', False), A('split', 'config.arm64_v8a', False),
+                     A('configForSplit', 'feature_camera', False), A('isFeatureSplit', False), A('versionCode', 42)], [
+    E('application', [A('hasCode', False, False)])]), True, out + '/split_config.axml')
+build(E('manifest', [A('package', 'com.example.plain', False), A('versionCode', 3, False), A('versionName', '0.3', False)], [
+    E('uses-sdk', [A('minSdkVersion', 21, False)]),
+    E('application', [A('label', 'Plain', False), A('debuggable', False, False)], [
+        E('activity', [A('name', 'com.example.plain.Main', False)], [launcher()]),
+    ])]), False, out + '/unmapped_attrs.axml')
+# No mapped name at all, so the document has no resource map chunk
+build(E('manifest', [A('package', 'com.example.nomap', False), A('versionCode', 9, False)], [
+    E('uses-sdk', [A('minSdkVersion', 23, False)]),
+    E('application', [A('label', 'No map', False)], [
+        E('activity', [A('name', 'com.example.nomap.Main', False)], [
+            E('intent-filter', [], [E('action', [A('name', 'android.intent.action.MAIN', False)]),
+                                    E('category', [A('name', 'android.intent.category.LAUNCHER', False)])])]),
+    ])]), True, out + '/no_resource_map.axml')
+build(E('manifest', [A('package', 'com.example.app', False), A('split', 'feature_camera', False), A('isFeatureSplit', True)], [
+    E('application', [A('hasCode', True, False)], [E('activity', [A('name', '.camera.CameraActivity')])])]), False, out + '/split_feature.axml')
+
+# Styled pool strings and id/class/style attribute indices, as in layouts; a manifest rarely has them
+for utf8, name in ((True, 'styled_utf8.axml'), (False, 'styled_utf16.axml')):
+    build(E('manifest', [A('package', 'com.example.styled', False), A('versionCode', 5)], [
+        E('application', [A('label', 'Styled')], [
+            E('activity', [A('name', '.Main'), A('exported', True), A('id', '@+id/main', False),
+                           A('class', 'Main', False), A('style', '@style/Main', False)], [launcher()],
+              ('id', 'class', 'style')),
+        ])]), utf8, out + '/' + name, styles=[[('b', 0, 3), ('i', 4, 6)], [('u', 1, 2)]])
@@ -0,0 +1,182 @@
+package io.kitsuri.m1rage.utils;
+
+import static io.kitsuri.m1rage.utils.ZipFixtures.data;
+import static io.kitsuri.m1rage.utils.ZipFixtures.deflated;
+import static io.kitsuri.m1rage.utils.ZipFixtures.stored;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+public class ApkIndexTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final ZipFixtures.Entry[] mEntries = {
+            stored("AndroidManifest.xml", data(1, 700)),
+            deflated("classes.dex", data(2, 5000)),
+            stored("resources.arsc", data(3, 1234)),
+            deflated("res/layout/main.xml", data(4, 300)),
+            stored("assets/empty", new byte[0]),
+    };
+
+    @Test
+    public void matchesZipFile() throws IOException {
+        File apk = ZipFixtures.write(temp.newFile("app.apk"), null, mEntries);
+        assertMatchesZipFile(apk);
+    }
+
+    @Test
+    public void skipsEndRecordSignatureInComment() throws IOException {
+        // A fake end record inside the comment must not be taken for the real one
+        String comment = "signed PK\u0005\u0006 by someone, PK\u0005\u0006 again";
+        File apk = ZipFixtures.write(temp.newFile("app.apk"), comment, mEntries);
+        assertMatchesZipFile(apk);
+    }
+
+    @Test
+    public void readsLongestComment() throws IOException {
+        char[] comment = new char[0xffff];
+        Arrays.fill(comment, 'c');
+        File apk = ZipFixtures.write(temp.newFile("app.apk"), new String(comment), mEntries);
+        assertMatchesZipFile(apk);
+    }
+
+    private static void assertMatchesZipFile(File apk) throws IOException {
+        ApkIndex index = ApkIndex.of(apk);
+        assertFalse(index.isZip64());
+        try (ZipFile zip = new ZipFile(apk)) {
+            assertEquals(zip.size(), index.size());
+            List<String> names = new ArrayList<>();
+            int i = 0;
+            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); i++) {
+                ZipEntry entry = e.nextElement();
+                names.add(entry.getName());
+                assertEquals(entry.getName(), index.name(i));
+                assertEquals(i, index.indexOf(entry.getName()));
+                assertEquals(entry.getMethod(), index.method(i));
+                assertEquals(entry.getCrc(), index.crc(i));
+                assertEquals(entry.getCompressedSize(), index.compressedSize(i));
+                assertEquals(entry.getSize(), index.uncompressedSize(i));
+            }
+            assertEquals(names, new ArrayList<>(index.names()));
+        }
+        assertEquals(0, index.localHeaderOffset(0));
+        assertTrue(index.getCentralDirectoryOffset() > index.localHeaderOffset(index.size() - 1));
+        assertTrue(index.getCentralDirectorySize() >= index.size() * ApkIndex.CENTRAL_HEADER_SIZE);
+    }
+
+    @Test
+    public void missingNames() throws IOException {
+        ApkIndex index = ApkIndex.of(ZipFixtures.write(temp.newFile("app.apk"), null, mEntries));
+        assertEquals(-1, index.indexOf("missing.txt"));
+        assertEquals(-1, index.indexOf("classes"));
+        assertEquals(-1, index.indexOf(null));
+        assertFalse(index.contains("res/"));
+        assertFalse(index.names().contains("res/layout"));
+        assertEquals(-1, ApkIndex.EMPTY.indexOf("AndroidManifest.xml"));
+        assertEquals(Collections.emptySet(), ApkIndex.EMPTY.names());
+    }
+
+    @Test
+    public void cachesUntilFileChanges() throws IOException {
+        File apk = ZipFixtures.write(temp.newFile("app.apk"), null, mEntries);
+        ApkIndex first = ApkIndex.of(apk);
+        assertSame(first, ApkIndex.of(apk));
+
+        ZipFixtures.write(apk, null, stored("AndroidManifest.xml", data(5, 10)));
+        ApkIndex second = ApkIndex.of(apk);
+        assertNotSame(first, second);
+        assertEquals(1, second.size());
+
+        // Same length, only the timestamp tells the rewrite apart
+        ZipFixtures.write(apk, null, stored("AndroidManifest.xml", data(6, 10)));
+        assertTrue(apk.setLastModified(apk.lastModified() + 10_000));
+        assertNotSame(second, ApkIndex.of(apk));
+    }
+
+    @Test
+    public void invalidateDropsCachedIndex() throws IOException {
+        File apk = ZipFixtures.write(temp.newFile("app.apk"), null, mEntries);
+        ApkIndex first = ApkIndex.of(apk);
+        ApkIndex.invalidate(apk);
+        ApkIndex second = ApkIndex.of(apk);
+        assertNotSame(first, second);
+        assertSame(second, ApkIndex.of(apk));
+        ApkIndex.invalidate(new File(temp.getRoot(), "never-read.apk"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws IOException {
+        File first = ZipFixtures.write(temp.newFile("first.apk"), null, mEntries);
+        File second = ZipFixtures.write(temp.newFile("second.apk"), null, mEntries);
+        ApkIndex firstIndex = ApkIndex.of(first);
+        ApkIndex secondIndex = ApkIndex.of(second);
+        for (int i = 0; i < 15; i++) {
+            // Touching the first one keeps it, the second one falls out
+            ApkIndex.of(first);
+            ApkIndex.of(ZipFixtures.write(temp.newFile("other" + i + ".apk"), null, mEntries));
+        }
+        assertSame(firstIndex, ApkIndex.of(first));
+        assertNotSame(secondIndex, ApkIndex.of(second));
+    }
+
+    @Test
+    public void recognizesApks() throws IOException {
+        assertTrue(ApkIndex.isApk(ZipFixtures.write(temp.newFile("app.apk"), null, mEntries)));
+        assertFalse(ApkIndex.isApk(ZipFixtures.write(temp.newFile("lib.jar"), null,
+                deflated("META-INF/MANIFEST.MF", data(7, 50)))));
+        File text = temp.newFile("notes.txt");
+        Files.write(text.toPath(), "not a zip".getBytes());
+        assertFalse(ApkIndex.isApk(text));
+        assertFalse(ApkIndex.isApk(temp.newFolder("dir.apk")));
+        assertFalse(ApkIndex.isApk(new File(temp.getRoot(), "missing.apk")));
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        File text = temp.newFile("notes.txt");
+        Files.write(text.toPath(), data(8, 4096));
+        assertNotZip(text);
+        assertNotZip(temp.newFile("empty.apk"));
+
+        // The end record survives but the central directory it points to is cut off
+        File apk = ZipFixtures.write(temp.newFile("app.apk"), null, mEntries);
+        byte[] bytes = Files.readAllBytes(apk.toPath());
+        ApkIndex index = ApkIndex.of(apk);
+        int cut = (int) index.getCentralDirectoryOffset() + 10;
+        byte[] truncated = new byte[bytes.length - 10];
+        System.arraycopy(bytes, 0, truncated, 0, cut);
+        System.arraycopy(bytes, cut + 10, truncated, cut, bytes.length - cut - 10);
+        File corrupt = temp.newFile("corrupt.apk");
+        Files.write(corrupt.toPath(), truncated);
+        assertNotZip(corrupt);
+    }
+
+    private static void assertNotZip(File file) {
+        try {
+            ApkIndex.of(file);
+            fail("Expected IOException for " + file.getName());
+        } catch (IOException expected) {
+            // Not an archive or a damaged one
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package io.kitsuri.m1rage.utils;
+
+import static io.kitsuri.m1rage.utils.ZipFixtures.assertContents;
+import static io.kitsuri.m1rage.utils.ZipFixtures.data;
+import static io.kitsuri.m1rage.utils.ZipFixtures.dataOffset;
+import static io.kitsuri.m1rage.utils.ZipFixtures.deflated;
+import static io.kitsuri.m1rage.utils.ZipFixtures.stored;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Rebuilds without a signer engine; signing while writing is covered by {@link DigestExecutorTest}.
+ */
+public class ApkRebuilderTest {
+
+    private static final int ALIGNMENT = 4;
+    private static final int SO_ALIGNMENT = 4096;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    // Name lengths vary so copied stored entries start misaligned in the source
+    private final ZipFixtures.Entry[] mSource = {
+            stored("AndroidManifest.xml", data(1, 700)),
+            deflated("classes.dex", data(2, 5000)),
+            stored("resources.arsc", data(3, 1234)),
+            stored("res/a.png", data(4, 333)),
+            deflated("res/raw/one.txt", data(5, 100)),
+            stored("res/raw/two.bin", data(6, 101)),
+            stored("lib/arm64-v8a/libfoo.so", data(7, 9000)),
+            deflated("assets/readme.txt", data(8, 400)),
+    };
+
+    private final ZipFixtures.Entry[] mExpected = {
+            stored("AndroidManifest.xml", data(11, 900)),
+            deflated("classes.dex", data(12, 7000)),
+            stored("resources.arsc", data(3, 1234)),
+            stored("res/a.png", data(4, 333)),
+            stored("lib/arm64-v8a/libfoo.so", data(7, 9000)),
+            stored("lib/arm64-v8a/libnew.so", data(13, 5000)),
+            deflated("assets/new.txt", data(14, 600)),
+            stored("assets/new.bin", data(15, 77)),
+    };
+
+    private File rebuild(int parallelism) throws IOException {
+        File source = ZipFixtures.write(temp.newFile(), null, mSource);
+        File output = temp.newFile();
+        new ApkRebuilder(source)
+                .put("AndroidManifest.xml", file(data(11, 900)))
+                .put("classes.dex", file(data(12, 7000)))
+                .remove("assets/readme.txt")
+                .removeDirectory("res/raw")
+                .put("lib/arm64-v8a/libnew.so", file(data(13, 5000)), ZipEntry.STORED)
+                .put("assets/new.txt", file(data(14, 600)))
+                .put("assets/new.bin", file(data(15, 77)), ZipEntry.STORED)
+                .setAlignment(ALIGNMENT, SO_ALIGNMENT)
+                .setParallelism(parallelism)
+                .writeTo(output);
+        return output;
+    }
+
+    @Test
+    public void mixesCopiedReplacedRemovedAndAddedEntries() throws IOException {
+        File output = rebuild(1);
+        assertContents(output, mExpected);
+
+        // Source entries keep their order, added ones follow in the order they were put
+        List<String> names = new ArrayList<>();
+        try (ZipFile zip = new ZipFile(output)) {
+            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                names.add(e.nextElement().getName());
+            }
+        }
+        List<String> expected = new ArrayList<>();
+        for (ZipFixtures.Entry entry : mExpected) expected.add(entry.name);
+        assertEquals(expected, names);
+    }
+
+    @Test
+    public void writesMatchingCrcsAndMethods() throws IOException {
+        File output = rebuild(1);
+        try (ZipFile zip = new ZipFile(output)) {
+            for (ZipFixtures.Entry expected : mExpected) {
+                ZipEntry entry = zip.getEntry(expected.name);
+                CRC32 crc = new CRC32();
+                crc.update(expected.data);
+                assertEquals(expected.name, crc.getValue(), entry.getCrc());
+                assertEquals(expected.name, expected.data.length, entry.getSize());
+                // Replaced entries keep their method, added ones are deflated unless asked otherwise
+                assertEquals(expected.name, expected.stored ? ZipEntry.STORED : ZipEntry.DEFLATED, entry.getMethod());
+            }
+        }
+    }
+
+    @Test
+    public void alignsStoredEntries() throws IOException {
+        File output = rebuild(1);
+        assertTrue(ZipAlign.findMisaligned(output, ALIGNMENT, SO_ALIGNMENT).isEmpty());
+        for (ZipFixtures.Entry entry : mExpected) {
+            if (!entry.stored) continue;
+            int alignment = entry.name.endsWith(".so") ? SO_ALIGNMENT : ALIGNMENT;
+            assertEquals(entry.name, 0, dataOffset(output, entry.name) % alignment);
+        }
+    }
+
+    @Test
+    public void parallelismDoesNotChangeOutput() throws IOException {
+        byte[] serial = Files.readAllBytes(rebuild(1).toPath());
+        for (int parallelism : new int[]{2, 4, 8}) {
+            assertArrayEquals("parallelism " + parallelism, serial, Files.readAllBytes(rebuild(parallelism).toPath()));
+        }
+    }
+
+    @Test
+    public void parallelismDoesNotChangeOutputPastLookahead() throws IOException {
+        // More fresh entries than the workers queue ahead, interleaved with copied ones
+        File source = ZipFixtures.write(temp.newFile(), null, mSource);
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            files.add(file(data(100 + i, 500 + 97 * i)));
+        }
+
+        byte[] serial = null;
+        for (int parallelism : new int[]{1, 3}) {
+            ApkRebuilder rebuilder = new ApkRebuilder(source)
+                    .put("classes.dex", file(data(12, 7000)))
+                    .put("res/a.png", file(data(16, 333)))
+                    .setAlignment(ALIGNMENT, SO_ALIGNMENT)
+                    .setParallelism(parallelism);
+            for (int i = 0; i < files.size(); i++) {
+                rebuilder.put("assets/" + i + ".txt", files.get(i), i % 3 == 0 ? ZipEntry.STORED : ZipEntry.DEFLATED);
+            }
+            File output = temp.newFile();
+            rebuilder.writeTo(output);
+            assertEquals(mSource.length + files.size(), ApkIndex.of(output).size());
+
+            byte[] bytes = Files.readAllBytes(output.toPath());
+            if (serial == null) {
+                serial = bytes;
+            } else {
+                assertArrayEquals(serial, bytes);
+            }
+        }
+    }
+
+    @Test
+    public void countsCopiedAndWrittenEntries() throws IOException {
+        File source = ZipFixtures.write(temp.newFile(), null, mSource);
+        ApkRebuilder rebuilder = new ApkRebuilder(source)
+                .put("classes.dex", file(data(12, 7000)))
+                .remove("assets/readme.txt");
+        assertNull(rebuilder.getStats());
+
+        File output = temp.newFile();
+        rebuilder.writeTo(output);
+        ApkRebuilder.Stats stats = rebuilder.getStats();
+        assertEquals(mSource.length - 2, stats.entriesCopied);
+        assertEquals(1, stats.entriesWritten);
+        assertEquals(output.length(), stats.bytesWritten);
+    }
+
+    @Test
+    public void buildsArchiveWithoutSource() throws IOException {
+        File output = temp.newFile();
+        new ApkRebuilder()
+                .put("AndroidManifest.xml", file(data(1, 700)), ZipEntry.STORED)
+                .put("classes.dex", file(data(2, 5000)))
+                .setAlignment(ALIGNMENT, SO_ALIGNMENT)
+                .writeTo(output);
+
+        assertContents(output, stored("AndroidManifest.xml", data(1, 700)), deflated("classes.dex", data(2, 5000)));
+        assertTrue(ZipAlign.findMisaligned(output, ALIGNMENT, SO_ALIGNMENT).isEmpty());
+    }
+
+    @Test
+    public void replacesOutputInsteadOfWritingThrough() throws IOException {
+        File output = rebuild(1);
+        byte[] previous = Files.readAllBytes(output.toPath());
+        File link = new File(temp.getRoot(), "link.apk");
+        Files.createLink(link.toPath(), output.toPath());
+
+        File source = ZipFixtures.write(temp.newFile(), null, mSource);
+        new ApkRebuilder(source).remove("classes.dex").writeTo(output);
+
+        assertArrayEquals(previous, Files.readAllBytes(link.toPath()));
+        assertFalse(ApkIndex.of(output).contains("classes.dex"));
+    }
+
+    @Test
+    public void readsSourceEntries() throws IOException {
+        File source = ZipFixtures.write(temp.newFile(), null, mSource);
+        ApkRebuilder rebuilder = new ApkRebuilder(source);
+
+        for (ZipFixtures.Entry entry : mSource) {
+            ByteBuffer buffer = rebuilder.readEntry(entry.name);
+            byte[] read = new byte[buffer.remaining()];
+            buffer.get(read);
+            assertArrayEquals(entry.name, entry.data, read);
+
+            File extracted = temp.newFile();
+            assertTrue(rebuilder.extract(entry.name, extracted));
+            assertArrayEquals(entry.name, entry.data, Files.readAllBytes(extracted.toPath()));
+
+            try (InputStream in = rebuilder.openEntry(entry.name)) {
+                assertArrayEquals(entry.name, entry.data, ZipFixtures.readFully(in));
+            }
+        }
+        assertNull(rebuilder.readEntry("missing"));
+        assertNull(rebuilder.openEntry("missing"));
+        assertFalse(rebuilder.extract("missing", temp.newFile()));
+        assertTrue(rebuilder.matches("res/a.png", file(data(4, 333))));
+        assertFalse(rebuilder.matches("res/a.png", file(data(4, 334))));
+        assertFalse(rebuilder.matches("missing", file(data(4, 333))));
+    }
+
+    @Test
+    public void readsEntriesOfStoredNestedApk() throws IOException {
+        // The manifest comes last, after the bulk of the nested APK
+        byte[] nested = Files.readAllBytes(ZipFixtures.write(temp.newFile(), null, mSource[6], mSource[1],
+                mSource[2], mSource[0]).toPath());
+        File bundle = ZipFixtures.write(temp.newFile(), null,
+                deflated("icon.png", data(20, 3000)),
+                stored("splits/base.apk", nested),
+                deflated("splits/config.apk", nested));
+        ApkRebuilder rebuilder = new ApkRebuilder(bundle);
+
+        for (ZipFixtures.Entry entry : new ZipFixtures.Entry[]{mSource[0], mSource[1], mSource[6]}) {
+            ByteBuffer buffer = rebuilder.readNestedEntry("splits/base.apk", entry.name);
+            byte[] read = new byte[buffer.remaining()];
+            buffer.get(read);
+            assertArrayEquals(entry.name, entry.data, read);
+        }
+        assertNull(rebuilder.readNestedEntry("splits/base.apk", "missing"));
+        assertNull(rebuilder.readNestedEntry("missing.apk", "AndroidManifest.xml"));
+        try {
+            rebuilder.readNestedEntry("splits/config.apk", "AndroidManifest.xml");
+            fail();
+        } catch (IOException expected) {
+            // Compressed members have to be extracted first
+        }
+        try {
+            rebuilder.readNestedEntry("icon.png", "AndroidManifest.xml");
+            fail();
+        } catch (IOException expected) {
+            // Not an archive
+        }
+    }
+
+    @Test
+    public void readsEntriesOfStoredNestedZip64Apk() throws IOException {
+        byte[] nested = Files.readAllBytes(ZipFixtures.writeZip64(temp.newFile(), mSource[2], mSource[0]).toPath());
+        File bundle = ZipFixtures.write(temp.newFile(), null,
+                deflated("icon.png", data(20, 3000)),
+                stored("base.apk", nested));
+
+        ByteBuffer buffer = new ApkRebuilder(bundle).readNestedEntry("base.apk", "AndroidManifest.xml");
+        byte[] read = new byte[buffer.remaining()];
+        buffer.get(read);
+        assertArrayEquals(mSource[0].data, read);
+    }
+
+    @Test
+    public void rebuildsStoredNestedApkInPlace() throws IOException {
+        byte[] nested = Files.readAllBytes(ZipFixtures.write(temp.newFile(), null, mSource).toPath());
+        File bundle = ZipFixtures.write(temp.newFile(), null,
+                deflated("icon.png", data(20, 3000)),
+                stored("splits/base.apk", nested));
+        ApkRebuilder rebuilder = new ApkRebuilder(bundle).openNested("splits/base.apk");
+
+        assertEquals(mSource.length, rebuilder.getEntryNames().size());
+        File extracted = temp.newFile();
+        assertTrue(rebuilder.extract("classes.dex", extracted));
+        assertArrayEquals(mSource[1].data, Files.readAllBytes(extracted.toPath()));
+
+        File output = temp.newFile();
+        rebuilder.put("AndroidManifest.xml", file(data(11, 900)))
+                .remove("assets/readme.txt")
+                .removeDirectory("res/raw")
+                .setAlignment(ALIGNMENT, SO_ALIGNMENT)
+                .writeTo(output);
+        assertContents(output,
+                stored("AndroidManifest.xml", data(11, 900)),
+                mSource[1], mSource[2], mSource[3], mSource[6]);
+        assertTrue(ZipAlign.findMisaligned(output, ALIGNMENT, SO_ALIGNMENT).isEmpty());
+        assertNull(new ApkRebuilder(bundle).openNested("missing.apk"));
+    }
+
+    private File file(byte[] data) throws IOException {
+        File file = temp.newFile();
+        Files.write(file.toPath(), data);
+        return file;
+    }
+}
@@ -0,0 +1,472 @@
+package io.kitsuri.m1rage.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Edits the binary manifests in {@code resources/manifests} and reads the result back with
+ * {@link ManifestSummary}, and with {@link Document} for what the summary does not keep:
+ * attribute order, the id/class/style indices and the style spans of the pool.
+ */
+public class AxmlEditorTest {
+
+    private static final int ATTR_EXTRACT_NATIVE_LIBS = 0x010104ea;
+    private static final int ATTR_SCREEN_ORIENTATION = 0x0101001e;
+
+    @Test
+    public void insertsMappedAttributeUtf8() throws IOException {
+        assertInsertsMappedAttribute("base_utf8.axml");
+    }
+
+    @Test
+    public void insertsMappedAttributeUtf16() throws IOException {
+        assertInsertsMappedAttribute("base_utf16.axml");
+    }
+
+    private static void assertInsertsMappedAttribute(String name) throws IOException {
+        byte[] original = resource(name);
+        AxmlEditor editor = new AxmlEditor(original);
+        // A new attribute name goes into the resource-mapped head of the pool and shifts
+        // every later string index
+        assertTrue(editor.setBooleanAttribute("application", "extractNativeLibs", false));
+        assertTrue(editor.isModified());
+        byte[] edited = editor.toByteArray();
+
+        assertSameSummary(ManifestSummary.read(ByteBuffer.wrap(original)), ManifestSummary.read(ByteBuffer.wrap(edited)));
+        Document document = new Document(edited);
+        Document.Element application = document.element("application");
+        assertEquals(Integer.valueOf(0), application.data(ATTR_EXTRACT_NATIVE_LIBS));
+        assertEquals(Arrays.asList(0x01010001, 0x0101000f, ATTR_EXTRACT_NATIVE_LIBS), application.ids());
+        assertEquals(document.resourceIds.size(), document.mappedNames().size());
+        assertSorted(document);
+
+        // Same edit again is a no-op, the name is found in the resource map
+        AxmlEditor again = new AxmlEditor(edited);
+        assertFalse(again.setBooleanAttribute("application", "extractNativeLibs", false));
+        assertFalse(again.isModified());
+        assertSame(edited, again.toByteArray());
+    }
+
+    @Test
+    public void changesExistingValues() throws IOException {
+        for (String name : new String[]{"base_utf8.axml", "base_utf16.axml"}) {
+            AxmlEditor editor = new AxmlEditor(resource(name));
+            assertTrue(editor.setIntAttribute("manifest", "versionCode", 43));
+            assertFalse(editor.setIntAttribute("manifest", "versionCode", 43));
+            assertTrue(editor.setStringAttribute("application", "label", "Renamed"));
+            assertTrue(editor.setBooleanAttribute("application", "debuggable", false));
+            assertFalse(editor.setBooleanAttribute("missing", "debuggable", true));
+            assertEquals("Renamed", editor.getAttributeString("application", 0x01010001));
+            assertEquals(Integer.valueOf(43), editor.getAttributeData("manifest", 0x0101021b));
+
+            ManifestSummary summary = ManifestSummary.read(ByteBuffer.wrap(editor.toByteArray()));
+            assertEquals(Integer.valueOf(43), summary.versionCode);
+            assertEquals("1.2.3", summary.versionName);
+            assertEquals("Renamed", summary.applicationLabel);
+            assertEquals(Boolean.FALSE, summary.debuggable);
+            assertEquals("com.example.app.MainActivity", summary.launcherActivity);
+        }
+    }
+
+    @Test
+    public void addsElementUtf8() throws IOException {
+        assertAddsElement("alias_launcher.axml");
+    }
+
+    @Test
+    public void addsElementUtf16() throws IOException {
+        assertAddsElement("split_feature.axml");
+    }
+
+    private static void assertAddsElement(String name) throws IOException {
+        byte[] original = resource(name);
+        AxmlEditor editor = new AxmlEditor(original);
+        // Given out of order, with a mapped name the document does not have yet and one
+        // without a resource ID
+        assertTrue(editor.addElement("application", "provider", Arrays.asList(
+                AxmlEditor.Attribute.bool("exported", false),
+                AxmlEditor.Attribute.string("authorities", "com.example.hxo.init"),
+                AxmlEditor.Attribute.string("tag", 0, "loader"),
+                AxmlEditor.Attribute.string("name", "com.hxo.loader.HxoLoader"),
+                AxmlEditor.Attribute.integer("initOrder", 100)
+        )));
+        assertFalse(editor.addElement("missing", "meta-data", Collections.emptyList()));
+        byte[] edited = editor.toByteArray();
+
+        ManifestSummary before = ManifestSummary.read(ByteBuffer.wrap(original));
+        ManifestSummary after = ManifestSummary.read(ByteBuffer.wrap(edited));
+        assertFalse(before.hasLoaderProvider);
+        assertTrue(after.hasLoaderProvider);
+        assertEquals(before.packageName, after.packageName);
+        assertEquals(before.activities, after.activities);
+        assertEquals(before.launcherActivity, after.launcherActivity);
+        assertEquals(before.split, after.split);
+
+        Document document = new Document(edited);
+        Document.Element provider = document.element("provider");
+        assertEquals(Arrays.asList(0x01010003, 0x01010010, 0x01010018, 0x0101001a, 0), provider.ids());
+        assertEquals("com.example.hxo.init", provider.string(0x01010018));
+        assertEquals(Integer.valueOf(100), provider.data(0x0101001a));
+        assertEquals("loader", provider.strings.get(4));
+        assertEquals("tag", provider.names.get(4));
+        assertEquals("application", document.parentOf(provider));
+        assertSorted(document);
+    }
+
+    @Test
+    public void insertsAttributesInResourceIdOrder() throws IOException {
+        for (String name : new String[]{"styled_utf8.axml", "styled_utf16.axml"}) {
+            AxmlEditor editor = new AxmlEditor(resource(name));
+            // Before every attribute, in the middle, and after the mapped ones but before
+            // the attributes without an ID
+            assertTrue(editor.setStringAttribute("activity", "label", "Main"));
+            assertTrue(editor.setIntAttribute("activity", "screenOrientation", 1));
+            Document.Element activity = new Document(editor.toByteArray()).element("activity");
+            assertEquals(Arrays.asList(0x01010001, 0x01010003, 0x01010010, ATTR_SCREEN_ORIENTATION, 0, 0, 0),
+                    activity.ids());
+            assertEquals(Arrays.asList("label", "name", "exported", "screenOrientation", "id", "class", "style"),
+                    activity.names);
+        }
+    }
+
+    @Test
+    public void movesIdClassAndStyleIndices() throws IOException {
+        for (String name : new String[]{"styled_utf8.axml", "styled_utf16.axml"}) {
+            Document.Element before = new Document(resource(name)).element("activity");
+            assertEquals(Arrays.asList("id", "class", "style"), before.special());
+
+            AxmlEditor editor = new AxmlEditor(resource(name));
+            assertTrue(editor.setStringAttribute("activity", "label", "Main"));
+            assertTrue(editor.setIntAttribute("activity", "screenOrientation", 1));
+            Document.Element after = new Document(editor.toByteArray()).element("activity");
+            assertEquals(Arrays.asList("id", "class", "style"), after.special());
+            assertEquals("@+id/main", after.strings.get(after.names.indexOf("id")));
+            assertEquals("@style/Main", after.strings.get(after.names.indexOf("style")));
+        }
+    }
+
+    @Test
+    public void movesStyleSpanNames() throws IOException {
+        for (String name : new String[]{"styled_utf8.axml", "styled_utf16.axml"}) {
+            byte[] original = resource(name);
+            Document before = new Document(original);
+            assertEquals(Arrays.asList(Arrays.asList("b", "i"), Collections.singletonList("u")), before.styleTags());
+
+            AxmlEditor editor = new AxmlEditor(original);
+            assertTrue(editor.setBooleanAttribute("application", "debuggable", true));
+            assertTrue(editor.addElement("application", "meta-data", Arrays.asList(
+                    AxmlEditor.Attribute.string("name", "loader"),
+                    AxmlEditor.Attribute.string("value", "hxo"))));
+            byte[] edited = editor.toByteArray();
+
+            Document after = new Document(edited);
+            assertEquals(before.styleTags(), after.styleTags());
+            // Styles belong to the strings with the same index, which stay in place
+            assertEquals(before.strings.subList(0, 2), after.strings.subList(0, 2));
+            assertEquals(before.styleRanges(), after.styleRanges());
+
+            ManifestSummary summary = ManifestSummary.read(ByteBuffer.wrap(edited));
+            assertEquals("com.example.styled", summary.packageName);
+            assertEquals(Integer.valueOf(5), summary.versionCode);
+            assertEquals("Styled", summary.applicationLabel);
+            assertEquals(Boolean.TRUE, summary.debuggable);
+            assertEquals("com.example.styled.Main", summary.launcherActivity);
+            assertSorted(after);
+        }
+    }
+
+    @Test
+    public void keepsUnmappedNamesAfterMappedOnes() throws IOException {
+        // Only the launcher intent filter has mapped names, the rest are matched by name
+        AxmlEditor editor = new AxmlEditor(resource("unmapped_attrs.axml"));
+        assertTrue(editor.setBooleanAttribute("application", "extractNativeLibs", false));
+        Document document = new Document(editor.toByteArray());
+        assertEquals(Arrays.asList(0x01010003, ATTR_EXTRACT_NATIVE_LIBS), document.resourceIds);
+        assertEquals(Arrays.asList("name", "extractNativeLibs"), document.mappedNames());
+        Document.Element application = document.element("application");
+        assertEquals(Arrays.asList("extractNativeLibs", "label", "debuggable"), application.names);
+        assertEquals(Arrays.asList(ATTR_EXTRACT_NATIVE_LIBS, 0, 0), application.ids());
+
+        ManifestSummary summary = ManifestSummary.read(ByteBuffer.wrap(editor.toByteArray()));
+        assertEquals("com.example.plain", summary.packageName);
+        assertEquals("Plain", summary.applicationLabel);
+        assertEquals("com.example.plain.Main", summary.launcherActivity);
+    }
+
+    @Test
+    public void addsResourceMapBeforeEditedElement() throws IOException {
+        // The first mapped name adds a resource map chunk, every element index after it moves
+        AxmlEditor editor = new AxmlEditor(resource("no_resource_map.axml"));
+        assertTrue(editor.setBooleanAttribute("application", "extractNativeLibs", false));
+        Document document = new Document(editor.toByteArray());
+        assertEquals(Collections.singletonList(ATTR_EXTRACT_NATIVE_LIBS), document.resourceIds);
+        assertEquals(Arrays.asList("extractNativeLibs", "label"), document.element("application").names);
+        assertEquals(Collections.singletonList("minSdkVersion"), document.element("uses-sdk").names);
+
+        ManifestSummary summary = ManifestSummary.read(ByteBuffer.wrap(editor.toByteArray()));
+        assertEquals("com.example.nomap", summary.packageName);
+        assertEquals(23, summary.minSdkVersion);
+        assertEquals("No map", summary.applicationLabel);
+        assertEquals("com.example.nomap.Main", summary.launcherActivity);
+    }
+
+    @Test
+    public void findsStringAttributeValues() throws IOException {
+        AxmlEditor editor = new AxmlEditor(resource("base_utf16.axml"));
+        assertTrue(editor.hasAttributeValue("name", "com.hxo.loader.HxoLoader"));
+        assertTrue(editor.hasAttributeValue("authorities", "com.example.app.hxo.init"));
+        assertFalse(editor.hasAttributeValue("name", "com.example.app.Missing"));
+        assertNull(editor.getAttributeString("manifest", 0x0101021b));
+        assertNull(editor.getAttributeData("application", 0x01010001));
+    }
+
+    @Test
+    public void keepsBytesWithoutEdits() throws IOException {
+        byte[] original = resource("base_utf8.axml");
+        AxmlEditor editor = new AxmlEditor(original);
+        assertFalse(editor.setStringAttribute("application", "label", "Example"));
+        assertSame(original, editor.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherDocuments() throws IOException {
+        new AxmlEditor("<manifest/>".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertSameSummary(ManifestSummary expected, ManifestSummary actual) {
+        assertEquals(expected.packageName, actual.packageName);
+        assertEquals(expected.versionCode, actual.versionCode);
+        assertEquals(expected.versionName, actual.versionName);
+        assertEquals(expected.minSdkVersion, actual.minSdkVersion);
+        assertEquals(expected.targetSdkVersion, actual.targetSdkVersion);
+        assertEquals(expected.debuggable, actual.debuggable);
+        assertEquals(expected.applicationLabel, actual.applicationLabel);
+        assertEquals(expected.launcherActivity, actual.launcherActivity);
+        assertEquals(expected.activities, actual.activities);
+        assertEquals(expected.hasLoaderProvider, actual.hasLoaderProvider);
+    }
+
+    /**
+     * Attributes of every element are sorted by resource ID, the ones without an ID last.
+     */
+    private static void assertSorted(Document document) {
+        for (Document.Element element : document.elements) {
+            List<Integer> ids = element.ids();
+            for (int i = 1; i < ids.size(); i++) {
+                int a = ids.get(i - 1);
+                int b = ids.get(i);
+                assertTrue(element.tag + " " + ids, b == 0 || (a != 0 && Integer.compareUnsigned(a, b) < 0));
+            }
+        }
+    }
+
+    private static byte[] resource(String name) {
+        try (InputStream in = AxmlEditorTest.class.getResourceAsStream("/manifests/" + name)) {
+            if (in == null) throw new IllegalStateException("Missing test resource " + name);
+            return ZipFixtures.readFully(in);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Plain reader of a binary XML document, independent of the editor and the summary.
+     */
+    private static final class Document {
+        final List<String> strings = new ArrayList<>();
+        final List<List<Integer>> spans = new ArrayList<>();
+        final List<Integer> resourceIds = new ArrayList<>();
+        final List<Element> elements = new ArrayList<>();
+        private final List<String> mParents = new ArrayList<>();
+
+        static final class Element {
+            final String tag;
+            final List<String> names = new ArrayList<>();
+            final List<Integer> nameIndices = new ArrayList<>();
+            final List<String> strings = new ArrayList<>();
+            final List<Integer> types = new ArrayList<>();
+            final List<Integer> data = new ArrayList<>();
+            final int[] special = new int[3];
+            private final List<Integer> mIds;
+
+            Element(String tag, List<Integer> resourceIds) {
+                this.tag = tag;
+                mIds = resourceIds;
+            }
+
+            List<Integer> ids() {
+                List<Integer> ids = new ArrayList<>();
+                for (int name : nameIndices) ids.add(name < mIds.size() ? mIds.get(name) : 0);
+                return ids;
+            }
+
+            /** Names of the id, class and style attributes, by their 1-based indices */
+            List<String> special() {
+                List<String> names = new ArrayList<>();
+                for (int index : special) names.add(index > 0 ? this.names.get(index - 1) : null);
+                return names;
+            }
+
+            String string(int resourceId) {
+                int i = ids().indexOf(resourceId);
+                return i >= 0 ? strings.get(i) : null;
+            }
+
+            Integer data(int resourceId) {
+                int i = ids().indexOf(resourceId);
+                return i >= 0 && types.get(i) != AxmlEditor.TYPE_STRING ? data.get(i) : null;
+            }
+        }
+
+        Document(byte[] bytes) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals(0x0003, buffer.getShort(0));
+            assertEquals(bytes.length, buffer.getInt(4));
+            List<String> stack = new ArrayList<>();
+            int pos = 8;
+            while (pos < bytes.length) {
+                int type = buffer.getShort(pos) & 0xffff;
+                int size = buffer.getInt(pos + 4);
+                assertTrue("chunk size at " + pos, size >= 8 && pos + size <= bytes.length);
+                if (type == 0x0001) {
+                    readPool(buffer, pos);
+                } else if (type == 0x0180) {
+                    for (int i = pos + 8; i < pos + size; i += 4) resourceIds.add(buffer.getInt(i));
+                } else if (type == 0x0102) {
+                    Element element = readElement(buffer, pos);
+                    elements.add(element);
+                    mParents.add(stack.isEmpty() ? null : stack.get(stack.size() - 1));
+                    stack.add(element.tag);
+                } else if (type == 0x0103) {
+                    String tag = strings.get(buffer.getInt(pos + 20));
+                    assertEquals(stack.remove(stack.size() - 1), tag);
+                }
+                pos += size;
+            }
+            assertEquals(bytes.length, pos);
+            assertTrue(stack.isEmpty());
+        }
+
+        Element element(String tag) {
+            for (Element element : elements) {
+                if (element.tag.equals(tag)) return element;
+            }
+            throw new AssertionError("No " + tag + " element");
+        }
+
+        String parentOf(Element element) {
+            return mParents.get(elements.indexOf(element));
+        }
+
+        List<String> mappedNames() {
+            return strings.subList(0, resourceIds.size());
+        }
+
+        List<List<String>> styleTags() {
+            List<List<String>> tags = new ArrayList<>();
+            for (List<Integer> style : spans) {
+                List<String> names = new ArrayList<>();
+                for (int i = 0; i < style.size(); i += 3) names.add(strings.get(style.get(i)));
+                tags.add(names);
+            }
+            return tags;
+        }
+
+        List<List<Integer>> styleRanges() {
+            List<List<Integer>> ranges = new ArrayList<>();
+            for (List<Integer> style : spans) {
+                List<Integer> chars = new ArrayList<>();
+                for (int i = 0; i < style.size(); i += 3) chars.addAll(style.subList(i + 1, i + 3));
+                ranges.add(chars);
+            }
+            return ranges;
+        }
+
+        private Element readElement(ByteBuffer buffer, int pos) {
+            int ext = pos + (buffer.getShort(pos + 2) & 0xffff);
+            Element element = new Element(strings.get(buffer.getInt(ext + 4)), resourceIds);
+            int start = ext + (buffer.getShort(ext + 8) & 0xffff);
+            int size = buffer.getShort(ext + 10) & 0xffff;
+            int count = buffer.getShort(ext + 12) & 0xffff;
+            for (int i = 0; i < 3; i++) element.special[i] = buffer.getShort(ext + 14 + i * 2) & 0xffff;
+            for (int i = 0; i < count; i++) {
+                int attr = start + i * size;
+                int name = buffer.getInt(attr + 4);
+                int type = buffer.get(attr + 15) & 0xff;
+                int data = buffer.getInt(attr + 16);
+                element.nameIndices.add(name);
+                element.names.add(strings.get(name));
+                element.types.add(type);
+                element.data.add(data);
+                element.strings.add(type == AxmlEditor.TYPE_STRING ? strings.get(data) : null);
+            }
+            return element;
+        }
+
+        private void readPool(ByteBuffer buffer, int pos) {
+            int headerSize = buffer.getShort(pos + 2) & 0xffff;
+            int size = buffer.getInt(pos + 4);
+            int count = buffer.getInt(pos + 8);
+            int styleCount = buffer.getInt(pos + 12);
+            boolean utf8 = (buffer.getInt(pos + 16) & 0x100) != 0;
+            int stringsStart = pos + buffer.getInt(pos + 20);
+            int stylesStart = pos + buffer.getInt(pos + 24);
+            for (int i = 0; i < count; i++) {
+                int at = stringsStart + buffer.getInt(pos + headerSize + i * 4);
+                strings.add(utf8 ? utf8(buffer, at) : utf16(buffer, at));
+            }
+            for (int i = 0; i < styleCount; i++) {
+                List<Integer> style = new ArrayList<>();
+                int at = stylesStart + buffer.getInt(pos + headerSize + (count + i) * 4);
+                for (; buffer.getInt(at) != -1; at += 12) {
+                    style.add(buffer.getInt(at));
+                    style.add(buffer.getInt(at + 4));
+                    style.add(buffer.getInt(at + 8));
+                }
+                assertTrue(at < pos + size);
+                spans.add(style);
+            }
+        }
+
+        private static String utf8(ByteBuffer buffer, int at) {
+            at += (buffer.get(at) & 0x80) != 0 ? 2 : 1;
+            int length = buffer.get(at) & 0xff;
+            if ((length & 0x80) != 0) {
+                length = ((length & 0x7f) << 8) | (buffer.get(at + 1) & 0xff);
+                at += 2;
+            } else {
+                at += 1;
+            }
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) bytes[i] = buffer.get(at + i);
+            assertEquals(0, buffer.get(at + length));
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private static String utf16(ByteBuffer buffer, int at) {
+            int length = buffer.getShort(at) & 0xffff;
+            char[] chars = new char[length];
+            for (int i = 0; i < length; i++) chars[i] = buffer.getChar(at + 2 + i * 2);
+            assertEquals(0, buffer.getShort(at + 2 + length * 2));
+            return new String(chars);
+        }
+    }
+}
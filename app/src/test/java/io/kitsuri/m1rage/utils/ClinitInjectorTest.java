@@ -0,0 +1,331 @@
+package io.kitsuri.m1rage.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Field;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.TryBlock;
+import org.jf.dexlib2.iface.instruction.FiveRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.OneRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.instruction.TwoRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.WideLiteralInstruction;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableExceptionHandler;
+import org.jf.dexlib2.immutable.ImmutableField;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+import org.jf.dexlib2.immutable.ImmutableMethodParameter;
+import org.jf.dexlib2.immutable.ImmutableTryBlock;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction10x;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction11n;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction11x;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction12x;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction21c;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction35c;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
+import org.jf.dexlib2.util.ReferenceUtil;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Round trips a dex built with dexlib2 through the injector and compares the classes it
+ * reads back, instruction by instruction.
+ */
+public class ClinitInjectorTest {
+
+    private static final String LIBRARY = "hxo";
+    private static final String PLAIN = "Lcom/example/Plain;";
+    private static final String INITIALIZED = "Lcom/example/Initialized;";
+    private static final String OTHER = "Lcom/example/Other;";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void addsInitializerToClassWithoutOne() throws IOException {
+        byte[] dex = buildDex();
+        File output = temp.newFile("classes.dex");
+        assertEquals(ClinitInjector.Result.PATCHED, new ClinitInjector("com.example.Plain", LIBRARY).patch(dex, output));
+
+        DexBackedDexFile patched = read(output);
+        assertNull(method(classOf(read(dex), PLAIN), "<clinit>"));
+        Method clinit = method(classOf(patched, PLAIN), "<clinit>");
+        assertNotNull(clinit);
+        assertEquals(AccessFlags.STATIC.getValue() | AccessFlags.CONSTRUCTOR.getValue(), clinit.getAccessFlags());
+        List<String> code = describe(clinit.getImplementation());
+        assertLoadsLibraryFirst(code);
+        assertEquals(Collections.singletonList("return-void"), code.subList(2, code.size()));
+        assertEquals(1, clinit.getImplementation().getRegisterCount());
+
+        assertOthersUnchanged(read(dex), patched, PLAIN);
+        // The other methods of the patched class are kept as well
+        assertEquals(describe(method(classOf(read(dex), PLAIN), "value").getImplementation()),
+                describe(method(classOf(patched, PLAIN), "value").getImplementation()));
+    }
+
+    @Test
+    public void prependsToExistingInitializer() throws IOException {
+        byte[] dex = buildDex();
+        File output = temp.newFile("classes.dex");
+        assertEquals(ClinitInjector.Result.PATCHED,
+                new ClinitInjector("com.example.Initialized", LIBRARY).patch(dex, output));
+
+        MethodImplementation before = method(classOf(read(dex), INITIALIZED), "<clinit>").getImplementation();
+        MethodImplementation after = method(classOf(read(output), INITIALIZED), "<clinit>").getImplementation();
+        List<String> code = describe(after);
+        assertLoadsLibraryFirst(code);
+        // The original body follows unchanged, still using v0 and v1 after the call
+        assertEquals(describe(before), code.subList(2, code.size()));
+        assertEquals(before.getRegisterCount(), after.getRegisterCount());
+
+        // The try block still covers the same instructions, moved past the inserted ones
+        List<? extends TryBlock<?>> tries = new ArrayList<>(after.getTryBlocks());
+        assertEquals(1, tries.size());
+        TryBlock<?> tryBlock = tries.get(0);
+        TryBlock<?> original = before.getTryBlocks().get(0);
+        int inserted = 2 + 3; // const-string and invoke-static, in code units
+        assertEquals(original.getStartCodeAddress() + inserted, tryBlock.getStartCodeAddress());
+        assertEquals(original.getCodeUnitCount(), tryBlock.getCodeUnitCount());
+        assertEquals(original.getExceptionHandlers().get(0).getHandlerCodeAddress() + inserted,
+                tryBlock.getExceptionHandlers().get(0).getHandlerCodeAddress());
+
+        assertOthersUnchanged(read(dex), read(output), INITIALIZED);
+        assertEquals(describe(classOf(read(dex), INITIALIZED).getFields()),
+                describe(classOf(read(output), INITIALIZED).getFields()));
+    }
+
+    @Test
+    public void leavesPatchedClassAlone() throws IOException {
+        File once = temp.newFile("once.dex");
+        new ClinitInjector("com.example.Initialized", LIBRARY).patch(buildDex(), once);
+        File twice = temp.newFile("twice.dex");
+        Files.delete(twice.toPath());
+
+        assertEquals(ClinitInjector.Result.ALREADY_PATCHED,
+                new ClinitInjector("com.example.Initialized", LIBRARY).patch(Files.readAllBytes(once.toPath()), twice));
+        assertFalse(twice.exists());
+        // Another library still gets its own call
+        assertEquals(ClinitInjector.Result.PATCHED,
+                new ClinitInjector("com.example.Initialized", "other").patch(Files.readAllBytes(once.toPath()), twice));
+    }
+
+    @Test
+    public void reportsMissingClass() throws IOException {
+        File output = temp.newFile("classes.dex");
+        Files.delete(output.toPath());
+        assertEquals(ClinitInjector.Result.NOT_FOUND,
+                new ClinitInjector("com.example.Missing", LIBRARY).patch(buildDex(), output));
+        assertFalse(output.exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsInvalidDex() throws IOException {
+        new ClinitInjector("com.example.Plain", LIBRARY).patch(new byte[]{'d', 'e', 'x'}, temp.newFile());
+    }
+
+    private static void assertLoadsLibraryFirst(List<String> code) {
+        assertEquals("const-string v0 \"" + LIBRARY + "\"", code.get(0));
+        assertEquals("invoke-static {v0} Ljava/lang/System;->loadLibrary(Ljava/lang/String;)V", code.get(1));
+    }
+
+    /**
+     * Every class but [patched] reads back with the same members and code.
+     */
+    private static void assertOthersUnchanged(DexBackedDexFile before, DexBackedDexFile after, String patched) {
+        Map<String, List<String>> expected = describeClasses(before);
+        Map<String, List<String>> actual = describeClasses(after);
+        assertEquals(expected.keySet(), actual.keySet());
+        for (String type : expected.keySet()) {
+            if (!type.equals(patched)) assertEquals(type, expected.get(type), actual.get(type));
+        }
+    }
+
+    // Input dex
+
+    private static byte[] buildDex() throws IOException {
+        DexPool pool = new DexPool(Opcodes.getDefault());
+        pool.internClass(plainClass());
+        pool.internClass(initializedClass());
+        pool.internClass(otherClass());
+        MemoryDataStore store = new MemoryDataStore();
+        pool.writeTo(store);
+        return Arrays.copyOf(store.getBuffer(), store.getSize());
+    }
+
+    private static ClassDef plainClass() {
+        return new ImmutableClassDef(PLAIN, AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;", null, "Plain.java",
+                null, null, Collections.singletonList(
+                method(PLAIN, "value", "I", AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(), 1,
+                        new ImmutableInstruction11n(Opcode.CONST_4, 0, 7),
+                        new ImmutableInstruction11x(Opcode.RETURN, 0))));
+    }
+
+    /**
+     * A class whose initializer uses v0 and v1 and has a try block.
+     */
+    private static ClassDef initializedClass() {
+        ImmutableFieldReference count = new ImmutableFieldReference(INITIALIZED, "count", "I");
+        ImmutableFieldReference label = new ImmutableFieldReference(INITIALIZED, "label", "Ljava/lang/String;");
+        int flags = AccessFlags.STATIC.getValue() | AccessFlags.CONSTRUCTOR.getValue();
+        List<ImmutableInstruction> code = Arrays.asList(
+                new ImmutableInstruction11n(Opcode.CONST_4, 0, 3),
+                new ImmutableInstruction21c(Opcode.SPUT, 0, count),
+                new ImmutableInstruction21c(Opcode.CONST_STRING, 1, new ImmutableStringReference("ready")),
+                new ImmutableInstruction35c(Opcode.INVOKE_STATIC, 1, 1, 0, 0, 0, 0,
+                        new ImmutableMethodReference(OTHER, "check", Collections.singletonList("Ljava/lang/String;"), "V")),
+                new ImmutableInstruction21c(Opcode.SPUT_OBJECT, 1, label),
+                new ImmutableInstruction10x(Opcode.RETURN_VOID),
+                new ImmutableInstruction11n(Opcode.CONST_4, 0, 0),
+                new ImmutableInstruction21c(Opcode.SPUT, 0, count),
+                new ImmutableInstruction10x(Opcode.RETURN_VOID));
+        // Covers the invoke, handled by the last three instructions
+        ImmutableTryBlock tryBlock = new ImmutableTryBlock(1 + 2 + 2, 3, Collections.singletonList(
+                new ImmutableExceptionHandler(null, 1 + 2 + 2 + 3 + 2 + 1)));
+        ImmutableMethod clinit = new ImmutableMethod(INITIALIZED, "<clinit>", Collections.<ImmutableMethodParameter>emptyList(),
+                "V", flags, null, null,
+                new ImmutableMethodImplementation(2, code, Collections.singletonList(tryBlock), null));
+        List<Field> fields = Arrays.asList(
+                new ImmutableField(INITIALIZED, "count", "I", AccessFlags.STATIC.getValue(), null, null, null),
+                new ImmutableField(INITIALIZED, "label", "Ljava/lang/String;", AccessFlags.STATIC.getValue(), null, null, null));
+        return new ImmutableClassDef(INITIALIZED, AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;", null, null,
+                null, fields, Collections.singletonList(clinit));
+    }
+
+    private static ClassDef otherClass() {
+        int flags = AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue();
+        return new ImmutableClassDef(OTHER, AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;", null, null,
+                null, null, Arrays.asList(
+                new ImmutableMethod(OTHER, "check", Collections.singletonList(
+                        new ImmutableMethodParameter("Ljava/lang/String;", null, null)), "V", flags, null, null,
+                        new ImmutableMethodImplementation(1, Collections.singletonList(
+                                new ImmutableInstruction10x(Opcode.RETURN_VOID)), null, null)),
+                method(OTHER, "swap", "I", flags, 2,
+                        new ImmutableInstruction11n(Opcode.CONST_4, 0, 1),
+                        new ImmutableInstruction12x(Opcode.MOVE, 1, 0),
+                        new ImmutableInstruction11x(Opcode.RETURN, 1))));
+    }
+
+    private static ImmutableMethod method(String type, String name, String returnType, int flags, int registers,
+                                          ImmutableInstruction... code) {
+        return new ImmutableMethod(type, name, Collections.<ImmutableMethodParameter>emptyList(), returnType, flags,
+                null, null, new ImmutableMethodImplementation(registers, Arrays.asList(code), null, null));
+    }
+
+    // Reading back
+
+    private static DexBackedDexFile read(byte[] dex) {
+        return new DexBackedDexFile(Opcodes.getDefault(), dex);
+    }
+
+    private static DexBackedDexFile read(File dex) throws IOException {
+        return read(Files.readAllBytes(dex.toPath()));
+    }
+
+    private static ClassDef classOf(DexBackedDexFile dex, String type) {
+        for (ClassDef classDef : dex.getClasses()) {
+            if (classDef.getType().equals(type)) return classDef;
+        }
+        throw new AssertionError("No class " + type);
+    }
+
+    private static Method method(ClassDef classDef, String name) {
+        for (Method method : classDef.getMethods()) {
+            if (method.getName().equals(name)) return method;
+        }
+        return null;
+    }
+
+    private static Map<String, List<String>> describeClasses(DexBackedDexFile dex) {
+        Map<String, List<String>> classes = new TreeMap<>();
+        for (ClassDef classDef : dex.getClasses()) {
+            List<String> lines = new ArrayList<>();
+            lines.add(classDef.getAccessFlags() + " " + classDef.getSuperclass() + " " + classDef.getSourceFile());
+            lines.addAll(describe(classDef.getFields()));
+            for (Method method : classDef.getMethods()) {
+                lines.add(ReferenceUtil.getMethodDescriptor(method) + " " + method.getAccessFlags());
+                if (method.getImplementation() != null) {
+                    lines.add("registers " + method.getImplementation().getRegisterCount());
+                    lines.addAll(describe(method.getImplementation()));
+                    for (TryBlock<?> tryBlock : method.getImplementation().getTryBlocks()) {
+                        lines.add("try " + tryBlock.getStartCodeAddress() + "+" + tryBlock.getCodeUnitCount()
+                                + " -> " + tryBlock.getExceptionHandlers().get(0).getHandlerCodeAddress());
+                    }
+                }
+            }
+            classes.put(classDef.getType(), lines);
+        }
+        return classes;
+    }
+
+    private static List<String> describe(Iterable<? extends Field> fields) {
+        List<String> lines = new ArrayList<>();
+        for (Field field : fields) {
+            lines.add(ReferenceUtil.getFieldDescriptor(field) + " " + field.getAccessFlags());
+        }
+        return lines;
+    }
+
+    private static List<String> describe(MethodImplementation code) {
+        List<String> lines = new ArrayList<>();
+        for (Instruction instruction : code.getInstructions()) {
+            lines.add(describe(instruction));
+        }
+        return lines;
+    }
+
+    /**
+     * Opcode, registers, literal and reference, e.g. {@code const-string v0 "hxo"}.
+     */
+    private static String describe(Instruction instruction) {
+        StringBuilder line = new StringBuilder(instruction.getOpcode().name);
+        if (instruction instanceof FiveRegisterInstruction) {
+            FiveRegisterInstruction invoke = (FiveRegisterInstruction) instruction;
+            int[] registers = {invoke.getRegisterC(), invoke.getRegisterD(), invoke.getRegisterE(),
+                    invoke.getRegisterF(), invoke.getRegisterG()};
+            line.append(" {");
+            for (int i = 0; i < invoke.getRegisterCount(); i++) {
+                line.append(i > 0 ? ", v" : "v").append(registers[i]);
+            }
+            line.append('}');
+        } else if (instruction instanceof OneRegisterInstruction) {
+            line.append(" v").append(((OneRegisterInstruction) instruction).getRegisterA());
+            if (instruction instanceof TwoRegisterInstruction) {
+                line.append(" v").append(((TwoRegisterInstruction) instruction).getRegisterB());
+            }
+        }
+        if (instruction instanceof WideLiteralInstruction) {
+            line.append(' ').append(((WideLiteralInstruction) instruction).getWideLiteral());
+        }
+        if (instruction instanceof ReferenceInstruction) {
+            line.append(' ').append(ReferenceUtil.getReferenceString(((ReferenceInstruction) instruction).getReference()));
+        }
+        return line.toString();
+    }
+}
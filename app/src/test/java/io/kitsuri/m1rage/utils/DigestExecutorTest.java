@@ -0,0 +1,246 @@
+package io.kitsuri.m1rage.utils;
+
+import static io.kitsuri.m1rage.utils.ZipFixtures.data;
+import static io.kitsuri.m1rage.utils.ZipFixtures.deflated;
+import static io.kitsuri.m1rage.utils.ZipFixtures.stored;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.apksig.ApkVerifier;
+import com.android.apksig.DefaultApkSignerEngine;
+import com.android.apksig.util.RunnablesExecutor;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Signs through apksig with the bundled key, the signature block must not depend on how
+ * many threads computed the chunk digests, nor on whether apksig's own executor computed
+ * them. The scaling measurement only runs with
+ * {@code -Pbenchmark=true}.
+ */
+public class DigestExecutorTest {
+
+    private static final File KEYSTORE = new File("src/main/assets/keystore");
+    private static final int MAX_THREADS = 8;
+    private static final int CHUNK = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void singleThreadUsesSerialExecutor() {
+        assertSame(RunnablesExecutor.SINGLE_THREADED, DigestExecutor.withThreads(1));
+        assertSame(RunnablesExecutor.SINGLE_THREADED, DigestExecutor.withThreads(0));
+    }
+
+    @Test
+    public void runsOneWorkerPerThread() {
+        Thread caller = Thread.currentThread();
+        Set<Thread> threads = Collections.synchronizedSet(new HashSet<>());
+        AtomicInteger created = new AtomicInteger();
+        // Every worker waits for the others, so they can only finish when all run at once
+        CountDownLatch running = new CountDownLatch(4);
+
+        DigestExecutor.withThreads(4).execute(() -> {
+            created.incrementAndGet();
+            return () -> {
+                threads.add(Thread.currentThread());
+                running.countDown();
+                try {
+                    assertTrue(running.await(10, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            };
+        });
+
+        assertEquals(4, created.get());
+        assertEquals(4, threads.size());
+        assertTrue(threads.contains(caller));
+    }
+
+    @Test
+    public void rethrowsWorkerFailureAfterAllWorkersFinish() {
+        AtomicInteger created = new AtomicInteger();
+        AtomicInteger finished = new AtomicInteger();
+        try {
+            DigestExecutor.withThreads(3).execute(() -> {
+                boolean failing = created.incrementAndGet() == 2;
+                return () -> {
+                    if (failing) throw new IllegalStateException("chunk");
+                    finished.incrementAndGet();
+                };
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("chunk", e.getMessage());
+        }
+        assertEquals(2, finished.get());
+    }
+
+    @Test
+    public void signatureIsIdenticalForAnyThreadCount() throws Exception {
+        DefaultApkSignerEngine.SignerConfig signerConfig = signerConfig();
+        File source = apk(6 * CHUNK + 12345);
+
+        byte[] serial = Files.readAllBytes(sign(source, signerConfig, 1).toPath());
+        assertTrue(new ApkVerifier.Builder(writeTemp(serial))
+                .setMinCheckedPlatformVersion(24).build().verify().isVerified());
+
+        for (int threads = 2; threads <= MAX_THREADS; threads++) {
+            byte[] signed = Files.readAllBytes(sign(source, signerConfig, threads).toPath());
+            assertArrayEquals("threads " + threads, serial, signed);
+        }
+        byte[] apksigDefault = Files.readAllBytes(
+                sign(source, signerConfig, DigestExecutor.APKSIG_DEFAULT_THREADS).toPath());
+        assertArrayEquals("apksig default", serial, apksigDefault);
+    }
+
+    @Test
+    public void replacesV4SignatureInsteadOfWritingThrough() throws Exception {
+        DefaultApkSignerEngine.SignerConfig signerConfig = signerConfig();
+        File output = temp.newFile();
+        File v4 = APKSigner.getV4SignatureFile(output);
+        signV4(apk(2 * CHUNK), signerConfig, output, v4);
+        byte[] previous = Files.readAllBytes(v4.toPath());
+        File link = new File(temp.getRoot(), "link.idsig");
+        Files.createLink(link.toPath(), v4.toPath());
+
+        signV4(apk(3 * CHUNK), signerConfig, output, v4);
+
+        assertArrayEquals(previous, Files.readAllBytes(link.toPath()));
+        assertFalse(Arrays.equals(previous, Files.readAllBytes(v4.toPath())));
+    }
+
+    private static void signV4(File source, DefaultApkSignerEngine.SignerConfig signerConfig, File output, File v4)
+            throws Exception {
+        new ApkRebuilder(source)
+                .setSignerEngine(APKSigner.createSignerEngine(signerConfig, SignaturePlan.forMinSdk(24),
+                        DigestExecutor.APKSIG_DEFAULT_THREADS))
+                .setV4SignatureFile(v4)
+                .writeTo(output);
+    }
+
+    /**
+     * Signing time of 100 MB to 2 GB APKs with apksig's default executor and with 1, 2, 4, ...
+     * digest threads, relative to the default.
+     */
+    @Test
+    public void measureDigestScaling() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+
+        DefaultApkSignerEngine.SignerConfig signerConfig = signerConfig();
+        int cpus = Runtime.getRuntime().availableProcessors();
+
+        for (long size : new long[]{100L * CHUNK, 512L * CHUNK, 1024L * CHUNK, 2048L * CHUNK}) {
+            File source = apk(size);
+            long defaultNanos = measure(source, signerConfig, DigestExecutor.APKSIG_DEFAULT_THREADS);
+            report(size, "apksig default", defaultNanos, defaultNanos);
+            for (int threads = 1; threads <= Math.max(cpus, 4); threads *= 2) {
+                report(size, "threads " + threads, measure(source, signerConfig, threads), defaultNanos);
+            }
+            source.delete();
+        }
+    }
+
+    /**
+     * Best of three signing runs of [source], after one warm-up run for the JIT and the page cache.
+     */
+    private long measure(File source, DefaultApkSignerEngine.SignerConfig signerConfig, int threads) throws Exception {
+        sign(source, signerConfig, threads).delete();
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 3; run++) {
+            long start = System.nanoTime();
+            File output = sign(source, signerConfig, threads);
+            best = Math.min(best, System.nanoTime() - start);
+            output.delete();
+        }
+        return best;
+    }
+
+    private static void report(long size, String label, long nanos, long defaultNanos) {
+        System.out.printf("%d MB, %s: %d ms, %.0f MB/s, %.2fx of default%n", size / CHUNK, label,
+                nanos / 1_000_000, size / (nanos / 1e9) / CHUNK, (double) defaultNanos / nanos);
+    }
+
+    private File sign(File source, DefaultApkSignerEngine.SignerConfig signerConfig, int threads) throws Exception {
+        File output = temp.newFile();
+        new ApkRebuilder(source)
+                .setSignerEngine(APKSigner.createSignerEngine(signerConfig, SignaturePlan.forMinSdk(24), threads))
+                .writeTo(output);
+        return output;
+    }
+
+    /**
+     * An APK of about [size] bytes, mostly stored random data so the signed file is as large
+     * as the input. The data is written in 64 MB entries so large sizes never sit in memory.
+     */
+    private File apk(long size) throws IOException {
+        File file = temp.newFile();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+            ZipFixtures.put(out, deflated("AndroidManifest.xml", data(1, 700)));
+            ZipFixtures.put(out, deflated("classes.dex", data(2, 50_000)));
+            Random random = new Random(size);
+            long remaining = size;
+            for (int part = 0; remaining > 0; part++) {
+                byte[] payload = new byte[(int) Math.min(remaining, 64L * CHUNK)];
+                random.nextBytes(payload);
+                ZipFixtures.put(out, stored("assets/payload" + part + ".bin", payload));
+                remaining -= payload.length;
+            }
+        }
+        return file;
+    }
+
+    private File writeTemp(byte[] data) throws IOException {
+        File file = temp.newFile();
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    /**
+     * The bundled signing key. The credentials file is JSON and org.json is only a stub on
+     * the JVM, so the PEM certificate is cut out of the string value directly.
+     */
+    private static DefaultApkSignerEngine.SignerConfig signerConfig() throws Exception {
+        byte[] pk8 = Files.readAllBytes(new File(KEYSTORE, "HXOManager.pk8").toPath());
+        PrivateKey privateKey = KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(pk8));
+
+        String crd = new String(Files.readAllBytes(new File(KEYSTORE, "HXOManager_crd").toPath()), StandardCharsets.UTF_8);
+        int begin = crd.indexOf("-----BEGIN CERTIFICATE-----");
+        int end = crd.indexOf("-----END CERTIFICATE-----") + "-----END CERTIFICATE-----".length();
+        String pem = crd.substring(begin, end).replace("\\n", "\n").replace("\\/", "/");
+        X509Certificate certificate =
+                APKSigner.encodeCertificate(new ByteArrayInputStream(pem.getBytes(StandardCharsets.UTF_8)));
+
+        return new DefaultApkSignerEngine.SignerConfig.Builder("CERT", privateKey,
+                Collections.singletonList(certificate)).build();
+    }
+}
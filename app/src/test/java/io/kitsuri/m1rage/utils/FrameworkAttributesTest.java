@@ -0,0 +1,125 @@
+package io.kitsuri.m1rage.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class FrameworkAttributesTest {
+
+    /** Published values of android.R.attr */
+    private static final Map<String, Integer> EXPECTED = new LinkedHashMap<>();
+
+    static {
+        EXPECTED.put("theme", 0x01010000);
+        EXPECTED.put("label", 0x01010001);
+        EXPECTED.put("icon", 0x01010002);
+        EXPECTED.put("name", 0x01010003);
+        EXPECTED.put("manageSpaceActivity", 0x01010004);
+        EXPECTED.put("allowClearUserData", 0x01010005);
+        EXPECTED.put("permission", 0x01010006);
+        EXPECTED.put("readPermission", 0x01010007);
+        EXPECTED.put("writePermission", 0x01010008);
+        EXPECTED.put("protectionLevel", 0x01010009);
+        EXPECTED.put("permissionGroup", 0x0101000a);
+        EXPECTED.put("sharedUserId", 0x0101000b);
+        EXPECTED.put("hasCode", 0x0101000c);
+        EXPECTED.put("persistent", 0x0101000d);
+        EXPECTED.put("enabled", 0x0101000e);
+        EXPECTED.put("debuggable", 0x0101000f);
+        EXPECTED.put("exported", 0x01010010);
+        EXPECTED.put("process", 0x01010011);
+        EXPECTED.put("taskAffinity", 0x01010012);
+        EXPECTED.put("multiprocess", 0x01010013);
+        EXPECTED.put("finishOnTaskLaunch", 0x01010014);
+        EXPECTED.put("clearTaskOnLaunch", 0x01010015);
+        EXPECTED.put("stateNotNeeded", 0x01010016);
+        EXPECTED.put("excludeFromRecents", 0x01010017);
+        EXPECTED.put("authorities", 0x01010018);
+        EXPECTED.put("syncable", 0x01010019);
+        EXPECTED.put("initOrder", 0x0101001a);
+        EXPECTED.put("grantUriPermissions", 0x0101001b);
+        EXPECTED.put("priority", 0x0101001c);
+        EXPECTED.put("launchMode", 0x0101001d);
+        EXPECTED.put("screenOrientation", 0x0101001e);
+        EXPECTED.put("configChanges", 0x0101001f);
+        EXPECTED.put("description", 0x01010020);
+        EXPECTED.put("targetPackage", 0x01010021);
+        EXPECTED.put("handleProfiling", 0x01010022);
+        EXPECTED.put("functionalTest", 0x01010023);
+        EXPECTED.put("value", 0x01010024);
+        EXPECTED.put("resource", 0x01010025);
+        EXPECTED.put("mimeType", 0x01010026);
+        EXPECTED.put("scheme", 0x01010027);
+        EXPECTED.put("host", 0x01010028);
+        EXPECTED.put("port", 0x01010029);
+        EXPECTED.put("path", 0x0101002a);
+        EXPECTED.put("pathPrefix", 0x0101002b);
+        EXPECTED.put("pathPattern", 0x0101002c);
+        EXPECTED.put("action", 0x0101002d);
+        EXPECTED.put("data", 0x0101002e);
+        EXPECTED.put("targetClass", 0x0101002f);
+        EXPECTED.put("targetActivity", 0x01010202);
+        EXPECTED.put("minSdkVersion", 0x0101020c);
+        EXPECTED.put("versionCode", 0x0101021b);
+        EXPECTED.put("versionName", 0x0101021c);
+        EXPECTED.put("targetSdkVersion", 0x01010270);
+        EXPECTED.put("maxSdkVersion", 0x01010271);
+        EXPECTED.put("testOnly", 0x01010272);
+        EXPECTED.put("backupAgent", 0x0101027f);
+        EXPECTED.put("allowBackup", 0x01010280);
+        EXPECTED.put("installLocation", 0x010102b7);
+        EXPECTED.put("logo", 0x010102be);
+        EXPECTED.put("hardwareAccelerated", 0x010102d3);
+        EXPECTED.put("largeHeap", 0x0101035a);
+        EXPECTED.put("supportsRtl", 0x010103af);
+        EXPECTED.put("banner", 0x010103f2);
+        EXPECTED.put("extractNativeLibs", 0x010104ea);
+        EXPECTED.put("fullBackupContent", 0x010104eb);
+        EXPECTED.put("usesCleartextTraffic", 0x010104ec);
+        EXPECTED.put("resizeableActivity", 0x010104f6);
+        EXPECTED.put("directBootAware", 0x01010505);
+        EXPECTED.put("networkSecurityConfig", 0x01010527);
+        EXPECTED.put("roundIcon", 0x0101052c);
+        EXPECTED.put("isFeatureSplit", 0x0101055b);
+        EXPECTED.put("compileSdkVersion", 0x01010572);
+        EXPECTED.put("compileSdkVersionCodename", 0x01010573);
+        EXPECTED.put("appComponentFactory", 0x0101057a);
+        EXPECTED.put("requestLegacyExternalStorage", 0x01010603);
+    }
+
+    @Test
+    public void everyNameMapsToItsPublishedId() {
+        assertEquals(75, EXPECTED.size());
+        for (Map.Entry<String, Integer> entry : EXPECTED.entrySet()) {
+            assertEquals(entry.getKey(), (long) entry.getValue(), FrameworkAttributes.id(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void noTwoNamesShareAnId() {
+        Set<Integer> ids = new HashSet<>();
+        for (String name : EXPECTED.keySet()) {
+            assertTrue(name, ids.add(FrameworkAttributes.id(name)));
+        }
+        assertEquals(EXPECTED.size(), ids.size());
+    }
+
+    @Test
+    public void unknownNamesReturnZero() {
+        assertEquals(0, FrameworkAttributes.id(""));
+        assertEquals(0, FrameworkAttributes.id("android:name"));
+        assertEquals(0, FrameworkAttributes.id("Name"));
+        assertEquals(0, FrameworkAttributes.id("name "));
+        assertEquals(0, FrameworkAttributes.id("versionCodeMajor"));
+        assertEquals(0, FrameworkAttributes.id("package"));
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(0, FrameworkAttributes.id("unknownAttribute" + i));
+        }
+    }
+}
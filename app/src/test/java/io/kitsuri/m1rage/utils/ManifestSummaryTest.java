@@ -0,0 +1,190 @@
+package io.kitsuri.m1rage.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Reads the binary manifests in {@code resources/manifests}, written by
+ * {@code generate_manifests.py}: {@code base_utf8} and {@code base_utf16} hold the same
+ * document in both string pool encodings.
+ */
+public class ManifestSummaryTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void readsUtf8Pool() throws IOException {
+        assertBaseManifest(read("base_utf8.axml"));
+    }
+
+    @Test
+    public void readsUtf16Pool() throws IOException {
+        assertBaseManifest(read("base_utf16.axml"));
+    }
+
+    private static void assertBaseManifest(ManifestSummary summary) {
+        assertEquals("com.example.app", summary.packageName);
+        assertEquals(Integer.valueOf(42), summary.versionCode);
+        assertEquals("1.2.3", summary.versionName);
+        assertEquals(24, summary.minSdkVersion);
+        assertEquals(34, summary.targetSdkVersion);
+        assertEquals(Boolean.TRUE, summary.debuggable);
+        assertEquals("Example", summary.applicationLabel);
+        assertTrue(summary.hasLoaderProvider);
+        assertNull(summary.split);
+        assertFalse(summary.isFeatureSplit);
+    }
+
+    @Test
+    public void resolvesRelativeActivityNames() throws IOException {
+        ManifestSummary summary = read("base_utf8.axml");
+        assertEquals("com.example.app.MainActivity", summary.launcherActivity);
+        assertEquals(Arrays.asList(
+                "com.example.app.MainActivity",
+                "com.example.app.SettingsActivity",
+                "org.other.ExternalActivity"
+        ), summary.activities);
+        assertEquals(Collections.emptyMap(), summary.activityAliases);
+    }
+
+    @Test
+    public void resolvesAliasLauncherToTarget() throws IOException {
+        ManifestSummary summary = read("alias_launcher.axml");
+        assertEquals("com.example.alias.RealMainActivity", summary.launcherActivity);
+        assertEquals(Collections.singletonList("com.example.alias.RealMainActivity"), summary.activities);
+        assertEquals(Collections.singletonMap("com.example.alias.LauncherAlias", "com.example.alias.RealMainActivity"),
+                summary.activityAliases);
+        assertEquals("com.example.alias.RealMainActivity", summary.targetActivity(".LauncherAlias"));
+        assertEquals("com.example.alias.RealMainActivity", summary.targetActivity("com.example.alias.LauncherAlias"));
+        assertEquals("com.example.alias.Other", summary.targetActivity("Other"));
+        // Resource references are not resolved
+        assertNull(summary.applicationLabel);
+        assertNull(summary.debuggable);
+        assertEquals(SignaturePlan.UNKNOWN_MIN_SDK, summary.minSdkVersion);
+        assertFalse(summary.hasLoaderProvider);
+    }
+
+    @Test
+    public void readsConfigSplit() throws IOException {
+        ManifestSummary summary = read("split_config.axml");
+        assertEquals("com.example.app", summary.packageName);
+        assertEquals("config.arm64_v8a", summary.split);
+        assertEquals("feature_camera", summary.configForSplit);
+        assertFalse(summary.isFeatureSplit);
+        assertEquals(Integer.valueOf(42), summary.versionCode);
+        assertNull(summary.launcherActivity);
+        assertTrue(summary.activities.isEmpty());
+    }
+
+    @Test
+    public void readsFeatureSplit() throws IOException {
+        ManifestSummary summary = read("split_feature.axml");
+        assertEquals("feature_camera", summary.split);
+        assertNull(summary.configForSplit);
+        assertTrue(summary.isFeatureSplit);
+        assertNull(summary.versionCode);
+        assertEquals(Collections.singletonList("com.example.app.camera.CameraActivity"), summary.activities);
+    }
+
+    @Test
+    public void matchesAttributesWithoutResourceIdByName() throws IOException {
+        ManifestSummary summary = read("unmapped_attrs.axml");
+        assertEquals("com.example.plain", summary.packageName);
+        assertEquals(Integer.valueOf(3), summary.versionCode);
+        assertEquals("0.3", summary.versionName);
+        assertEquals(21, summary.minSdkVersion);
+        assertEquals(21, summary.targetSdkVersion);
+        assertEquals(Boolean.FALSE, summary.debuggable);
+        assertEquals("Plain", summary.applicationLabel);
+        assertEquals("com.example.plain.Main", summary.launcherActivity);
+    }
+
+    @Test
+    public void leavesBufferPositionUnchanged() throws IOException {
+        byte[] manifest = resource("base_utf8.axml");
+        ByteBuffer buffer = ByteBuffer.allocate(manifest.length + 3);
+        buffer.position(3);
+        buffer.put(manifest);
+        buffer.position(3);
+
+        assertEquals("com.example.app", ManifestSummary.read(buffer).packageName);
+        assertEquals(3, buffer.position());
+    }
+
+    @Test
+    public void readsFromStream() throws IOException {
+        try (InputStream in = new ByteArrayInputStream(resource("base_utf16.axml"))) {
+            assertBaseManifest(ManifestSummary.read(in));
+        }
+    }
+
+    @Test
+    public void rejectsOtherDocuments() {
+        assertCorrupt("<manifest/>".getBytes());
+        byte[] truncated = Arrays.copyOf(resource("base_utf8.axml"), 200);
+        assertCorrupt(truncated);
+    }
+
+    private static void assertCorrupt(byte[] data) {
+        try {
+            ManifestSummary.read(ByteBuffer.wrap(data));
+            fail("Expected IOException");
+        } catch (IOException expected) {
+            // Corrupt or not a binary manifest
+        }
+    }
+
+    @Test
+    public void cachesPerFileUntilInvalidated() throws IOException {
+        File file = temp.newFile("AndroidManifest.xml");
+        Files.write(file.toPath(), resource("base_utf8.axml"));
+
+        ManifestSummary first = ManifestSummary.of(file);
+        assertSame(first, ManifestSummary.of(file));
+
+        Files.write(file.toPath(), resource("alias_launcher.axml"));
+        ManifestSummary.invalidate(file);
+        ManifestSummary second = ManifestSummary.of(file);
+        assertNotSame(first, second);
+        assertEquals("com.example.alias", second.packageName);
+    }
+
+    private static ManifestSummary read(String name) throws IOException {
+        return ManifestSummary.read(ByteBuffer.wrap(resource(name)));
+    }
+
+    private static byte[] resource(String name) {
+        try (InputStream in = ManifestSummaryTest.class.getResourceAsStream("/manifests/" + name)) {
+            if (in == null) throw new IllegalStateException("Missing test resource " + name);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package io.kitsuri.m1rage.utils;
+
+import static io.kitsuri.m1rage.utils.ZipFixtures.assertContents;
+import static io.kitsuri.m1rage.utils.ZipFixtures.data;
+import static io.kitsuri.m1rage.utils.ZipFixtures.dataOffset;
+import static io.kitsuri.m1rage.utils.ZipFixtures.stored;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Archives whose sizes, offsets or entry count only fit the ZIP64 records. Real archives past
+ * 4 GB are too large for a unit test, so {@link ZipFixtures#writeZip64} stores small entries
+ * with every 32-bit field escaped to its ZIP64 extra.
+ */
+public class Zip64Test {
+
+    private static final int ALIGNMENT = 4;
+    private static final int SO_ALIGNMENT = 4096;
+    /** One past the largest count the classic end record can hold */
+    private static final int MANY_ENTRIES = 0xffff + 1;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final ZipFixtures.Entry[] mEntries = {
+            stored("AndroidManifest.xml", data(1, 700)),
+            stored("classes.dex", data(2, 5001)),
+            stored("lib/arm64-v8a/libfoo.so", data(3, 9000)),
+            stored("assets/empty", new byte[0]),
+    };
+
+    @Test
+    public void fixtureIsReadableByZipFile() throws IOException {
+        assertContents(ZipFixtures.writeZip64(temp.newFile("in.zip"), mEntries), mEntries);
+    }
+
+    @Test
+    public void indexReadsZip64Fields() throws IOException {
+        File input = ZipFixtures.writeZip64(temp.newFile("in.zip"), mEntries);
+        ApkIndex index = ApkIndex.of(input);
+
+        assertTrue(index.isZip64());
+        assertEquals(mEntries.length, index.size());
+        try (ZipFile zip = new ZipFile(input)) {
+            for (int i = 0; i < mEntries.length; i++) {
+                ZipEntry entry = zip.getEntry(mEntries[i].name);
+                assertEquals(mEntries[i].name, index.name(i));
+                assertEquals(ZipEntry.STORED, index.method(i));
+                assertEquals(entry.getCrc(), index.crc(i));
+                assertEquals(mEntries[i].data.length, index.compressedSize(i));
+                assertEquals(mEntries[i].data.length, index.uncompressedSize(i));
+            }
+        }
+        // The first entry sits at the start; the others follow its 20 byte ZIP64 extra and data
+        assertEquals(0, index.localHeaderOffset(0));
+        assertEquals(30 + "AndroidManifest.xml".length() + 20 + 700, index.localHeaderOffset(1));
+    }
+
+    @Test
+    public void alignsZip64Archive() throws IOException {
+        File input = ZipFixtures.writeZip64(temp.newFile("in.zip"), mEntries);
+        File output = temp.newFile("out.zip");
+        ZipAlign.alignZip(input, output, ALIGNMENT, SO_ALIGNMENT);
+
+        assertTrue(ZipAlign.findMisaligned(output, ALIGNMENT, SO_ALIGNMENT).isEmpty());
+        assertEquals(0, dataOffset(output, "lib/arm64-v8a/libfoo.so") % SO_ALIGNMENT);
+        assertContents(output, mEntries);
+        assertTrue(ApkIndex.of(output).isZip64());
+    }
+
+    @Test
+    public void rebuildsZip64Archive() throws IOException {
+        File input = ZipFixtures.writeZip64(temp.newFile("in.zip"), mEntries);
+        File output = temp.newFile("out.zip");
+        new ApkRebuilder(input).setAlignment(ALIGNMENT, SO_ALIGNMENT).writeTo(output);
+
+        assertContents(output, mEntries);
+        assertTrue(ZipAlign.findMisaligned(output, ALIGNMENT, SO_ALIGNMENT).isEmpty());
+    }
+
+    @Test
+    public void entryCountPastClassicLimit() throws IOException {
+        File input = temp.newFile("many.zip");
+        CRC32 crc = new CRC32();
+        byte[] empty = new byte[0];
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(input))) {
+            for (int i = 0; i < MANY_ENTRIES; i++) {
+                ZipEntry entry = new ZipEntry("res/e" + i);
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(0);
+                entry.setCrc(crc.getValue());
+                out.putNextEntry(entry);
+                out.write(empty);
+                out.closeEntry();
+            }
+        }
+
+        ApkIndex index = ApkIndex.of(input);
+        assertTrue(index.isZip64());
+        assertEquals(MANY_ENTRIES, index.size());
+        assertEquals(MANY_ENTRIES - 1, index.indexOf("res/e" + (MANY_ENTRIES - 1)));
+
+        File rebuilt = temp.newFile("rebuilt.zip");
+        new ApkRebuilder(input).remove("res/e0").writeTo(rebuilt);
+        assertTrue(ApkIndex.of(rebuilt).isZip64());
+        assertEquals(MANY_ENTRIES - 1, ApkIndex.of(rebuilt).size());
+        try (ZipFile zip = new ZipFile(rebuilt)) {
+            assertEquals(MANY_ENTRIES - 1, zip.size());
+        }
+
+        File aligned = temp.newFile("aligned.zip");
+        ZipAlign.alignZip(input, aligned, ALIGNMENT, SO_ALIGNMENT);
+        assertTrue(ApkIndex.of(aligned).isZip64());
+        try (ZipFile zip = new ZipFile(aligned)) {
+            assertEquals(MANY_ENTRIES, zip.size());
+        }
+    }
+}
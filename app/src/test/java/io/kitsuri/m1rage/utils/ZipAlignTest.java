@@ -0,0 +1,161 @@
+package io.kitsuri.m1rage.utils;
+
+import static io.kitsuri.m1rage.utils.ZipFixtures.assertContents;
+import static io.kitsuri.m1rage.utils.ZipFixtures.data;
+import static io.kitsuri.m1rage.utils.ZipFixtures.dataOffset;
+import static io.kitsuri.m1rage.utils.ZipFixtures.deflated;
+import static io.kitsuri.m1rage.utils.ZipFixtures.localExtraLength;
+import static io.kitsuri.m1rage.utils.ZipFixtures.stored;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipFile;
+
+public class ZipAlignTest {
+
+    private static final int ALIGNMENT = 4;
+    private static final int SO_ALIGNMENT = 4096;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    // Name lengths vary so the stored entries start misaligned
+    private final ZipFixtures.Entry[] mEntries = {
+            stored("AndroidManifest.xml", data(1, 700)),
+            deflated("classes.dex", data(2, 5000)),
+            stored("resources.arsc", data(3, 1234)),
+            stored("res/a.png", data(4, 333)),
+            stored("lib/arm64-v8a/libfoo.so", data(5, 9000)),
+            deflated("lib/x86_64/libbar.so", data(6, 9000)),
+            deflated("assets/readme.txt", data(7, 100)),
+            stored("assets/empty", new byte[0]),
+    };
+
+    @Test
+    public void alignsStoredEntries() throws IOException {
+        File input = ZipFixtures.write(temp.newFile("in.zip"), "archive comment", mEntries);
+        assertFalse(ZipAlign.findMisaligned(input, ALIGNMENT, SO_ALIGNMENT).isEmpty());
+
+        File output = temp.newFile("out.zip");
+        ZipAlign.alignZip(input, output, ALIGNMENT, SO_ALIGNMENT);
+
+        assertTrue(ZipAlign.findMisaligned(output, ALIGNMENT, SO_ALIGNMENT).isEmpty());
+        for (ZipFixtures.Entry entry : mEntries) {
+            if (!entry.stored) continue;
+            int alignment = entry.name.endsWith(".so") ? SO_ALIGNMENT : ALIGNMENT;
+            assertEquals(entry.name, 0, dataOffset(output, entry.name) % alignment);
+        }
+        assertContents(output, mEntries);
+        try (ZipFile zip = new ZipFile(output)) {
+            assertEquals("archive comment", zip.getComment());
+        }
+    }
+
+    @Test
+    public void leavesCompressedEntriesUnpadded() throws IOException {
+        File input = ZipFixtures.write(temp.newFile("in.zip"), null, mEntries);
+        File output = temp.newFile("out.zip");
+        ZipAlign.alignZip(input, output, ALIGNMENT, SO_ALIGNMENT);
+
+        for (ZipFixtures.Entry entry : mEntries) {
+            if (entry.stored) continue;
+            assertEquals(entry.name, localExtraLength(input, entry.name), localExtraLength(output, entry.name));
+        }
+    }
+
+    @Test
+    public void reportsOnlyStoredEntries() throws IOException {
+        File input = ZipFixtures.write(temp.newFile("in.zip"), null, mEntries);
+        List<String> misaligned = ZipAlign.findMisaligned(input, ALIGNMENT, SO_ALIGNMENT);
+        for (ZipFixtures.Entry entry : mEntries) {
+            if (!entry.stored) assertFalse(entry.name, misaligned.contains(entry.name));
+        }
+    }
+
+    @Test
+    public void realigningAlignedArchiveKeepsBytes() throws IOException {
+        File input = ZipFixtures.write(temp.newFile("in.zip"), null, mEntries);
+        File once = temp.newFile("once.zip");
+        File twice = temp.newFile("twice.zip");
+        ZipAlign.alignZip(input, once, ALIGNMENT, SO_ALIGNMENT);
+        ZipAlign.alignZip(once, twice, ALIGNMENT, SO_ALIGNMENT);
+
+        assertArrayEquals(Files.readAllBytes(once.toPath()), Files.readAllBytes(twice.toPath()));
+    }
+
+    /**
+     * Aligns a 512 MB archive of misaligned stored entries and compares it with a plain copy
+     * of the file, the lower bound for any aligner. Only runs with {@code -Pbenchmark=true}.
+     */
+    @Test
+    public void measureAlignThroughput() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+
+        byte[] chunk = data(1, 1024 * 1024);
+        List<ZipFixtures.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 512; i++) {
+            // Odd name lengths so every entry needs padding
+            entries.add(stored("assets/" + i + (i % 2 == 0 ? "x" : "") + ".bin", chunk));
+        }
+        File input = ZipFixtures.write(temp.newFile("big.zip"), null, entries.toArray(new ZipFixtures.Entry[0]));
+        File output = temp.newFile("big.aligned.zip");
+        double mb = input.length() / (1024.0 * 1024.0);
+
+        long copy = best(() -> {
+            try (FileChannel src = FileChannel.open(input.toPath(), StandardOpenOption.READ);
+                 FileChannel dst = FileChannel.open(output.toPath(), StandardOpenOption.WRITE,
+                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (long position = 0; position < src.size(); ) {
+                    position += src.transferTo(position, src.size() - position, dst);
+                }
+            }
+        });
+        long files = best(() -> ZipAlign.alignZip(input, output, ALIGNMENT, SO_ALIGNMENT));
+        long streams = best(() -> {
+            try (RandomAccessFile in = new RandomAccessFile(input, "r");
+                 FileOutputStream out = new FileOutputStream(output)) {
+                ZipAlign.alignZip(in, out, ALIGNMENT, SO_ALIGNMENT);
+            }
+        });
+        assertTrue(ZipAlign.findMisaligned(output, ALIGNMENT, SO_ALIGNMENT).isEmpty());
+
+        System.out.printf("copy: %d ms, %.0f MB/s%n", copy / 1_000_000, mb / (copy / 1e9));
+        System.out.printf("alignZip(File, File): %d ms, %.0f MB/s%n", files / 1_000_000, mb / (files / 1e9));
+        System.out.printf("alignZip(RandomAccessFile, OutputStream): %d ms, %.0f MB/s%n",
+                streams / 1_000_000, mb / (streams / 1e9));
+    }
+
+    private interface Run {
+        void run() throws IOException;
+    }
+
+    /**
+     * Fastest of three runs after a warm-up run, in nanoseconds.
+     */
+    private static long best(Run run) throws IOException {
+        run.run();
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            run.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+}
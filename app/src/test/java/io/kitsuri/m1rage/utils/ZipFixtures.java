@@ -0,0 +1,226 @@
+package io.kitsuri.m1rage.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Small archives for the zip tests, written with {@link ZipOutputStream}, and checks that go
+ * through {@link ZipFile} so outputs are validated by an independent reader.
+ */
+final class ZipFixtures {
+
+    private ZipFixtures() {
+    }
+
+    /**
+     * Entry of a fixture archive, stored or deflated.
+     */
+    static final class Entry {
+        final String name;
+        final byte[] data;
+        final boolean stored;
+
+        Entry(String name, byte[] data, boolean stored) {
+            this.name = name;
+            this.data = data;
+            this.stored = stored;
+        }
+    }
+
+    static Entry stored(String name, byte[] data) {
+        return new Entry(name, data, true);
+    }
+
+    static Entry deflated(String name, byte[] data) {
+        return new Entry(name, data, false);
+    }
+
+    /**
+     * Compressible bytes, the same for the same seed.
+     */
+    static byte[] data(int seed, int length) {
+        Random random = new Random(seed);
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(8));
+        }
+        return data;
+    }
+
+    /**
+     * Writes [entries] in order, with an optional archive [comment].
+     */
+    static File write(File file, String comment, Entry... entries) throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+            for (Entry entry : entries) {
+                put(out, entry);
+            }
+            if (comment != null) out.setComment(comment);
+        }
+        return file;
+    }
+
+    /**
+     * Writes one [entry] to [out], for fixtures too large to hold all entries at once.
+     */
+    static void put(ZipOutputStream out, Entry entry) throws IOException {
+        ZipEntry zipEntry = new ZipEntry(entry.name);
+        if (entry.stored) {
+            CRC32 crc = new CRC32();
+            crc.update(entry.data);
+            zipEntry.setMethod(ZipEntry.STORED);
+            zipEntry.setSize(entry.data.length);
+            zipEntry.setCompressedSize(entry.data.length);
+            zipEntry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(zipEntry);
+        out.write(entry.data);
+        out.closeEntry();
+    }
+
+    /**
+     * Writes stored [entries] the way a ZIP64 writer does for archives past 4 GB: every size
+     * and local header offset is 0xffffffff and lives in the ZIP64 extra fields, and the
+     * central directory is found through the ZIP64 end record and its locator.
+     */
+    static File writeZip64(File file, Entry... entries) throws IOException {
+        ByteArrayOutputStream local = new ByteArrayOutputStream();
+        ByteArrayOutputStream central = new ByteArrayOutputStream();
+        for (Entry entry : entries) {
+            byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+            CRC32 crc = new CRC32();
+            crc.update(entry.data);
+            long offset = local.size();
+
+            ByteBuffer header = le(30 + name.length + 20);
+            header.putInt(0x04034b50).putShort((short) 45).putShort((short) 0).putShort((short) 0)
+                    .putShort((short) 0).putShort((short) 0x21)
+                    .putInt((int) crc.getValue()).putInt(-1).putInt(-1)
+                    .putShort((short) name.length).putShort((short) 20).put(name)
+                    .putShort((short) 1).putShort((short) 16)
+                    .putLong(entry.data.length).putLong(entry.data.length);
+            local.write(header.array());
+            local.write(entry.data);
+
+            ByteBuffer record = le(46 + name.length + 28);
+            record.putInt(0x02014b50).putShort((short) 45).putShort((short) 45).putShort((short) 0)
+                    .putShort((short) 0).putShort((short) 0).putShort((short) 0x21)
+                    .putInt((int) crc.getValue()).putInt(-1).putInt(-1)
+                    .putShort((short) name.length).putShort((short) 28).putShort((short) 0)
+                    .putShort((short) 0).putShort((short) 0).putInt(0).putInt(-1).put(name)
+                    .putShort((short) 1).putShort((short) 24)
+                    .putLong(entry.data.length).putLong(entry.data.length).putLong(offset);
+            central.write(record.array());
+        }
+
+        long cdOffset = local.size();
+        long cdSize = central.size();
+        long zip64EocdOffset = cdOffset + cdSize;
+        ByteBuffer end = le(56 + 20 + 22);
+        end.putInt(0x06064b50).putLong(44).putShort((short) 45).putShort((short) 45).putInt(0).putInt(0)
+                .putLong(entries.length).putLong(entries.length).putLong(cdSize).putLong(cdOffset);
+        end.putInt(0x07064b50).putInt(0).putLong(zip64EocdOffset).putInt(1);
+        end.putInt(0x06054b50).putShort((short) 0).putShort((short) 0)
+                .putShort((short) 0xffff).putShort((short) 0xffff).putInt(-1).putInt(-1).putShort((short) 0);
+
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            local.writeTo(out);
+            central.writeTo(out);
+            out.write(end.array());
+        }
+        return file;
+    }
+
+    private static ByteBuffer le(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Reads every entry of [file] with {@link ZipFile}, in central directory order.
+     */
+    static Map<String, byte[]> readAll(File file) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (ZipFile zip = new ZipFile(file)) {
+            Enumeration<? extends ZipEntry> e = zip.entries();
+            while (e.hasMoreElements()) {
+                ZipEntry entry = e.nextElement();
+                try (InputStream in = zip.getInputStream(entry)) {
+                    entries.put(entry.getName(), readFully(in));
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Asserts that {@link ZipFile} reads exactly [entries] from [file], CRCs included.
+     */
+    static void assertContents(File file, Entry... entries) throws IOException {
+        Map<String, byte[]> actual = readAll(file);
+        assertEquals(entries.length, actual.size());
+        for (Entry entry : entries) {
+            assertArrayEquals(entry.name, entry.data, actual.get(entry.name));
+        }
+    }
+
+    /**
+     * Offset of the data of entry [name], from its local header.
+     */
+    static long dataOffset(File file, String name) throws IOException {
+        ApkIndex index = ApkIndex.of(file);
+        int i = index.indexOf(name);
+        if (i < 0) throw new IOException(name + " not found");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long offset = index.localHeaderOffset(i);
+            return offset + 30 + nameAndExtraLength(raf, offset);
+        }
+    }
+
+    /**
+     * Length of the extra field in the local header of entry [name].
+     */
+    static int localExtraLength(File file, String name) throws IOException {
+        ApkIndex index = ApkIndex.of(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(index.localHeaderOffset(index.indexOf(name)) + 28);
+            return readShort(raf);
+        }
+    }
+
+    private static int nameAndExtraLength(RandomAccessFile raf, long localHeaderOffset) throws IOException {
+        raf.seek(localHeaderOffset + 26);
+        return readShort(raf) + readShort(raf);
+    }
+
+    private static int readShort(RandomAccessFile raf) throws IOException {
+        return raf.read() | (raf.read() << 8);
+    }
+
+    static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+        return out.toByteArray();
+    }
+}